@@ -0,0 +1,122 @@
+/*
+ * secure_control_protocol
+ * ScpBenchmarkComparison Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compares two JMH JSON result files (-rf json) benchmark by benchmark.
+// A difference is only reported as changed if it is larger than the combined error of both runs.
+public final class ScpBenchmarkComparison {
+
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+    private static final int PERCENT = 100;
+
+    private ScpBenchmarkComparison() {
+        // this class has only static methods
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: ScpBenchmarkComparison <baseline.json> <current.json>");
+            System.exit(1);
+        }
+        Map<String, JsonObject> baseline = read(args[0]);
+        Map<String, JsonObject> current = read(args[1]);
+
+        System.out.println(String.format("%-70s %14s %14s %9s  %s", "Benchmark", "Baseline", "Current", "Change",
+                "Allocation B/op"));
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.println(String.format("%-70s %14s %14s", entry.getKey(), "-",
+                        score(entry.getValue().getAsJsonObject("primaryMetric"))));
+                continue;
+            }
+            JsonObject oldMetric = before.getAsJsonObject("primaryMetric");
+            JsonObject newMetric = entry.getValue().getAsJsonObject("primaryMetric");
+            System.out.println(String.format("%-70s %14s %14s %9s  %s", entry.getKey(), score(oldMetric),
+                    score(newMetric), change(oldMetric, newMetric),
+                    allocation(before) + " -> " + allocation(entry.getValue())));
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.println(String.format("%-70s %14s %14s", name,
+                        score(baseline.get(name).getAsJsonObject("primaryMetric")), "-"));
+            }
+        }
+    }
+
+    // Results keyed by benchmark name and parameters
+    private static Map<String, JsonObject> read(String path) throws IOException {
+        Map<String, JsonObject> results = new TreeMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            JsonArray array = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : array) {
+                JsonObject result = element.getAsJsonObject();
+                String name = result.get("benchmark").getAsString();
+                name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+                JsonObject params = result.getAsJsonObject("params");
+                if (params != null) {
+                    Map<String, String> sorted = new LinkedHashMap<>();
+                    for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+                        sorted.put(param.getKey(), param.getValue().getAsString());
+                    }
+                    name += sorted;
+                }
+                results.put(name, result);
+            }
+        }
+        return results;
+    }
+
+    private static String score(JsonObject metric) {
+        return String.format("%.3f %s", metric.get("score").getAsDouble(), metric.get("scoreUnit").getAsString());
+    }
+
+    private static String change(JsonObject oldMetric, JsonObject newMetric) {
+        double oldScore = oldMetric.get("score").getAsDouble();
+        double newScore = newMetric.get("score").getAsDouble();
+        if (oldScore == 0) {
+            return "-";
+        }
+        String percent = String.format("%+.1f%%", (newScore - oldScore) * PERCENT / oldScore);
+        if (Math.abs(newScore - oldScore) <= error(oldMetric) + error(newMetric)) {
+            return "~" + percent;
+        }
+        return percent;
+    }
+
+    // NaN when a run had too few iterations for an error estimate
+    private static double error(JsonObject metric) {
+        double error = metric.get("scoreError").getAsDouble();
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    // The allocation metric is only present if the run used -prof gc
+    private static String allocation(JsonObject result) {
+        JsonObject secondary = result.getAsJsonObject("secondaryMetrics");
+        if (secondary != null) {
+            for (Map.Entry<String, JsonElement> metric : secondary.entrySet()) {
+                if (metric.getKey().endsWith(ALLOCATION_METRIC)) {
+                    return String.format("%.0f", metric.getValue().getAsJsonObject().get("score").getAsDouble());
+                }
+            }
+        }
+        return "-";
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * secure_control_protocol
+ * ScpBenchmarkData Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Device responses and device lists in the format real devices and the JSON file use
+final class ScpBenchmarkData {
+
+    static final String PASSWORD = "abcdefghijklmnopqrstuvwxyz012345";
+    static final String NVCN = "0123456789ABCDEF";
+
+    private static final String HMAC_SHA512 = "HmacSHA512";
+    // devices send Base64 padding as is, Gson would escape '=' as \u003d by default
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private ScpBenchmarkData() {
+        // this class has only static methods
+    }
+
+    // Hex encoded HMAC-SHA512 like the devices send it
+    static String hmac(String password, String content) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_SHA512);
+        mac.init(new SecretKeySpec(password.getBytes(StandardCharsets.UTF_8), HMAC_SHA512));
+        return ScpCrypto.bytesToHex(mac.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static byte[] discoverResponse(String deviceId, int currentPasswordNumber, String password)
+            throws GeneralSecurityException {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("type", ScpResponseDiscover.TYPE);
+        response.put("deviceId", deviceId);
+        response.put("deviceType", ScpDeviceTypes.SHUTTER_CONTROL);
+        response.put("currentPasswordNumber", currentPasswordNumber);
+        response.put("hmac", hmac(password, ScpResponseDiscover.TYPE + deviceId + ScpDeviceTypes.SHUTTER_CONTROL
+                + currentPasswordNumber));
+        return GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] nvcnResponse(String deviceId) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("type", ScpResponseFetchNvcn.TYPE);
+        response.put("deviceId", deviceId);
+        response.put("nvcn", NVCN);
+        return GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // {"response": <base64 payload>, "hmac": <HMAC over the base64 payload>}
+    static byte[] wrappedResponse(Map<String, Object> payload, String password) throws GeneralSecurityException {
+        String encoded = Base64.getEncoder().encodeToString(
+                GSON.toJson(payload).getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("response", encoded);
+        response.put("hmac", hmac(password, encoded));
+        return GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String, Object> payload(String type, String deviceId, String result) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("type", type);
+        payload.put("deviceId", deviceId);
+        payload.put("result", result);
+        return payload;
+    }
+
+    static List<ScpDevice> devices(int count) {
+        List<ScpDevice> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            devices.add(new ScpDevice("device-" + i, ScpDeviceTypes.SHUTTER_CONTROL,
+                    "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255), false, PASSWORD, 1));
+        }
+        return devices;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * secure_control_protocol
+ * ScpCryptoBenchmark Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encryption of a control message, HMAC check of a discover response and password generation
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScpCryptoBenchmark {
+
+    private ScpCrypto crypto;
+    private String discoverContent;
+    private String discoverHmac;
+
+    @Setup
+    public void setUp() throws Exception {
+        crypto = ScpCrypto.getInstance();
+        discoverContent = ScpResponseDiscover.TYPE + "device-0" + ScpDeviceTypes.SHUTTER_CONTROL + 1;
+        discoverHmac = ScpBenchmarkData.hmac(ScpBenchmarkData.PASSWORD, discoverContent);
+    }
+
+    @Benchmark
+    public Object encryptMessage() {
+        return crypto.encryptMessage(ScpBenchmarkData.PASSWORD,
+                "salt:control:device-0:" + ScpBenchmarkData.NVCN + ":up");
+    }
+
+    @Benchmark
+    public boolean verifyHMAC() {
+        return crypto.verifyHMAC(discoverContent, discoverHmac, ScpBenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public String generatePassword() {
+        return crypto.generatePassword();
+    }
+}
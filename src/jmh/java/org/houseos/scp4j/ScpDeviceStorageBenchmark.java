@@ -0,0 +1,92 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceStorageBenchmark Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.houseos.scp4j.util.JsonStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Storing one device in and loading a devices JSON file of the given size
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScpDeviceStorageBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int deviceCount;
+
+    private Path jsonPath;
+    private String json;
+    private ScpDevice updatedDevice;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<ScpDevice> devices = ScpBenchmarkData.devices(deviceCount);
+        json = new Gson().toJson(devices);
+        jsonPath = Files.createTempFile("scp4j-benchmark", ".json");
+        updatedDevice = devices.get(deviceCount / 2);
+        // storeDevice prints the whole device list, that would measure the console instead of the storage
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discard
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // discard
+            }
+        }));
+    }
+
+    // Every storeDevice call starts from the same file
+    @Setup(Level.Invocation)
+    public void writeJson() throws IOException {
+        Files.write(jsonPath, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        Files.deleteIfExists(jsonPath);
+    }
+
+    @Benchmark
+    public void storeDevice() {
+        JsonStorage.storeDevice(updatedDevice, jsonPath.toString());
+    }
+
+    @Benchmark
+    public List<ScpDevice> devicesfromJson() {
+        return ScpDevice.devicesfromJson(json);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * secure_control_protocol
+ * ScpResponseParserBenchmark Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One authentic response per parse method. The parsers decode in place, so every operation
+// copies the response into a scratch buffer first, like the receive buffer gets filled by a read.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScpResponseParserBenchmark {
+
+    private static final String DEVICE_ID = "device-0";
+    private static final int SCRATCH_SIZE = 4096;
+
+    private final byte[] scratch = new byte[SCRATCH_SIZE];
+    private ScpDeviceRegistry devices;
+    private byte[] discover;
+    private byte[] nvcn;
+    private byte[] setPassword;
+    private byte[] setWifiConfig;
+    private byte[] restart;
+    private byte[] resetToDefault;
+    private byte[] control;
+
+    @Setup
+    public void setUp() throws Exception {
+        devices = new ScpDeviceRegistry();
+        devices.replaceKnown(Collections.singletonList(new ScpDevice(DEVICE_ID, ScpDeviceTypes.SHUTTER_CONTROL,
+                "10.0.0.1", false, ScpBenchmarkData.PASSWORD, 1)));
+        discover = ScpBenchmarkData.discoverResponse(DEVICE_ID, 1, ScpBenchmarkData.PASSWORD);
+        nvcn = ScpBenchmarkData.nvcnResponse(DEVICE_ID);
+
+        Map<String, Object> passwordPayload = ScpBenchmarkData.payload(ScpResponseSetPassword.EXPECTED_TYPE,
+                DEVICE_ID, ScpStatus.RESULT_DONE);
+        passwordPayload.put("currentPasswordNumber", "2");
+        setPassword = ScpBenchmarkData.wrappedResponse(passwordPayload, ScpBenchmarkData.PASSWORD);
+        setWifiConfig = ScpBenchmarkData.wrappedResponse(ScpBenchmarkData.payload(
+                ScpResponseSetWifiConfig.EXPECTED_TYPE, DEVICE_ID, ScpStatus.RESULT_SUCCESS),
+                ScpBenchmarkData.PASSWORD);
+        restart = ScpBenchmarkData.wrappedResponse(ScpBenchmarkData.payload(ScpResponseRestart.EXPECTED_TYPE,
+                DEVICE_ID, ScpStatus.RESULT_SUCCESS), ScpBenchmarkData.PASSWORD);
+        resetToDefault = ScpBenchmarkData.wrappedResponse(ScpBenchmarkData.payload(
+                ScpResponseResetToDefault.EXPECTED_TYPE, DEVICE_ID, ScpStatus.RESULT_SUCCESS),
+                ScpBenchmarkData.PASSWORD);
+        Map<String, Object> controlPayload = ScpBenchmarkData.payload(ScpResponseControl.EXPECTED_TYPE,
+                DEVICE_ID, ScpStatus.RESULT_SUCCESS);
+        controlPayload.put("action", "up");
+        control = ScpBenchmarkData.wrappedResponse(controlPayload, ScpBenchmarkData.PASSWORD);
+
+        // a benchmark of a parser that rejects its input would measure the wrong path
+        if (parseDiscoverResponse() == null || parseNvcnResponse() == null || parseSetPasswordResponse() == null
+                || parseSetWifiConfigResponse() == null || parseRestartDeviceResponse() == null
+                || parseResetToDefault() == null || parseControlResponse() == null) {
+            throw new IllegalStateException("benchmark responses are not accepted by the parser");
+        }
+    }
+
+    @Benchmark
+    public Object parseDiscoverResponse() {
+        return ScpResponseParser.parseDiscoverResponse(scratch, 0, fill(discover), devices);
+    }
+
+    @Benchmark
+    public Object parseNvcnResponse() {
+        return ScpResponseParser.parseNvcnResponse(scratch, 0, fill(nvcn));
+    }
+
+    @Benchmark
+    public Object parseSetPasswordResponse() {
+        return ScpResponseParser.parseSetPasswordResponse(scratch, 0, fill(setPassword),
+                ScpBenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public Object parseSetWifiConfigResponse() {
+        return ScpResponseParser.parseSetWifiConfigResponse(scratch, 0, fill(setWifiConfig),
+                ScpBenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public Object parseRestartDeviceResponse() {
+        return ScpResponseParser.parseRestartDeviceResponse(scratch, 0, fill(restart), ScpBenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public Object parseResetToDefault() {
+        return ScpResponseParser.parseResetToDefault(scratch, 0, fill(resetToDefault), ScpBenchmarkData.PASSWORD);
+    }
+
+    @Benchmark
+    public Object parseControlResponse() {
+        return ScpResponseParser.parseControlResponse(scratch, 0, fill(control), ScpBenchmarkData.PASSWORD);
+    }
+
+    private int fill(byte[] response) {
+        System.arraycopy(response, 0, scratch, 0, response.length);
+        return response.length;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * secure_control_protocol
+ * ScpSimulatorBenchmark Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.houseos.scp4j.util.IPRangeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// End to end through the real socket paths against simulated devices on 127.2.0.0/22, Linux only.
+// Discovery scans all devices, control sends NVCN bound messages to one provisioned device.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScpSimulatorBenchmark {
+
+    private static final String NETWORK = "127.2.0.0/22";
+    private static final String CONTROL_DEVICE = "127.2.0.1";
+
+    private ScpDeviceSimulator simulator;
+    private IPRangeSet addresses;
+    private ScpDevice device;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() throws IOException {
+        addresses = IPRangeSet.parse(Collections.singletonList(NETWORK), null, null);
+        simulator = new ScpDeviceSimulator(addresses, ScpDeviceSimulator.Behavior.NONE);
+        simulator.start();
+        // the client prints every step, that would measure the console
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discard
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // discard
+            }
+        }));
+        device = new ScpDevice(ScpDeviceSimulator.DEVICE_ID_PREFIX + CONTROL_DEVICE, ScpDeviceTypes.SHUTTER_CONTROL,
+                CONTROL_DEVICE, true, ScpCrypto.DEFAULT_PASSWORD, 0);
+        if (!ScpStatus.RESULT_DONE.equals(ScpMessageSender.sendNewPassword(device))) {
+            throw new IllegalStateException("the simulated device can't be provisioned");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+        simulator.close();
+    }
+
+    @Benchmark
+    public void discover(Blackhole blackhole) {
+        Scp.getInstance().discover(addresses, null, blackhole::consume);
+    }
+
+    @Benchmark
+    public String control() {
+        return ScpMessageSender.sendControl(device, "up");
+    }
+}
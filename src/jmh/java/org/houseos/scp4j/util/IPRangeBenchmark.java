@@ -0,0 +1,57 @@
+/*
+ * secure_control_protocol
+ * IPRangeBenchmark Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Materializing all addresses of a block compared to iterating them lazily
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IPRangeBenchmark {
+
+    private static final String NETWORK = "10.20.0.0";
+
+    @Param({"24", "20", "16"})
+    public int prefixLength;
+
+    private IPRangeSet rangeSet;
+
+    @Setup
+    public void setUp() {
+        rangeSet = IPRangeSet.parse(Collections.singletonList(NETWORK + "/" + prefixLength), null, null);
+    }
+
+    @Benchmark
+    public List<String> getAllIpAddressesInRange() {
+        return IPRange.getAllIpAddressesInRange(NETWORK, prefixLength);
+    }
+
+    @Benchmark
+    public void iterateIPRangeSet(Blackhole blackhole) {
+        for (String address : rangeSet) {
+            blackhole.consume(address);
+        }
+    }
+}
@@ -6,26 +6,41 @@
  */
 package org.houseos.scp4j;
 
-import java.util.AbstractMap.SimpleEntry;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import org.houseos.scp4j.util.IPRange;
-import org.houseos.scp4j.util.JsonStorage;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.houseos.scp4j.ScpEvents.Level;
+import org.houseos.scp4j.util.IPRangeSet;
 
 public final class Scp {
 
     private static Scp instance;
 
-    // List of configured devices known to SCP
-    List<ScpDevice> knownDevices;
+    // Configured devices known to SCP and newly discovered not configured devices
+    final ScpDeviceRegistry devices = new ScpDeviceRegistry();
 
-    // List of newly discovered not configured devices
-    List<ScpDevice> newDevices;
+    // Persistent storage of the known devices, see openDeviceStore
+    private ScpDeviceStore deviceStore;
+    private Path deviceStorePath;
+    // JSON file of a device loaded from the binary snapshot, the store is only opened to save changes
+    private String snapshotJsonPath;
+
+    // Set in server mode, the device store then stays open between commands until shutdownDeviceStore
+    volatile boolean keepDeviceStoreOpen;
+
+    // Maximum number of discover-hello probes in flight during a scan, the scanner tunes itself below it
+    int discoveryInFlightLimit = ScpDiscoveryScanner.DEFAULT_MAX_IN_FLIGHT;
+
+    // Maximum number of discover-hello probes started per second, 0 for no limit
+    int discoveryRateLimit;
 
     public static Scp getInstance() {
         if (Scp.instance == null) {
@@ -35,232 +50,356 @@ public final class Scp {
     }
 
     private Scp() {
-        knownDevices = new ArrayList<>();
     }
 
-    // Initialize knownDevices from JSON
+    // Initialize the known devices from JSON
     void knownDevicesFromJson(String json) {
-        knownDevices = ScpDevice.devicesfromJson(json);
+        devices.replaceKnown(ScpDevice.devicesfromJson(json));
     }
 
-    void doDiscover(String subnet, String mask) {
-        newDevices = new ArrayList<>();
-        // Get a list with all relevant IP addresses
-        List<String> allIPs = IPRange.getAllIpAddressesInRange(subnet, Integer.parseInt(mask));
-
-        final BlockingQueue<SimpleEntry<String, String>> responses = new LinkedBlockingQueue<>();
-        final ExecutorService requesterThreadPool = Executors.newFixedThreadPool(100);
+    // Initialize the known devices from the JSON file and its journal, updated devices are stored there.
+    // Does nothing if the store of this JSON file is open already.
+    synchronized void openDeviceStore(String jsonPath) throws IOException {
+        Path path = Paths.get(jsonPath).toAbsolutePath().normalize();
+        if (deviceStore != null && path.equals(deviceStorePath)) {
+            return;
+        }
+        shutdownDeviceStore();
+        deviceStore = ScpDeviceStore.open(jsonPath);
+        deviceStorePath = path;
+        devices.replaceKnown(deviceStore.devices());
+    }
 
-        for (String ip : allIPs) {
-            Runnable requester = () -> {
-                responses.add(new SimpleEntry<>(ip, ScpMessageSender.sendDiscoverHello(ip)));
-            };
-            requesterThreadPool.submit(requester);
+    // Makes a single known device available, from the binary snapshot of the JSON file if possible.
+    // Falls back to opening the device store, which loads all devices.
+    void loadKnownDevice(String jsonPath, String deviceId) throws IOException {
+        if (keepDeviceStoreOpen) {
+            // the open store already has all devices in memory
+            openDeviceStore(jsonPath);
+            return;
         }
-        requesterThreadPool.shutdown();
-        while (!requesterThreadPool.isTerminated()) {
-            try {
-                requesterThreadPool.awaitTermination(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                // do nothing
-            }
+        ScpDevice device = ScpDeviceSnapshot.ENABLED ? ScpDeviceSnapshot.lookup(Paths.get(jsonPath), deviceId) : null;
+        if (device != null) {
+            devices.putKnown(device);
+            snapshotJsonPath = jsonPath;
+        } else {
+            openDeviceStore(jsonPath);
         }
+    }
 
-        for (SimpleEntry<String, String> response : responses) {
-            if (response.getValue() != null) {
-                ScpResponseDiscover parsedResponse
-                        = ScpResponseParser.parseDiscoverResponse(response.getValue(), null);
-                if (parsedResponse != null) {
-                    ScpDevice dev = new ScpDevice(
-                            parsedResponse.deviceId,
-                            parsedResponse.deviceType,
-                            response.getKey(),
-                            (parsedResponse.currentPasswordNumber == 0),
-                            (parsedResponse.currentPasswordNumber == 0 ? "01234567890123456789012345678901" : ""),
-                            parsedResponse.currentPasswordNumber);
-                    if (dev.isDefaultPasswordSet) {
-                        System.out.println("default password set, adding to new devices.");
-                        newDevices.add(dev);
-                    } else {
-                        System.out.println("default password not set.");
-                        if (knownDevices.stream().filter(element -> element.getDeviceId().equals(dev.getDeviceId()))
-                                .findAny().isPresent()) {
-                            System.out.println("Device ${dev.deviceId} already known.");
-                        } else {
-                            System.out.println("Device " + dev.getDeviceId() + " not known, adding to known devices.");
-                            knownDevices.add(dev);
-                        }
-                    }
-                    System.out.println("Found device: " + dev.toJson());
-                }
-            }
+    // Folds all stored updates into the JSON file, unless the store is kept open between commands
+    void closeDeviceStore() throws IOException {
+        if (!keepDeviceStoreOpen) {
+            shutdownDeviceStore();
         }
     }
 
-    // Updates the IP addresses of all devices in the list of known devices
-    void doUpdate(String subnet, String mask, String jsonPath) {
-        newDevices = new ArrayList<>();
-        // Get a list with all relevant IP addresses
-        List<String> allIPs = IPRange.getAllIpAddressesInRange(subnet, Integer.parseInt(mask));
-
-        final BlockingQueue<SimpleEntry<String, String>> responses = new LinkedBlockingQueue<>();
-        final ExecutorService requesterThreadPool = Executors.newFixedThreadPool(100);
-
-        for (String ip : allIPs) {
-            Runnable requester = () -> {
-                responses.add(new SimpleEntry<>(ip, ScpMessageSender.sendDiscoverHello(ip)));
-            };
-            requesterThreadPool.submit(requester);
-        }
-        requesterThreadPool.shutdown();
-        while (!requesterThreadPool.isTerminated()) {
-            try {
-                requesterThreadPool.awaitTermination(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                // do nothing
-            }
+    // Folds all stored updates into the JSON file and closes the store
+    synchronized void shutdownDeviceStore() throws IOException {
+        snapshotJsonPath = null;
+        if (deviceStore != null) {
+            ScpDeviceStore store = deviceStore;
+            deviceStore = null;
+            deviceStorePath = null;
+            store.close();
         }
+    }
 
-        for (SimpleEntry<String, String> response : responses) {
-            if (response.getValue() != null) {
-                ScpResponseDiscover parsedResponse
-                        = ScpResponseParser.parseDiscoverResponse(response.getValue(), knownDevices);
-                if (parsedResponse != null) {
-                    ScpDevice scpDevice = knownDevices.stream().filter(element
-                            -> element.getDeviceId().equals(parsedResponse.deviceId)).findFirst().orElse(null);
-                    if (scpDevice != null) {
-                        scpDevice.ipAddress = response.getKey();
-                        JsonStorage.storeDevice(scpDevice, jsonPath);
-                        System.out.println("Updated IP address of " + parsedResponse.deviceId);
-                    }
-                }
-            }
-        }
+    // Scans the addresses and reports every device with a valid discover response as soon as it answers.
+    // The HMAC is verified with the password of the matching known device in registry, or the default password.
+    // Listener calls are serialized, so listeners do not need to be thread safe.
+    void discover(IPRangeSet addresses, ScpDeviceRegistry registry, ScpDiscoveryListener listener) {
+        ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, "Scanning " + addresses.size() + " IP addresses");
+        discover(newScanner(), addresses, registry, listener);
     }
 
-    void doDiscoverThenDoProvisioning(String subnet, String mask, String ssid, String wifiPassword,
-            String jsonPath) {
-        newDevices = new ArrayList<>();
-        // Get a list with all relevant IP addresses
-        List<String> allIPs = IPRange.getAllIpAddressesInRange(subnet, Integer.parseInt(mask));
+    private ScpDiscoveryScanner newScanner() {
+        return new ScpDiscoveryScanner(discoveryInFlightLimit, discoveryRateLimit,
+                ScpDiscoveryScanner.DEFAULT_IO_THREADS);
+    }
 
-        final BlockingQueue<SimpleEntry<String, String>> responses = new LinkedBlockingQueue<>();
-        final ExecutorService requesterThreadPool = Executors.newFixedThreadPool(100);
+    // Probes the given addresses, the scanner pulls them one by one as probes finish.
+    // The listener may cancel the scanner once it has what it needs. Its events are written on return.
+    private void discover(ScpDiscoveryScanner scanner, Iterable<String> addresses, ScpDeviceRegistry registry,
+            ScpDiscoveryListener listener) {
+        final Object listenerLock = new Object();
+        final long[] found = new long[1];
+        ScpScanRate.Stats stats = scanner.scan(addresses.iterator(), (ip, data, offset, length) -> {
+            ScpDevice dev = discoveredDevice(ip, data, offset, length, registry);
+            if (dev == null) {
+                return;
+            }
+            synchronized (listenerLock) {
+                found[0]++;
+                listener.onDeviceDiscovered(dev);
+            }
+        });
+        ScpMetrics.scanFinished(stats, found[0]);
+        ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, "Scanned " + stats);
+        ScpEvents.flush();
+    }
 
-        for (String ip : allIPs) {
-            Runnable requester = () -> {
-                responses.add(new SimpleEntry<>(ip, ScpMessageSender.sendDiscoverHello(ip)));
-            };
-            requesterThreadPool.submit(requester);
+    // The device that sent the discover response, null if the response is not valid
+    static ScpDevice discoveredDevice(String ip, byte[] data, int offset, int length, ScpDeviceRegistry registry) {
+        ScpResponseDiscover parsedResponse = ScpResponseParser.parseDiscoverResponse(data, offset, length, registry);
+        if (parsedResponse == null) {
+            return null;
         }
-        requesterThreadPool.shutdown();
-        while (!requesterThreadPool.isTerminated()) {
-            try {
-                requesterThreadPool.awaitTermination(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                // do nothing
+        return new ScpDevice(
+                parsedResponse.deviceId,
+                parsedResponse.deviceType,
+                ip,
+                (parsedResponse.currentPasswordNumber == 0),
+                (parsedResponse.currentPasswordNumber == 0 ? "01234567890123456789012345678901" : ""),
+                parsedResponse.currentPasswordNumber);
+    }
+
+    // Sorts a freshly discovered device into the new or known devices
+    private void addDiscoveredDevice(ScpDevice dev) {
+        if (dev.isDefaultPasswordSet) {
+            ScpEvents.log(Level.DEBUG, ScpEvents.DISCOVER, dev, "default password set, adding to new devices.");
+            devices.addNew(dev);
+        } else {
+            if (devices.known(dev.getDeviceId()) != null) {
+                ScpEvents.log(Level.DEBUG, ScpEvents.DISCOVER, dev, "default password not set, device already known.");
+            } else {
+                ScpEvents.log(Level.DEBUG, ScpEvents.DISCOVER, dev,
+                        "default password not set, device not known, adding to known devices.");
+                devices.putKnown(dev);
             }
         }
+    }
 
-        for (SimpleEntry<String, String> response : responses) {
-            if (response.getValue() != null) {
-                System.out.println("Received discover response.");
-                ScpResponseDiscover parsedResponse
-                        = ScpResponseParser.parseDiscoverResponse(response.getValue(), null);
-                if (parsedResponse != null) {
-                    // create device
-                    ScpDevice dev = new ScpDevice(
-                            parsedResponse.deviceId,
-                            parsedResponse.deviceType,
-                            response.getKey(),
-                            (parsedResponse.currentPasswordNumber == 0),
-                            (parsedResponse.currentPasswordNumber == 0 ? "01234567890123456789012345678901" : ""),
-                            parsedResponse.currentPasswordNumber);
-                    System.out.println("Found device: " + dev.toString());
+    void doDiscover(IPRangeSet addresses, ScpDiscoveryListener listener) {
+        devices.clearNew();
+        discover(addresses, null, dev -> {
+            addDiscoveredDevice(dev);
+            listener.onDeviceDiscovered(dev);
+        });
+    }
 
-                    if (dev.isDefaultPasswordSet) {
-                        System.out.println("default password set, adding to new devices.");
-                        newDevices.add(dev);
-                    } else {
-                        System.out.println("default password not set.");
-                        if (knownDevices.stream().filter(element -> element.getDeviceId().equals(dev.getDeviceId()))
-                                .findAny().isPresent()) {
-                            System.out.println("Device " + dev.getDeviceId() + " already known.");
-                        } else {
-                            System.out.println("Device " + dev.getDeviceId() + " not known, adding to known devices.");
-                            knownDevices.add(dev);
-                        }
-                    }
-                    doProvisioning(dev, ssid, wifiPassword, jsonPath);
-                }
+    // Scans the shards of the coordinator with worker processes. Their discover responses are verified here,
+    // so the workers need no passwords. Every device is reported once, even if a reassigned shard is
+    // scanned twice. Known devices get their new IP address stored, requires an open device store.
+    // Returns false if the scan failed before every shard was scanned, see ScpScanCoordinator.run.
+    boolean doDistributedDiscover(ScpScanCoordinator coordinator, long workerTimeoutMillis,
+            ScpDiscoveryListener listener) {
+        devices.clearNew();
+        Set<String> seen = new HashSet<>();
+        boolean complete = coordinator.run((ip, data, offset, length) -> {
+            ScpDevice dev = discoveredDevice(ip, data, offset, length, devices);
+            if (dev == null || !seen.add(dev.getDeviceId())) {
+                return;
             }
-        }
+            ScpDevice knownDevice = devices.known(dev.getDeviceId());
+            if (knownDevice == null) {
+                addDiscoveredDevice(dev);
+                listener.onDeviceDiscovered(dev);
+                return;
+            }
+            if (!ip.equals(knownDevice.ipAddress)) {
+                devices.updateIpAddress(knownDevice, ip);
+                deviceStore.put(knownDevice);
+            }
+            listener.onDeviceDiscovered(knownDevice);
+        }, workerTimeoutMillis);
+        ScpEvents.flush();
+        return complete;
     }
 
-    void doProvisioning(ScpDevice device, String ssid, String wifiPassword, String jsonPath) {
-        if (ssid == null
-                || ssid.isEmpty()
-                || wifiPassword == null
-                || wifiPassword.isEmpty()) {
-            System.out.println("provisioning without ssid or wifiPassword not possible.");
+    // Updates the IP addresses of all devices in the list of known devices, requires an open device store.
+    // Known devices are first probed at their last known IP address, only the devices that did not answer
+    // there are searched for in the given addresses and the sweep stops as soon as all of them are found.
+    // With fullSweep set all addresses are scanned right away.
+    void doUpdate(IPRangeSet addresses, boolean fullSweep, ScpDiscoveryListener listener) {
+        devices.clearNew();
+        Set<String> missing = ConcurrentHashMap.newKeySet();
+        Set<String> lastKnownIPs = new LinkedHashSet<>();
+        for (ScpDevice device : devices.knownDevices()) {
+            missing.add(device.getDeviceId());
+            if (device.ipAddress != null) {
+                lastKnownIPs.add(device.ipAddress);
+            }
+        }
+        if (!fullSweep && !lastKnownIPs.isEmpty()) {
+            discover(newScanner(), lastKnownIPs, devices, dev -> updateIpAddress(dev, missing, null, listener));
+            ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, "Found " + (devices.knownCount() - missing.size())
+                    + " devices at their last known IP address, " + missing.size() + " missing.");
+        }
+        if (missing.isEmpty()) {
             return;
         }
+        // the last known addresses were probed already
+        IPRangeSet sweep = fullSweep ? addresses : addresses.excluding(lastKnownIPs);
+        ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, "Scanning " + sweep.size() + " IP addresses");
+        ScpDiscoveryScanner scanner = newScanner();
+        discover(scanner, sweep, devices, dev -> updateIpAddress(dev, missing, scanner, listener));
+    }
 
-        // for each new device
-        System.out.println("Provisioning device: " + device.getDeviceId());
-        // send security-pw-change
-        ScpMessageSender.sendNewPassword(device);
-
-        // send security-wifi-config
-        String wifiConfigResponse = ScpMessageSender.sendWifiConfig(device, ssid, wifiPassword);
-        // send security-restart
-        if (wifiConfigResponse == null) {
-            System.out.println("wifiConfig response is null, shutting down.");
-            return;
-        } else if (wifiConfigResponse.equals(ScpStatus.RESULT_ERROR)) {
-            System.out.println("failed to set wifi config.");
+    // Stores the IP address of a known device the first time it answers, the scan is cancelled once
+    // every device has been found
+    private void updateIpAddress(ScpDevice dev, Set<String> missing, ScpDiscoveryScanner scanner,
+            ScpDiscoveryListener listener) {
+        ScpDevice scpDevice = devices.known(dev.getDeviceId());
+        if (scpDevice == null || !missing.remove(dev.getDeviceId())) {
             return;
         }
-        String restartResponse = ScpMessageSender.sendRestart(device);
-        // move device from new devices to known devices
-        if (restartResponse != null) {
-            System.out.println("Restarting device successfull, removing from new devices and adding to known devices.");
-            this.knownDevices.add(device);
-            //add to List, remove if it already exists to mitigate duplicates
-            this.newDevices.removeIf(element -> element.getDeviceId().equals(device.getDeviceId()));
-            //print all device info
-            System.out.println(device.toString());
-            JsonStorage.storeDevice(device, jsonPath);
+        boolean moved = !dev.ipAddress.equals(scpDevice.ipAddress);
+        if (moved) {
+            devices.updateIpAddress(scpDevice, dev.ipAddress);
+        }
+        // the device answered, so it is up again even if its breaker was open
+        scpDevice.health().succeeded(System.currentTimeMillis());
+        boolean healthChanged = scpDevice.health().takeChanged();
+        if (moved || healthChanged) {
+            deviceStore.put(scpDevice);
         }
+        listener.onDeviceDiscovered(scpDevice);
+        if (scanner != null && missing.isEmpty()) {
+            scanner.cancel();
+        }
+    }
+
+    // Provisions every discovered device while the scan of the remaining addresses continues,
+    // at most parallelism devices at the same time. Requires an open device store.
+    List<ScpProvisioningPipeline.Job> doDiscoverThenDoProvisioning(IPRangeSet addresses, String ssid,
+            String wifiPassword, int parallelism, ScpDiscoveryListener listener) {
+        devices.clearNew();
+        ScpProvisioningPipeline pipeline = new ScpProvisioningPipeline(parallelism, ssid, wifiPassword,
+                this::addProvisionedDevice);
+        discover(addresses, null, dev -> {
+            ScpEvents.log(Level.DEBUG, ScpEvents.DISCOVER, dev, "Received discover response.");
+            addDiscoveredDevice(dev);
+            listener.onDeviceDiscovered(dev);
+            pipeline.submit(dev);
+        });
+        List<ScpProvisioningPipeline.Job> jobs = pipeline.awaitCompletion();
+        ScpEvents.flush();
+        return jobs;
+    }
+
+    // Moves a device with a new password from new devices to known devices and stores it,
+    // called once the password is set and again once the device is provisioned
+    private void addProvisionedDevice(ScpDevice device) {
+        devices.putKnown(device);
+        deviceStore.put(device);
     }
 
     void control(String deviceId, String command) {
-        System.out.println("do control for device: " + deviceId);
-        ScpDevice scpDevice = knownDevices.stream().filter(element -> element.getDeviceId().equals(deviceId))
-                .findFirst().orElse(null);
+        ScpEvents.log(Level.INFO, "control", deviceId, null, null, ScpEvents.NO_DURATION, "do control " + command);
+        ScpDevice scpDevice = devices.known(deviceId);
         if (scpDevice != null) {
             String controlResponse = ScpMessageSender.sendControl(scpDevice, command);
-            System.out.println(controlResponse);
             if (controlResponse != null && controlResponse.equals(ScpStatus.RESULT_SUCCESS)) {
-                System.out.println("Successfully send cotrol " + command + " to " + deviceId);
+                ScpEvents.log(Level.INFO, "control", scpDevice, controlResponse, ScpEvents.NO_DURATION,
+                        "Successfully send control " + command);
             } else {
-                System.out.println("Failed to send control " + command + " to " + deviceId);
+                ScpEvents.log(Level.WARN, "control", scpDevice, controlResponse, ScpEvents.NO_DURATION,
+                        "Failed to send control " + command);
             }
+            storeHealthChanges(Collections.singletonList(scpDevice), true);
+        }
+        ScpEvents.flush();
+    }
+
+    // Sends the command in parallel to the given devices and to all known devices of the given type
+    ScpGroupControl.Result groupControl(Collection<String> deviceIds, String deviceType, String command,
+            int parallelism) {
+        Set<String> selectedIds = new LinkedHashSet<>();
+        if (deviceIds != null) {
+            selectedIds.addAll(deviceIds);
         }
+        if (deviceType != null) {
+            devices.knownByType(deviceType).forEach(element -> selectedIds.add(element.getDeviceId()));
+        }
+        List<String> ids = new ArrayList<>(selectedIds);
+        List<ScpDevice> selectedDevices = new ArrayList<>();
+        for (String deviceId : ids) {
+            selectedDevices.add(devices.known(deviceId));
+        }
+        ScpGroupControl.Result result = ScpGroupControl.send(ids, selectedDevices, command, parallelism);
+        storeHealthChanges(selectedDevices, true);
+        ScpEvents.flush();
+        return result;
     }
 
     void resetToDefault(String deviceId) {
-        System.out.println("do control for device: " + deviceId);
-        ScpDevice scpDevice = knownDevices.stream().filter(element -> element.getDeviceId().equals(deviceId))
-                .findFirst().orElse(null);
+        ScpEvents.log(Level.INFO, "security-reset-to-default", deviceId, null, null, ScpEvents.NO_DURATION,
+                "do reset to default");
+        ScpDevice scpDevice = devices.known(deviceId);
         if (scpDevice != null) {
             String resetToDefaultResponse = ScpMessageSender.sendResetToDefault(scpDevice);
-            System.out.println(resetToDefaultResponse);
             if (resetToDefaultResponse != null && resetToDefaultResponse.equals(ScpStatus.RESULT_SUCCESS)) {
-                System.out.println("Successfully send reset to default to " + deviceId);
+                ScpEvents.log(Level.INFO, "security-reset-to-default", scpDevice, resetToDefaultResponse,
+                        ScpEvents.NO_DURATION, "Successfully send reset to default");
             } else {
-                System.out.println("Failed to send reset to default to " + deviceId);
+                ScpEvents.log(Level.WARN, "security-reset-to-default", scpDevice, resetToDefaultResponse,
+                        ScpEvents.NO_DURATION, "Failed to send reset to default");
+            }
+            storeHealthChanges(Collections.singletonList(scpDevice), true);
+        }
+        ScpEvents.flush();
+    }
+
+    // Stores the devices whose health changed since they were last stored. With openStore set the store of
+    // a device loaded from the binary snapshot is opened, otherwise its change waits for the next one.
+    synchronized void storeHealthChanges(Collection<ScpDevice> changed, boolean openStore) {
+        String jsonPath = snapshotJsonPath;
+        if (deviceStore == null && (!openStore || jsonPath == null)) {
+            return;
+        }
+        List<ScpDevice> toStore = new ArrayList<>();
+        for (ScpDevice device : changed) {
+            if (device != null && device.health().takeChanged()) {
+                toStore.add(device);
+            }
+        }
+        if (toStore.isEmpty()) {
+            return;
+        }
+        if (deviceStore == null) {
+            try {
+                openDeviceStore(jsonPath);
+            } catch (IOException ex) {
+                ScpEvents.log(Level.WARN, ScpEvents.STORE, "Can't store the device health: " + ex.getMessage());
+                return;
+            }
+        }
+        for (ScpDevice device : toStore) {
+            // the store loaded its own copies of the devices
+            devices.putKnown(device);
+            deviceStore.put(device);
+        }
+    }
+
+    // One line per device with the state of its circuit breaker, all known devices if deviceIds is null.
+    // With downOnly set devices with a closed breaker are left out.
+    String healthReport(Collection<String> deviceIds, boolean downOnly) {
+        long now = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>();
+        if (deviceIds != null) {
+            ids.addAll(deviceIds);
+        } else {
+            devices.knownDevices().forEach(device -> ids.add(device.getDeviceId()));
+        }
+        StringBuilder report = new StringBuilder();
+        int down = 0;
+        for (String deviceId : ids) {
+            ScpDevice device = devices.known(deviceId);
+            if (device == null) {
+                report.append(deviceId).append(": unknown device\n");
+                continue;
+            }
+            ScpDeviceHealth health = device.health();
+            boolean closed = health.state(now) == ScpDeviceHealth.State.CLOSED;
+            if (!closed) {
+                down++;
+            }
+            if (!closed || !downOnly) {
+                report.append(deviceId).append(" (").append(device.ipAddress).append("): ")
+                        .append(health.summary(now)).append('\n');
             }
         }
+        return report.append(ids.size()).append(" devices, ").append(down).append(" down").toString();
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * secure_control_protocol
+ * ScpBytes Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Helpers that work directly on received bytes, so responses can be checked before any object is built
+final class ScpBytes {
+
+    private static final int BASE64_GROUP = 4;
+    private static final int BITS_PER_CHAR = 6;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int HEX_DIGIT_OFFSET = 10;
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private ScpBytes() {
+        // this class has only static methods
+    }
+
+    static Reader reader(byte[] data, int offset, int length) {
+        return new InputStreamReader(new ByteArrayInputStream(data, offset, length), StandardCharsets.UTF_8);
+    }
+
+    // Finds the string value of a top level field of a JSON object, range receives its raw offset and length.
+    // Returns false if the field is missing or not a string.
+    static boolean stringField(byte[] data, int offset, int length, String name, int[] range) {
+        int end = offset + length;
+        int position = skipWhitespace(data, offset, end);
+        if (position >= end || data[position] != '{') {
+            return false;
+        }
+        position++;
+        while (true) {
+            position = skipWhitespace(data, position, end);
+            if (position >= end || data[position] != '"') {
+                return false;
+            }
+            int keyEnd = stringEnd(data, position + 1, end);
+            if (keyEnd < 0) {
+                return false;
+            }
+            boolean matches = equalsAscii(data, position + 1, keyEnd, name);
+            position = skipWhitespace(data, keyEnd + 1, end);
+            if (position >= end || data[position] != ':') {
+                return false;
+            }
+            position = skipWhitespace(data, position + 1, end);
+            if (matches) {
+                if (position >= end || data[position] != '"') {
+                    return false;
+                }
+                int valueEnd = stringEnd(data, position + 1, end);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                range[0] = position + 1;
+                range[1] = valueEnd - position - 1;
+                return true;
+            }
+            position = skipValue(data, position, end);
+            if (position < 0) {
+                return false;
+            }
+            position = skipWhitespace(data, position, end);
+            if (position >= end || data[position] != ',') {
+                return false;
+            }
+            position++;
+        }
+    }
+
+    // Decodes standard padded Base64 over itself, returns the decoded length or -1 if the input is invalid
+    static int decodeBase64InPlace(byte[] data, int offset, int length) {
+        if (length % BASE64_GROUP != 0) {
+            return -1;
+        }
+        int written = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int padding = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i];
+            if (c == '=' && i >= offset + length - 2) {
+                padding++;
+                continue;
+            }
+            int value = c >= 0 && c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value < 0 || padding > 0) {
+                return -1;
+            }
+            bits = (bits << BITS_PER_CHAR) | value;
+            bitCount += BITS_PER_CHAR;
+            if (bitCount >= BITS_PER_BYTE) {
+                bitCount -= BITS_PER_BYTE;
+                // the write position never overtakes the read position
+                data[offset + written++] = (byte) ((bits >> bitCount) & BYTE_MASK);
+            }
+        }
+        return written;
+    }
+
+    // Resolves the escapes of a raw JSON string value over itself, returns the new length.
+    // Returns -1 for unicode escapes, they never occur in the fields read this way.
+    static int unescapeInPlace(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int position = offset;
+        int written = offset;
+        while (position < end) {
+            byte c = data[position++];
+            if (c == '\\') {
+                if (position >= end) {
+                    return -1;
+                }
+                c = data[position++];
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        break;
+                    default:
+                        return -1;
+                }
+            }
+            data[written++] = c;
+        }
+        return written - offset;
+    }
+
+    // Decodes hex digits of either case, returns null if the input is invalid
+    static byte[] hexToBytes(byte[] data, int offset, int length) {
+        if (length % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = hexValue(data[offset + 2 * i]);
+            int low = hexValue(data[offset + 2 * i + 1]);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << (BITS_PER_BYTE / 2)) | low);
+        }
+        return bytes;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + HEX_DIGIT_OFFSET;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + HEX_DIGIT_OFFSET;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] data, int position, int end) {
+        while (position < end && (data[position] == ' ' || data[position] == '\t' || data[position] == '\r'
+                || data[position] == '\n')) {
+            position++;
+        }
+        return position;
+    }
+
+    // Returns the position of the closing quote of a string starting at position, -1 if there is none
+    private static int stringEnd(byte[] data, int position, int end) {
+        while (position < end) {
+            if (data[position] == '\\') {
+                position += 2;
+            } else if (data[position] == '"') {
+                return position;
+            } else {
+                position++;
+            }
+        }
+        return -1;
+    }
+
+    // Skips a string, number, literal, object or array, returns the position behind it or -1
+    private static int skipValue(byte[] data, int position, int end) {
+        int depth = 0;
+        while (position < end) {
+            byte c = data[position];
+            if (c == '"') {
+                position = stringEnd(data, position + 1, end);
+                if (position < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return position;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return position;
+            }
+            position++;
+            if (depth == 0 && (c == '"' || c == '}' || c == ']')) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equalsAscii(byte[] data, int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (data[from + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -7,8 +7,14 @@
 package org.houseos.scp4j;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import org.houseos.scp4j.util.JsonStorage;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.houseos.scp4j.ScpEvents.Level;
+import org.houseos.scp4j.util.IPRangeSet;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -18,8 +24,15 @@ import picocli.CommandLine.Option;
         subcommands = {
             ControlCommand.class,
             DiscoverCommand.class,
+            DistributedDiscoverCommand.class,
+            GroupControlCommand.class,
+            HealthCommand.class,
+            MetricsCommand.class,
             ProvisionCommand.class,
             ResetCommand.class,
+            ScanWorkerCommand.class,
+            ServeCommand.class,
+            SimulateCommand.class,
             UpdateCommand.class
         }
 )
@@ -28,11 +41,86 @@ public final class ScpClient implements Runnable {
     @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
     boolean usageHelpRequested;
 
+    @Option(names = {"-C", "--connect"}, paramLabel = "<port>",
+            description = "Run the command in the server listening on this local port.")
+    Integer connectPort;
+
+    @Option(names = {"-M", "--metrics-file"}, paramLabel = "<file>",
+            description = "Write the metrics of the command in the Prometheus text format to this file.")
+    Path metricsFile;
+
+    @Option(names = {"-L", "--log-level"}, paramLabel = "<level>",
+            description = "Lowest level of the printed events (${COMPLETION-CANDIDATES}), INFO by default.")
+    Level logLevel;
+
+    @Option(names = {"-E", "--event-log"}, paramLabel = "<file>",
+            description = "Append all events as JSON lines to this file.")
+    Path eventLog;
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        new CommandLine(new ScpClient()).execute(args);
+        ScpClient client = new ScpClient();
+        CommandLine commandLine = new CommandLine(client);
+        commandLine.setCaseInsensitiveEnumValuesAllowed(true);
+        commandLine.setExecutionStrategy(parseResult -> {
+            Integer helpExitCode = CommandLine.executeHelpRequest(parseResult);
+            if (helpExitCode != null) {
+                return helpExitCode;
+            }
+            if (client.connectPort != null && parseResult.subcommand() != null) {
+                if (client.metricsFile != null) {
+                    System.out.println("The metrics of the server are printed by the metrics command.");
+                    return CommandLine.ExitCode.USAGE;
+                }
+                if (client.logLevel != null || client.eventLog != null) {
+                    System.out.println("The log level and the event log of the server are set when starting it.");
+                    return CommandLine.ExitCode.USAGE;
+                }
+                return ScpServer.forward(client.connectPort, forwardedArgs(parseResult.subcommand()));
+            }
+            if (client.logLevel != null) {
+                ScpEvents.setConsoleLevel(client.logLevel);
+            }
+            if (client.eventLog != null) {
+                try {
+                    ScpEvents.addOutput(new ScpEvents.JsonLinesOutput(client.eventLog, Level.DEBUG));
+                } catch (IOException ex) {
+                    System.out.println("Can't open the event log " + client.eventLog + ": " + ex.getMessage());
+                    return CommandLine.ExitCode.USAGE;
+                }
+            }
+            if (Boolean.getBoolean("scp4j.metrics.jmx")) {
+                ScpMetrics.registerJmx();
+            }
+            int exitCode = new CommandLine.RunLast().execute(parseResult);
+            ScpEvents.flush();
+            if (client.metricsFile != null) {
+                try {
+                    ScpMetrics.writePrometheusText(client.metricsFile);
+                } catch (IOException ex) {
+                    System.out.println("Can't write the metrics to " + client.metricsFile + ": " + ex.getMessage());
+                }
+            }
+            return exitCode;
+        });
+        System.exit(commandLine.execute(args));
+    }
+
+    // Rebuilds the arguments of the subcommand for the server, relative paths are resolved here
+    private static List<String> forwardedArgs(CommandLine.ParseResult subcommand) {
+        List<String> args = new ArrayList<>();
+        args.add(subcommand.commandSpec().name());
+        for (CommandLine.Model.OptionSpec option : subcommand.matchedOptions()) {
+            for (String value : option.stringValues()) {
+                if ("--json".equals(option.longestName())) {
+                    value = Paths.get(value).toAbsolutePath().normalize().toString();
+                }
+                args.add(option.longestName() + "=" + value);
+            }
+        }
+        return args;
     }
 
     @Override
@@ -41,17 +129,152 @@ public final class ScpClient implements Runnable {
     }
 }
 
+@Command(name = "serve", description = "Keep running and execute the commands of clients started with --connect.")
+class ServeCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-p", "--port"}, defaultValue = "" + ScpServer.DEFAULT_PORT,
+            description = "Local port to accept commands on.")
+    private int port;
+
+    @Option(names = {"-j", "--json"}, required = true,
+            description = "Path to the JSON file containing all known devices, the only one the commands may use.")
+    private String jsonPath;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            try {
+                System.out.println("scp_client Serve");
+                new ScpServer(port, jsonPath).serve();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
+
+@Command(name = "metrics", description = "Print the message and scan metrics in the Prometheus text format.")
+class MetricsCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            System.out.print(ScpMetrics.prometheusText());
+        }
+    }
+}
+
+@Command(name = "simulate", description = "Simulate SCP devices on local IP addresses for load tests.")
+class SimulateCommand implements Runnable {
+
+    // interval of the statistics output while devices are used
+    private static final int STATS_INTERVAL = 10000;
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-i", "--ipaddress"}, required = true, split = ",",
+            description = "IP addresses of the simulated devices: an address from the subnet given by --mask, "
+                    + "a CIDR block (127.1.0.0/22), a range (127.1.0.10-127.1.0.20) or a single address.")
+    private List<String> ipAddresses;
+
+    @Option(names = {"-m", "--mask"}, description = "The subnet mask of the simulated network.")
+    private Integer mask;
+
+    @Option(names = {"-x", "--exclude"}, split = ",",
+            description = "IP addresses, CIDR blocks or ranges without a simulated device.")
+    private List<String> excludes;
+
+    @Option(names = {"-l", "--latency"}, defaultValue = "0",
+            description = "Milliseconds every response is delayed.")
+    private int latency;
+
+    @Option(names = {"-J", "--jitter"}, defaultValue = "0",
+            description = "Maximum random milliseconds added to the latency.")
+    private int jitter;
+
+    @Option(names = {"-e", "--error-rate"}, defaultValue = "0",
+            description = "Share of secure-control requests answered with an HTTP error, 0 to 1.")
+    private double errorRate;
+
+    @Option(names = {"-d", "--drop-rate"}, defaultValue = "0",
+            description = "Share of requests after which the connection is closed without a response, 0 to 1.")
+    private double dropRate;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            System.out.println("scp_client Simulate");
+            IPRangeSet addresses = DiscoverCommand.addresses(ipAddresses, mask, excludes);
+            if (addresses == null) {
+                return;
+            }
+            ScpDeviceSimulator.Behavior behavior;
+            try {
+                behavior = new ScpDeviceSimulator.Behavior(latency, jitter, errorRate, dropRate);
+            } catch (IllegalArgumentException ex) {
+                System.out.println(ex.getMessage());
+                return;
+            }
+            try (ScpDeviceSimulator simulator = new ScpDeviceSimulator(addresses, behavior)) {
+                simulator.start();
+                System.out.println("Simulating " + simulator.devices().size() + " devices on " + addresses
+                        + ", " + behavior);
+                long requests = 0;
+                while (true) {
+                    Thread.sleep(STATS_INTERVAL);
+                    ScpDeviceSimulator.Stats stats = simulator.stats();
+                    if (stats.requests != requests) {
+                        requests = stats.requests;
+                        System.out.println("Simulator " + stats);
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
 @Command(name = "discover", description = "Discover all devices in a given IP range.")
 class DiscoverCommand implements Runnable {
 
     @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
     boolean usageHelpRequested;
 
-    @Option(names = {"-i", "--ipaddress"}, required = true, description = "IP address from the subnet to be scanned.")
-    private String ipAddress;
+    @Option(names = {"-i", "--ipaddress"}, required = true, split = ",",
+            description = "IP addresses to scan: an address from the subnet given by --mask, "
+                    + "a CIDR block (192.168.1.0/24), a range (192.168.1.10-192.168.1.20) or a single address.")
+    private List<String> ipAddresses;
+
+    @Option(names = {"-m", "--mask"}, description = "The subnet mask of the network to scan.")
+    private Integer mask;
+
+    @Option(names = {"-x", "--exclude"}, split = ",",
+            description = "IP addresses, CIDR blocks or ranges not to scan.")
+    private List<String> excludes;
+
+    @Option(names = {"-f", "--max-in-flight"}, defaultValue = "1024",
+            description = "Maximum number of discovery probes in flight.")
+    private int maxInFlight;
 
-    @Option(names = {"-m", "--mask"}, required = true, description = "The subnet mask of the network to scan.")
-    private String mask;
+    @Option(names = {"-r", "--max-rate"}, defaultValue = "0",
+            description = "Maximum number of discovery probes per second, 0 for no limit.")
+    private int maxRate;
 
     @Override
     public void run() {
@@ -59,9 +282,32 @@ class DiscoverCommand implements Runnable {
             CommandLine.usage(this, System.out);
         } else {
             System.out.println("scp_client Discover");
+            IPRangeSet addresses = addresses(ipAddresses, mask, excludes);
+            if (addresses == null) {
+                return;
+            }
             Scp scp = Scp.getInstance();
-            scp.doDiscover(ipAddress, mask);
-            System.out.println(scp.newDevices);
+            scp.discoveryInFlightLimit = maxInFlight;
+            scp.discoveryRateLimit = maxRate;
+            scp.doDiscover(addresses, device -> ScpEvents.log(Level.INFO, ScpEvents.DISCOVER,
+                    "Found device: " + device.toJson()));
+            printRoundTripTimes();
+        }
+    }
+
+    // The addresses to scan, null after printing the reason if they are invalid
+    static IPRangeSet addresses(List<String> ipAddresses, Integer mask, List<String> excludes) {
+        try {
+            return IPRangeSet.parse(ipAddresses, mask, excludes);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            return null;
+        }
+    }
+
+    static void printRoundTripTimes() {
+        for (ScpRttEstimator.Estimate estimate : ScpMessageSender.subnetRoundTripTimes()) {
+            System.out.println("Round trip time of " + estimate);
         }
     }
 }
@@ -72,11 +318,25 @@ class ProvisionCommand implements Runnable {
     @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
     boolean usageHelpRequested;
 
-    @Option(names = {"-i", "--ipaddress"}, required = true, description = "IP address from the subnet to be scanned.")
-    private String ipAddress;
+    @Option(names = {"-i", "--ipaddress"}, required = true, split = ",",
+            description = "IP addresses to scan: an address from the subnet given by --mask, "
+                    + "a CIDR block (192.168.1.0/24), a range (192.168.1.10-192.168.1.20) or a single address.")
+    private List<String> ipAddresses;
 
-    @Option(names = {"-m", "--mask"}, required = true, description = "The subnet mask of the network to scan.")
-    private String mask;
+    @Option(names = {"-m", "--mask"}, description = "The subnet mask of the network to scan.")
+    private Integer mask;
+
+    @Option(names = {"-x", "--exclude"}, split = ",",
+            description = "IP addresses, CIDR blocks or ranges not to scan.")
+    private List<String> excludes;
+
+    @Option(names = {"-f", "--max-in-flight"}, defaultValue = "1024",
+            description = "Maximum number of discovery probes in flight.")
+    private int maxInFlight;
+
+    @Option(names = {"-r", "--max-rate"}, defaultValue = "0",
+            description = "Maximum number of discovery probes per second, 0 for no limit.")
+    private int maxRate;
 
     @Option(names = {"-s", "--ssid"}, required = true,
             description = "The SSID of the Wifi the device should connect to.")
@@ -89,14 +349,35 @@ class ProvisionCommand implements Runnable {
             + "JSON file to be able to load them for the next command.")
     private String jsonPath;
 
+    @Option(names = {"-n", "--parallelism"}, defaultValue = "8",
+            description = "Maximum number of devices provisioned at the same time.")
+    private int parallelism;
+
     @Override
     public void run() {
         if (usageHelpRequested) {
             CommandLine.usage(this, System.out);
         } else {
-            System.out.println("scp_client Provision");
-            Scp scp = Scp.getInstance();
-            scp.doDiscoverThenDoProvisioning(ipAddress, mask, ssid, password, jsonPath);
+            try {
+                System.out.println("scp_client Provision");
+                IPRangeSet addresses = DiscoverCommand.addresses(ipAddresses, mask, excludes);
+                if (addresses == null) {
+                    return;
+                }
+                Scp scp = Scp.getInstance();
+                scp.openDeviceStore(jsonPath);
+                scp.discoveryInFlightLimit = maxInFlight;
+                scp.discoveryRateLimit = maxRate;
+                List<ScpProvisioningPipeline.Job> jobs = scp.doDiscoverThenDoProvisioning(addresses, ssid,
+                        password, parallelism, device -> ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, device,
+                                "Found device"));
+                for (ScpProvisioningPipeline.Job job : jobs) {
+                    System.out.println(job);
+                }
+                scp.closeDeviceStore();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 }
@@ -122,9 +403,9 @@ class ResetCommand implements Runnable {
             try {
                 System.out.println("scp_client reset");
                 Scp scp = Scp.getInstance();
-                String json = JsonStorage.readFile(jsonPath, StandardCharsets.UTF_8);
-                scp.knownDevicesFromJson(json);
+                scp.loadKnownDevice(jsonPath, deviceId);
                 scp.resetToDefault(deviceId);
+                scp.closeDeviceStore();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -156,9 +437,211 @@ class ControlCommand implements Runnable {
             try {
                 System.out.println("scp_client control");
                 Scp scp = Scp.getInstance();
-                String json = JsonStorage.readFile(jsonPath, StandardCharsets.UTF_8);
-                scp.knownDevicesFromJson(json);
+                scp.loadKnownDevice(jsonPath, deviceId);
                 scp.control(deviceId, command);
+                scp.closeDeviceStore();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
+
+@Command(name = "group-control", description = "Control a group of devices in parallel.")
+class GroupControlCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-c", "--command"}, required = true, description = "The command to send to the devices.")
+    private String command;
+
+    @Option(names = {"-d", "--deviceId"}, split = ",", description = "The IDs of the devices to control.")
+    private List<String> deviceIds;
+
+    @Option(names = {"-t", "--deviceType"}, description = "Control all known devices of this type.")
+    private String deviceType;
+
+    @Option(names = {"-n", "--parallelism"}, defaultValue = "32",
+            description = "Maximum number of devices controlled at the same time.")
+    private int parallelism;
+
+    @Option(names = {"-j", "--json"}, required = true,
+            description = "Path to the JSON file containing all known devices.")
+    private String jsonPath;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else if (deviceIds == null && deviceType == null) {
+            System.out.println("Either device IDs or a device type are required.");
+            CommandLine.usage(this, System.out);
+        } else {
+            try {
+                System.out.println("scp_client group-control");
+                Scp scp = Scp.getInstance();
+                scp.openDeviceStore(jsonPath);
+                System.out.println(scp.groupControl(deviceIds, deviceType, command, parallelism));
+                scp.closeDeviceStore();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
+
+@Command(name = "health", description = "Print the health of known devices and the state of their circuit breakers.")
+class HealthCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-d", "--deviceId"}, split = ",",
+            description = "The IDs of the devices to print, all known devices by default.")
+    private List<String> deviceIds;
+
+    @Option(names = {"-D", "--down"}, description = "Only print devices whose circuit breaker is not closed.")
+    private boolean downOnly;
+
+    @Option(names = {"-j", "--json"}, required = true,
+            description = "Path to the JSON file containing all known devices.")
+    private String jsonPath;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            try {
+                System.out.println("scp_client health");
+                Scp scp = Scp.getInstance();
+                scp.openDeviceStore(jsonPath);
+                System.out.println(scp.healthReport(deviceIds, downOnly));
+                scp.closeDeviceStore();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
+
+@Command(name = "distributed-discover",
+        description = "Discover devices in large IP ranges with several scan worker processes.")
+class DistributedDiscoverCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-i", "--ipaddress"}, required = true, split = ",",
+            description = "IP addresses to scan: an address from the subnet given by --mask, "
+                    + "a CIDR block (192.168.1.0/24), a range (192.168.1.10-192.168.1.20) or a single address.")
+    private List<String> ipAddresses;
+
+    @Option(names = {"-m", "--mask"}, description = "The subnet mask of the network to scan.")
+    private Integer mask;
+
+    @Option(names = {"-x", "--exclude"}, split = ",",
+            description = "IP addresses, CIDR blocks or ranges not to scan.")
+    private List<String> excludes;
+
+    @Option(names = {"-j", "--json"}, required = true,
+            description = "Path to the JSON file containing all known devices.")
+    private String jsonPath;
+
+    @Option(names = {"-s", "--shard-size"}, defaultValue = "" + ScpScanCoordinator.DEFAULT_SHARD_SIZE,
+            description = "Number of IP addresses handed to a worker at once.")
+    private long shardSize;
+
+    @Option(names = {"-b", "--bind"}, defaultValue = "127.0.0.1",
+            description = "Address the workers connect to, 0.0.0.0 for workers on other hosts.")
+    private String bindAddress;
+
+    @Option(names = {"-P", "--port"}, defaultValue = "" + ScpScanCoordinator.DEFAULT_PORT,
+            description = "Port the workers connect to.")
+    private int port;
+
+    @Option(names = {"-w", "--local-workers"}, defaultValue = "0",
+            description = "Number of worker processes to start on this host.")
+    private int localWorkers;
+
+    @Option(names = {"-f", "--max-in-flight"}, defaultValue = "1024",
+            description = "Maximum number of discovery probes in flight per local worker.")
+    private int maxInFlight;
+
+    @Option(names = {"-r", "--max-rate"}, defaultValue = "0",
+            description = "Maximum number of discovery probes per second per local worker, 0 for no limit.")
+    private int maxRate;
+
+    @Option(names = {"-t", "--worker-timeout"}, defaultValue = "" + ScpScanCoordinator.DEFAULT_WORKER_TIMEOUT,
+            description = "Seconds without any connected worker before the scan fails, 0 to wait forever.")
+    private int workerTimeout;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            System.out.println("scp_client distributed discover");
+            IPRangeSet addresses = DiscoverCommand.addresses(ipAddresses, mask, excludes);
+            if (addresses == null) {
+                return;
+            }
+            ScpScanCoordinator coordinator = null;
+            try {
+                Scp scp = Scp.getInstance();
+                scp.openDeviceStore(jsonPath);
+                coordinator = new ScpScanCoordinator(addresses, shardSize, InetAddress.getByName(bindAddress), port);
+                coordinator.startLocalWorkers(localWorkers, maxInFlight, maxRate);
+                boolean complete = scp.doDistributedDiscover(coordinator, TimeUnit.SECONDS.toMillis(workerTimeout),
+                        device -> ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, device,
+                                "Found device at " + device.ipAddress));
+                scp.closeDeviceStore();
+                if (!complete) {
+                    System.out.println("Distributed discover failed, the found devices are stored.");
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                if (coordinator != null) {
+                    coordinator.stopLocalWorkers();
+                }
+            }
+        }
+    }
+}
+
+@Command(name = "scan-worker", description = "Scan the IP ranges handed out by distributed-discover.")
+class ScanWorkerCommand implements Runnable {
+
+    @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
+    boolean usageHelpRequested;
+
+    @Option(names = {"-c", "--coordinator"}, required = true,
+            description = "Host and port of distributed-discover, e.g. 192.168.1.2:19318.")
+    private String coordinator;
+
+    @Option(names = {"-f", "--max-in-flight"}, defaultValue = "1024",
+            description = "Maximum number of discovery probes in flight.")
+    private int maxInFlight;
+
+    @Option(names = {"-r", "--max-rate"}, defaultValue = "0",
+            description = "Maximum number of discovery probes per second, 0 for no limit.")
+    private int maxRate;
+
+    @Override
+    public void run() {
+        if (usageHelpRequested) {
+            CommandLine.usage(this, System.out);
+        } else {
+            int colon = coordinator.lastIndexOf(':');
+            try {
+                String host = colon < 0 ? coordinator : coordinator.substring(0, colon);
+                int port = colon < 0 ? ScpScanCoordinator.DEFAULT_PORT
+                        : Integer.parseInt(coordinator.substring(colon + 1));
+                new ScpScanWorker(host, port, maxInFlight, maxRate).run();
+            } catch (NumberFormatException ex) {
+                System.out.println("Invalid coordinator address " + coordinator);
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -172,16 +655,34 @@ class UpdateCommand implements Runnable {
     @Option(names = {"-h", "--help"}, description = "Print this usage information.", usageHelp = true)
     boolean usageHelpRequested;
 
-    @Option(names = {"-i", "--ipaddress"}, required = true, description = "IP address from the subnet to be scanned.")
-    private String ipAddress;
+    @Option(names = {"-i", "--ipaddress"}, required = true, split = ",",
+            description = "IP addresses to scan: an address from the subnet given by --mask, "
+                    + "a CIDR block (192.168.1.0/24), a range (192.168.1.10-192.168.1.20) or a single address.")
+    private List<String> ipAddresses;
+
+    @Option(names = {"-m", "--mask"}, description = "The subnet mask of the network to scan.")
+    private Integer mask;
 
-    @Option(names = {"-m", "--mask"}, required = true, description = "The subnet mask of the network to scan.")
-    private String mask;
+    @Option(names = {"-x", "--exclude"}, split = ",",
+            description = "IP addresses, CIDR blocks or ranges not to scan.")
+    private List<String> excludes;
+
+    @Option(names = {"-f", "--max-in-flight"}, defaultValue = "1024",
+            description = "Maximum number of discovery probes in flight.")
+    private int maxInFlight;
+
+    @Option(names = {"-r", "--max-rate"}, defaultValue = "0",
+            description = "Maximum number of discovery probes per second, 0 for no limit.")
+    private int maxRate;
 
     @Option(names = {"-j", "--json"}, required = true,
             description = "Path to the JSON file containing all known devices.")
     private String jsonPath;
 
+    @Option(names = {"-a", "--full-sweep"},
+            description = "Scan the whole IP range instead of checking the last known IP addresses first.")
+    private boolean fullSweep;
+
     @Override
     public void run() {
         if (usageHelpRequested) {
@@ -189,11 +690,18 @@ class UpdateCommand implements Runnable {
         } else {
             try {
                 System.out.println("scp_client update");
+                IPRangeSet addresses = DiscoverCommand.addresses(ipAddresses, mask, excludes);
+                if (addresses == null) {
+                    return;
+                }
                 Scp scp = Scp.getInstance();
-                String json = JsonStorage.readFile(jsonPath,
-                        StandardCharsets.UTF_8);
-                scp.knownDevicesFromJson(json);
-                scp.doUpdate(ipAddress, mask, jsonPath);
+                scp.openDeviceStore(jsonPath);
+                scp.discoveryInFlightLimit = maxInFlight;
+                scp.discoveryRateLimit = maxRate;
+                scp.doUpdate(addresses, fullSweep, device -> ScpEvents.log(Level.INFO, ScpEvents.DISCOVER, device,
+                        "Found device at " + device.ipAddress));
+                DiscoverCommand.printRoundTripTimes();
+                scp.closeDeviceStore();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -0,0 +1,210 @@
+/*
+ * secure_control_protocol
+ * ScpConnectionPool Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keep-alive connections to the devices, keyed by IP address and port.
+// The most recently released connection is reused first, so consecutive requests
+// to the same device (e.g. NVCN fetch and command) ride the same socket.
+final class ScpConnectionPool {
+
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    static final long DEFAULT_IDLE_TIMEOUT = 5000;
+
+    static final class Connection {
+
+        final String host;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        // true if this connection already carried a request before the current one
+        boolean reused;
+        long lastUsed;
+        // time the TCP connect took
+        long connectNanos;
+
+        private Connection(String host, Socket socket) throws IOException {
+            this.host = host;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+    }
+
+    static final class Stats {
+
+        final long created;
+        final long reused;
+        final long evicted;
+        final long closed;
+        final int active;
+        final int idle;
+
+        Stats(long created, long reused, long evicted, long closed, int active, int idle) {
+            this.created = created;
+            this.reused = reused;
+            this.evicted = evicted;
+            this.closed = closed;
+            this.active = active;
+            this.idle = idle;
+        }
+
+        @Override
+        public String toString() {
+            return "created: " + created + ", reused: " + reused + ", evicted: " + evicted + ", closed: " + closed
+                    + ", active: " + active + ", idle: " + idle;
+        }
+    }
+
+    private static final class Host {
+
+        final Semaphore permits;
+        final Deque<Connection> idle = new ArrayDeque<>();
+
+        Host(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeout;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    ScpConnectionPool(int maxConnectionsPerHost, long idleTimeout) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("at least one connection per host is needed");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scp-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns an idle connection to the host or opens a new one.
+    // Blocks while the host already has the maximum number of connections in use.
+    Connection borrow(String ip, int port, int connectTimeout) throws IOException {
+        String key = ip + ":" + port;
+        Host host = hosts.computeIfAbsent(key, k -> new Host(maxConnectionsPerHost));
+        host.permits.acquireUninterruptibly();
+        try {
+            Connection idleConnection;
+            while ((idleConnection = pollIdle(host)) != null) {
+                if (isUsable(idleConnection)) {
+                    reused.incrementAndGet();
+                    idleConnection.reused = true;
+                    return idleConnection;
+                }
+                close(idleConnection);
+                evicted.incrementAndGet();
+            }
+            Socket socket = new Socket();
+            try {
+                long start = System.nanoTime();
+                socket.connect(new InetSocketAddress(ip, port), connectTimeout);
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(key, socket);
+                connection.connectNanos = System.nanoTime() - start;
+                created.incrementAndGet();
+                return connection;
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        } catch (IOException | RuntimeException ex) {
+            host.permits.release();
+            throw ex;
+        }
+    }
+
+    // Hands the connection back, it is kept for the next request if reusable is true
+    void release(Connection connection, boolean reusable) {
+        Host host = hosts.get(connection.host);
+        if (reusable && !connection.socket.isClosed()) {
+            connection.lastUsed = System.currentTimeMillis();
+            synchronized (host) {
+                host.idle.push(connection);
+            }
+        } else {
+            close(connection);
+        }
+        host.permits.release();
+    }
+
+    Stats stats() {
+        int active = 0;
+        int idle = 0;
+        for (Host host : hosts.values()) {
+            synchronized (host) {
+                idle += host.idle.size();
+            }
+            active += maxConnectionsPerHost - host.permits.availablePermits();
+        }
+        return new Stats(created.get(), reused.get(), evicted.get(), closed.get(), active, idle);
+    }
+
+    private Connection pollIdle(Host host) {
+        synchronized (host) {
+            return host.idle.poll();
+        }
+    }
+
+    private boolean isUsable(Connection connection) {
+        return !connection.socket.isClosed()
+                && System.currentTimeMillis() - connection.lastUsed < idleTimeout;
+    }
+
+    private void evictIdle() {
+        for (Host host : hosts.values()) {
+            synchronized (host) {
+                Iterator<Connection> connections = host.idle.iterator();
+                while (connections.hasNext()) {
+                    Connection connection = connections.next();
+                    if (!isUsable(connection)) {
+                        connections.remove();
+                        close(connection);
+                        evicted.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.socket.close();
+        } catch (IOException ex) {
+            // nothing left to clean up
+        }
+        closed.incrementAndGet();
+    }
+}
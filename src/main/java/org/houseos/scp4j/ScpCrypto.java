@@ -10,10 +10,13 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -30,12 +33,65 @@ public final class ScpCrypto {
 
     private static final SecureRandom RANDOM = new SecureRandom();
 
-    private static final String DEFAULT_PASSWORD = "01234567890123456789012345678901";
+    static final String DEFAULT_PASSWORD = "01234567890123456789012345678901";
 
     private static final String HMAC_SHA512 = "HmacSHA512";
     private static final String ENCRYPT_ALGO = "ChaCha20-Poly1305/None/NoPadding";
     private static final int NONCE_LEN = 12; // 96 bits, 12 bytes
     private static final int MAC_LEN = 16; // 128 bits, 16 bytes
+    private static final int MAX_CACHED_KEYS = 100000;
+
+    private static final ScpCrypto INSTANCE = new ScpCrypto();
+
+    static {
+        // register the provider once instead of on every message
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    // Cipher and Mac instances are expensive to look up and not thread safe, they are borrowed from small pools
+    private static final int MAX_IDLE_CONTEXTS = 2 * Runtime.getRuntime().availableProcessors();
+    // A ChaCha20 Cipher refuses the key and nonce of its previous init, so a simulated device in the same
+    // process must not decrypt a message with the Cipher that encrypted it
+    private static final ScpObjectPool<Cipher> ENCRYPT_CIPHERS = new ScpObjectPool<>(ScpCrypto::newCipher,
+            MAX_IDLE_CONTEXTS);
+    private static final ScpObjectPool<Cipher> DECRYPT_CIPHERS = new ScpObjectPool<>(ScpCrypto::newCipher,
+            MAX_IDLE_CONTEXTS);
+    private static final ScpObjectPool<HmacContext> HMACS = new ScpObjectPool<>(() -> {
+        try {
+            return new HmacContext(Mac.getInstance(HMAC_SHA512));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }, MAX_IDLE_CONTEXTS);
+
+    // Key specs per password, derived once
+    private static final Map<String, SecretKeySpec> ENCRYPTION_KEYS = new ConcurrentHashMap<>();
+    private static final Map<String, SecretKeySpec> HMAC_KEYS = new ConcurrentHashMap<>();
+
+    private static final class HmacContext {
+
+        final Mac mac;
+        SecretKeySpec key;
+
+        HmacContext(Mac mac) {
+            this.mac = mac;
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ENCRYPT_ALGO);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // All state is shared, callers can use this instance instead of creating their own
+    static ScpCrypto getInstance() {
+        return INSTANCE;
+    }
 
     ScpJson encryptThenEncode(String key, String message) {
         EncryptedPayload encryptedPayload = encryptMessage(key, message);
@@ -43,25 +99,26 @@ public final class ScpCrypto {
     }
 
     EncryptedPayload encryptMessage(String key, String plainText) {
-        Security.addProvider(new BouncyCastleProvider());
         try {
             // Encode Key
-            byte[] secretKeyBytes = key.getBytes(StandardCharsets.UTF_8);
-            SecretKey secretKey = new SecretKeySpec(secretKeyBytes, 0, secretKeyBytes.length, "ChaCha20");
+            SecretKey secretKey = keySpec(ENCRYPTION_KEYS, key, "ChaCha20");
             //Encode encrypted text
             byte[] clearText = plainText.getBytes(StandardCharsets.UTF_8);
             // Encrypt
             byte[] nonce = new byte[NONCE_LEN];
             RANDOM.nextBytes(nonce);
 
-            Cipher cipher = Cipher.getInstance(ENCRYPT_ALGO);
-
             // IV, initialization value with nonce
             IvParameterSpec iv = new IvParameterSpec(nonce);
 
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, iv);
-
-            byte[] encryptedText = cipher.doFinal(clearText);
+            byte[] encryptedText;
+            Cipher cipher = ENCRYPT_CIPHERS.borrow();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, secretKey, iv);
+                encryptedText = cipher.doFinal(clearText);
+            } finally {
+                ENCRYPT_CIPHERS.release(cipher);
+            }
 
             ByteBuffer bb = ByteBuffer.wrap(encryptedText);
 
@@ -83,10 +140,6 @@ public final class ScpCrypto {
                     base64Encode(encryptedText),
                     base64Encode(nonce)
             );
-        } catch (NoSuchAlgorithmException ex) {
-            Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (NoSuchPaddingException ex) {
-            Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
         } catch (InvalidKeyException ex) {
             Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
         } catch (InvalidAlgorithmParameterException ex) {
@@ -95,11 +148,24 @@ public final class ScpCrypto {
             Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
         } catch (BadPaddingException ex) {
             Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (IllegalStateException ex) {
+            Logger.getLogger(ScpCrypto.class.getName()).log(Level.SEVERE, null, ex);
         }
         return null;
     }
 
     boolean verifyHMAC(String content, String hmac, String password) {
+        if (hmac == null) {
+            return false;
+        }
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] hmacBytes = hmac.getBytes(StandardCharsets.US_ASCII);
+        return verifyHMAC(contentBytes, 0, contentBytes.length, hmacBytes, 0, hmacBytes.length, password);
+    }
+
+    // Checks the hex encoded HMAC over the raw content bytes, the comparison takes constant time
+    boolean verifyHMAC(byte[] content, int contentOffset, int contentLength,
+            byte[] hmacHex, int hmacOffset, int hmacLength, String password) {
         String secretKey;
         if (password == null) {
             secretKey = DEFAULT_PASSWORD;
@@ -108,18 +174,75 @@ public final class ScpCrypto {
         }
 
         try {
-            final byte[] byteKey = secretKey.getBytes(StandardCharsets.UTF_8);
-            Mac sha512Hmac = Mac.getInstance(HMAC_SHA512);
-            sha512Hmac.init(new SecretKeySpec(byteKey, HMAC_SHA512));
-            byte[] macData = sha512Hmac.doFinal(content.getBytes(StandardCharsets.UTF_8));
+            byte[] expected = ScpBytes.hexToBytes(hmacHex, hmacOffset, hmacLength);
+            if (expected == null) {
+                return false;
+            }
+            byte[] macData = hmac(content, contentOffset, contentLength, secretKey);
 
-            return bytesToHex(macData).equals(hmac);
-        } catch (IllegalStateException | InvalidKeyException | NoSuchAlgorithmException e) {
+            return MessageDigest.isEqual(macData, expected);
+        } catch (IllegalStateException | InvalidKeyException e) {
             e.printStackTrace();
         }
         return false;
     }
 
+    // Hex encoded HMAC like the devices send it, used by the device simulator
+    String hmacHex(String content, String password) {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        try {
+            return bytesToHex(hmac(contentBytes, 0, contentBytes.length, password));
+        } catch (InvalidKeyException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] hmac(byte[] content, int contentOffset, int contentLength, String password)
+            throws InvalidKeyException {
+        SecretKeySpec key = keySpec(HMAC_KEYS, password, HMAC_SHA512);
+        HmacContext context = HMACS.borrow();
+        try {
+            // doFinal resets the Mac, init is only needed when the key changes
+            if (context.key != key) {
+                context.key = null;
+                context.mac.init(key);
+                context.key = key;
+            }
+            context.mac.update(content, contentOffset, contentLength);
+            return context.mac.doFinal();
+        } finally {
+            HMACS.release(context);
+        }
+    }
+
+    // Device side of encryptMessage: decrypts ciphertext + Poly1305 MAC,
+    // returns null if the message was not encrypted with this key
+    String decryptMessage(String key, byte[] nonce, byte[] encryptedTextWithMac) {
+        Cipher cipher = DECRYPT_CIPHERS.borrow();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, keySpec(ENCRYPTION_KEYS, key, "ChaCha20"), new IvParameterSpec(nonce));
+            return new String(cipher.doFinal(encryptedTextWithMac), StandardCharsets.UTF_8);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException
+                | BadPaddingException ex) {
+            return null;
+        } finally {
+            DECRYPT_CIPHERS.release(cipher);
+        }
+    }
+
+    private static SecretKeySpec keySpec(Map<String, SecretKeySpec> cache, String password, String algorithm) {
+        SecretKeySpec key = cache.get(password);
+        if (key == null) {
+            if (cache.size() >= MAX_CACHED_KEYS) {
+                cache.clear();
+            }
+            byte[] secretKeyBytes = password.getBytes(StandardCharsets.UTF_8);
+            key = new SecretKeySpec(secretKeyBytes, 0, secretKeyBytes.length, algorithm);
+            cache.put(password, key);
+        }
+        return key;
+    }
+
     String generatePassword() {
         final int passwordLengthInBytes = 32;
         final int randomValueUpperBound = 256;
@@ -23,6 +23,9 @@ public final class ScpDevice {
     String knownPassword;
     int currentPasswordNumber;
 
+    // null until the device is first contacted, see health()
+    ScpDeviceHealth health;
+
     ScpDevice(String deviceId,
             String deviceType,
             String ipAddress,
@@ -37,7 +40,7 @@ public final class ScpDevice {
         this.currentPasswordNumber = currentPasswordNumber;
 
         this.actions = new ArrayList<>();
-        if (this.deviceType.equals(ScpDeviceTypes.SHUTTER_CONTROL)) {
+        if (ScpDeviceTypes.SHUTTER_CONTROL.equals(this.deviceType)) {
             this.actions.add(new ScpDeviceAction("Open", "up"));
             this.actions.add(new ScpDeviceAction("Close", "down"));
             this.actions.add(new ScpDeviceAction("Stop", "stop"));
@@ -52,6 +55,13 @@ public final class ScpDevice {
         this.deviceId = deviceId;
     }
 
+    synchronized ScpDeviceHealth health() {
+        if (health == null) {
+            health = new ScpDeviceHealth();
+        }
+        return health;
+    }
+
     static List<ScpDevice> devicesfromJson(String json) {
         Gson g = new Gson();
         Type listType = new TypeToken<ArrayList<ScpDevice>>() {
@@ -64,7 +74,8 @@ public final class ScpDevice {
     public String toString() {
         return "ScpDevice:\n Type: " + deviceType + "\n ID: " + deviceId + "\n IP: " + ipAddress
                 + "\n default password: " + isDefaultPasswordSet + "\n password: " + knownPassword
-                + "\n current password number: " + currentPasswordNumber;
+                + "\n current password number: " + currentPasswordNumber
+                + "\n health: " + (health == null ? "not contacted" : health.summary(System.currentTimeMillis()));
     }
 
     public String toJson() {
@@ -0,0 +1,136 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceHealth Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.time.Instant;
+
+// Health of a device and its circuit breaker, stored with the device record.
+// After FAILURE_THRESHOLD operations in a row without an answer the breaker opens and messages to the device
+// fail fast. Once the open time is over the breaker is half open and a single request, usually the background
+// probe, may test the device: an answer closes the breaker, another failure opens it for twice as long.
+// The state is derived from the stored counters, so it survives restarts of the client.
+final class ScpDeviceHealth {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long OPEN_TIME = 30 * 1000;
+    static final long MAX_OPEN_TIME = 10 * 60 * 1000;
+    // a success of a healthy device is only stored again after this time, not on every message
+    static final long SUCCESS_STORE_INTERVAL = 60 * 60 * 1000;
+
+    private static final int MAX_OPEN_TIME_SHIFT = 20;
+
+    int consecutiveFailures;
+    // epoch milliseconds, 0 for never
+    long lastSuccess;
+    long lastFailure;
+
+    // the request that tests a half open breaker is running
+    private transient boolean trialRunning;
+    // a background probe is scheduled
+    private transient boolean probeScheduled;
+    // changed since the device was last stored
+    private transient boolean changed;
+
+    ScpDeviceHealth() {
+    }
+
+    ScpDeviceHealth(int consecutiveFailures, long lastSuccess, long lastFailure) {
+        this.consecutiveFailures = consecutiveFailures;
+        this.lastSuccess = lastSuccess;
+        this.lastFailure = lastFailure;
+    }
+
+    synchronized State state(long now) {
+        if (consecutiveFailures < FAILURE_THRESHOLD) {
+            return State.CLOSED;
+        }
+        return now < openUntil() ? State.OPEN : State.HALF_OPEN;
+    }
+
+    // Milliseconds until the breaker is half open, 0 if it is not open
+    synchronized long openTimeLeft(long now) {
+        return state(now) == State.OPEN ? openUntil() - now : 0;
+    }
+
+    // True if a request may be sent, a half open breaker lets a single request through until it finishes
+    synchronized boolean tryRequest(long now) {
+        switch (state(now)) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialRunning) {
+                    return false;
+                }
+                trialRunning = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The device answered, it may have rejected the request
+    synchronized void succeeded(long now) {
+        if (consecutiveFailures > 0 || now - lastSuccess >= SUCCESS_STORE_INTERVAL) {
+            changed = true;
+        }
+        consecutiveFailures = 0;
+        lastSuccess = now;
+        trialRunning = false;
+    }
+
+    // The device could not be reached or did not answer, returns true if the breaker is open now
+    synchronized boolean failed(long now) {
+        consecutiveFailures++;
+        lastFailure = now;
+        trialRunning = false;
+        changed = true;
+        return state(now) == State.OPEN;
+    }
+
+    // True once after every change, the device then needs to be stored
+    synchronized boolean takeChanged() {
+        boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    // True if no background probe is scheduled yet, the caller schedules one
+    synchronized boolean claimProbe() {
+        if (probeScheduled) {
+            return false;
+        }
+        probeScheduled = true;
+        return true;
+    }
+
+    synchronized void probeStarted() {
+        probeScheduled = false;
+    }
+
+    synchronized String summary(long now) {
+        StringBuilder summary = new StringBuilder().append(state(now));
+        if (state(now) == State.OPEN) {
+            summary.append(" for ").append((openTimeLeft(now) + 999) / 1000).append(" s");
+        }
+        return summary.append(", ").append(consecutiveFailures).append(" consecutive failures, last success ")
+                .append(time(lastSuccess)).append(", last failure ").append(time(lastFailure)).toString();
+    }
+
+    private static String time(long epochMillis) {
+        return epochMillis == 0 ? "never" : Instant.ofEpochMilli(epochMillis).toString();
+    }
+
+    // The open time doubles with every failure beyond the threshold
+    private long openUntil() {
+        int shift = Math.min(consecutiveFailures - FAILURE_THRESHOLD, MAX_OPEN_TIME_SHIFT);
+        return lastFailure + Math.min(MAX_OPEN_TIME, OPEN_TIME << shift);
+    }
+}
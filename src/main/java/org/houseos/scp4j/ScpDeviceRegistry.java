@@ -0,0 +1,153 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceRegistry Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Thread safe registry of the known (configured) and new (discovered, not configured) devices.
+// Known devices are indexed by device ID, IP address and device type.
+// Lookups don't lock, changes are serialized and keep all indexes consistent.
+final class ScpDeviceRegistry {
+
+    private final Map<String, ScpDevice> knownById = new ConcurrentHashMap<>();
+    private final Map<String, ScpDevice> knownByIp = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ScpDevice>> knownByType = new ConcurrentHashMap<>();
+    private final Map<String, ScpDevice> newById = new ConcurrentHashMap<>();
+
+    // Immutable lists handed to readers, rebuilt on the first read after a change
+    private volatile List<ScpDevice> knownSnapshot = Collections.emptyList();
+    private volatile List<ScpDevice> newSnapshot = Collections.emptyList();
+    private volatile boolean knownChanged;
+    private volatile boolean newChanged;
+
+    ScpDevice known(String deviceId) {
+        return deviceId == null ? null : knownById.get(deviceId);
+    }
+
+    ScpDevice knownByIpAddress(String ipAddress) {
+        return ipAddress == null ? null : knownByIp.get(ipAddress);
+    }
+
+    List<ScpDevice> knownByType(String deviceType) {
+        Map<String, ScpDevice> devices = deviceType == null ? null : knownByType.get(deviceType);
+        return devices == null ? Collections.emptyList() : new ArrayList<>(devices.values());
+    }
+
+    ScpDevice newDevice(String deviceId) {
+        return deviceId == null ? null : newById.get(deviceId);
+    }
+
+    int knownCount() {
+        return knownById.size();
+    }
+
+    // Returns an unmodifiable snapshot of all known devices
+    List<ScpDevice> knownDevices() {
+        if (knownChanged) {
+            synchronized (this) {
+                if (knownChanged) {
+                    knownSnapshot = Collections.unmodifiableList(new ArrayList<>(knownById.values()));
+                    knownChanged = false;
+                }
+            }
+        }
+        return knownSnapshot;
+    }
+
+    // Returns an unmodifiable snapshot of all new devices
+    List<ScpDevice> newDevices() {
+        if (newChanged) {
+            synchronized (this) {
+                if (newChanged) {
+                    newSnapshot = Collections.unmodifiableList(new ArrayList<>(newById.values()));
+                    newChanged = false;
+                }
+            }
+        }
+        return newSnapshot;
+    }
+
+    // Replaces all known devices, e.g. after loading them from the device store
+    synchronized void replaceKnown(Collection<ScpDevice> devices) {
+        knownById.clear();
+        knownByIp.clear();
+        knownByType.clear();
+        if (devices != null) {
+            for (ScpDevice device : devices) {
+                putKnown(device);
+            }
+        }
+        knownChanged = true;
+    }
+
+    // Adds or replaces a known device, a new device with the same ID is removed at the same time
+    synchronized void putKnown(ScpDevice device) {
+        unindex(knownById.put(device.getDeviceId(), device));
+        index(device);
+        knownChanged = true;
+        if (newById.remove(device.getDeviceId()) != null) {
+            newChanged = true;
+        }
+    }
+
+    // Adds a discovered device unless it is already known, returns false if it is known
+    synchronized boolean addNew(ScpDevice device) {
+        if (knownById.containsKey(device.getDeviceId())) {
+            return false;
+        }
+        newById.put(device.getDeviceId(), device);
+        newChanged = true;
+        return true;
+    }
+
+    synchronized void clearNew() {
+        newById.clear();
+        newChanged = true;
+    }
+
+    // Changes the IP address of a known device and moves it in the IP index
+    synchronized void updateIpAddress(ScpDevice device, String ipAddress) {
+        boolean isKnown = knownById.get(device.getDeviceId()) == device;
+        if (isKnown) {
+            unindex(device);
+        }
+        device.ipAddress = ipAddress;
+        if (isKnown) {
+            index(device);
+        }
+    }
+
+    private void index(ScpDevice device) {
+        if (device.ipAddress != null) {
+            knownByIp.put(device.ipAddress, device);
+        }
+        if (device.deviceType != null) {
+            knownByType.computeIfAbsent(device.deviceType, type -> new ConcurrentHashMap<>())
+                    .put(device.getDeviceId(), device);
+        }
+    }
+
+    private void unindex(ScpDevice device) {
+        if (device == null) {
+            return;
+        }
+        if (device.ipAddress != null) {
+            knownByIp.remove(device.ipAddress, device);
+        }
+        if (device.deviceType != null) {
+            Map<String, ScpDevice> sameType = knownByType.get(device.deviceType);
+            if (sameType != null) {
+                sameType.remove(device.getDeviceId(), device);
+            }
+        }
+    }
+}
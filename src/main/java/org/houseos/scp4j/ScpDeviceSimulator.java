@@ -0,0 +1,570 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceSimulator Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Simulated SCP devices for load tests without hardware.
+// Every device listens on its own address on the SCP port, on Linux all of 127.0.0.0/8 can be used.
+// One selector thread accepts for all devices, the connections are served with blocking I/O like
+// ScpServer does, one request at a time and keep-alive like the device firmware.
+final class ScpDeviceSimulator implements Closeable {
+
+    static final String DEVICE_ID_PREFIX = "sim-";
+
+    // an idle keep-alive connection is closed after this time, like a device with few sockets does
+    static final int KEEP_ALIVE_TIMEOUT = 5000;
+
+    private static final int BACKLOG = 128;
+    private static final int NVCN_BYTES = 8;
+    private static final int MAX_REQUEST_HEADER = 8 * 1024;
+    // the last four header bytes "\r\n\r\n"
+    private static final int END_OF_HEADER = 0x0D0A0D0A;
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_INTERNAL_ERROR = 500;
+    private static final String SECURE_CONTROL_PATH = "/secure-control";
+    private static final String DISCOVER_HELLO_PATH = "/secure-control/discover-hello";
+
+    // devices send Base64 padding as is, Gson would turn '=' into a unicode escape by default
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    // Latency and failures of all simulated devices
+    static final class Behavior {
+
+        static final Behavior NONE = new Behavior(0, 0, 0, 0);
+
+        // every response is delayed by latencyMillis plus up to jitterMillis
+        final int latencyMillis;
+        final int jitterMillis;
+        // share of secure-control requests answered with HTTP 500
+        final double errorRate;
+        // share of requests after which the connection is closed without a response
+        final double dropRate;
+
+        Behavior(int latencyMillis, int jitterMillis, double errorRate, double dropRate) {
+            if (latencyMillis < 0 || jitterMillis < 0) {
+                throw new IllegalArgumentException("latency and jitter must not be negative");
+            }
+            if (errorRate < 0 || errorRate > 1 || dropRate < 0 || dropRate > 1) {
+                throw new IllegalArgumentException("error and drop rates must be between 0 and 1");
+            }
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.errorRate = errorRate;
+            this.dropRate = dropRate;
+        }
+
+        @Override
+        public String toString() {
+            return "latency: " + latencyMillis + " ms + up to " + jitterMillis + " ms, error rate: " + errorRate
+                    + ", drop rate: " + dropRate;
+        }
+    }
+
+    // State of one simulated device, guarded by the device
+    static final class Device {
+
+        final String ipAddress;
+        final String deviceId;
+        final String deviceType = ScpDeviceTypes.SHUTTER_CONTROL;
+        private String password = ScpCrypto.DEFAULT_PASSWORD;
+        private int currentPasswordNumber;
+        private String nvcn;
+        private String ssid;
+        private String lastAction;
+
+        Device(String ipAddress) {
+            this.ipAddress = ipAddress;
+            this.deviceId = DEVICE_ID_PREFIX + ipAddress;
+        }
+
+        synchronized String password() {
+            return password;
+        }
+
+        synchronized int currentPasswordNumber() {
+            return currentPasswordNumber;
+        }
+
+        synchronized String ssid() {
+            return ssid;
+        }
+
+        synchronized String lastAction() {
+            return lastAction;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return deviceId + " (" + ipAddress + "), password number: " + currentPasswordNumber
+                    + (ssid == null ? "" : ", ssid: " + ssid) + (lastAction == null ? "" : ", action: " + lastAction);
+        }
+    }
+
+    static final class Stats {
+
+        final long connections;
+        final long requests;
+        final long errors;
+        final long drops;
+        final long rejected;
+
+        Stats(long connections, long requests, long errors, long drops, long rejected) {
+            this.connections = connections;
+            this.requests = requests;
+            this.errors = errors;
+            this.drops = drops;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "connections: " + connections + ", requests: " + requests + ", injected errors: " + errors
+                    + ", dropped: " + drops + ", rejected: " + rejected;
+        }
+    }
+
+    private static final class Response {
+
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static final class Request {
+
+        final String path;
+        final Map<String, String> query;
+        final boolean keepAlive;
+
+        Request(String path, Map<String, String> query, boolean keepAlive) {
+            this.path = path;
+            this.query = query;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+    private final Behavior behavior;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private Selector selector;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    ScpDeviceSimulator(Iterable<String> ipAddresses, Behavior behavior) {
+        for (String ipAddress : ipAddresses) {
+            devices.put(ipAddress, new Device(ipAddress));
+        }
+        this.behavior = behavior;
+    }
+
+    // Binds all device addresses and starts serving, fails if one of the addresses can't be bound
+    void start() throws IOException {
+        selector = Selector.open();
+        try {
+            for (Device device : devices.values()) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                serverChannels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                try {
+                    channel.bind(new InetSocketAddress(device.ipAddress, ScpMessageSender.PORT), BACKLOG);
+                } catch (IOException ex) {
+                    throw new IOException("Can't listen on " + device.ipAddress + ":" + ScpMessageSender.PORT
+                            + ": " + ex.getMessage(), ex);
+                }
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_ACCEPT, device);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "scp-simulator-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "scp-simulator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    Device device(String ipAddress) {
+        return devices.get(ipAddress);
+    }
+
+    Collection<Device> devices() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    Stats stats() {
+        return new Stats(connections.get(), requests.get(), errors.get(), drops.get(), rejected.get());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+        serverChannels.clear();
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                    if (channel != null) {
+                        channel.configureBlocking(true);
+                        Device device = (Device) key.attachment();
+                        connections.incrementAndGet();
+                        workers.execute(() -> serve(device, channel.socket()));
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            if (running) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // Answers the requests of one connection until the client closes it or it is idle for too long
+    private void serve(Device device, Socket socket) {
+        openSockets.add(socket);
+        try {
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                requests.incrementAndGet();
+                delay();
+                if (chance(behavior.dropRate)) {
+                    drops.incrementAndGet();
+                    return;
+                }
+                writeResponse(out, respond(device, request), request.keepAlive);
+                if (!request.keepAlive) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            // idle keep-alive connection
+        } catch (IOException ex) {
+            // the client went away
+        } finally {
+            openSockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private Response respond(Device device, Request request) {
+        if (request.path.equals(DISCOVER_HELLO_PATH)) {
+            return ok(discoverResponse(device));
+        }
+        if (!request.path.equals(SECURE_CONTROL_PATH)) {
+            return status(HTTP_NOT_FOUND);
+        }
+        if (chance(behavior.errorRate)) {
+            errors.incrementAndGet();
+            return status(HTTP_INTERNAL_ERROR);
+        }
+        String message = decrypt(device, request.query);
+        if (message == null) {
+            rejected.incrementAndGet();
+            return status(HTTP_BAD_REQUEST);
+        }
+        // <salt> + ":" + <type> + ":" + <device ID> [+ ":" + <NVCN> [+ ":" + <arguments>]]
+        String[] parts = message.split(":", 5);
+        if (parts.length < 3 || !parts[2].equals(device.deviceId)) {
+            rejected.incrementAndGet();
+            return status(HTTP_BAD_REQUEST);
+        }
+        String type = parts[1];
+        synchronized (device) {
+            if (ScpResponseFetchNvcn.TYPE.equals(type)) {
+                byte[] nvcn = new byte[NVCN_BYTES];
+                ThreadLocalRandom.current().nextBytes(nvcn);
+                device.nvcn = ScpCrypto.bytesToHex(nvcn);
+                Map<String, Object> response = payload(type, device);
+                response.put("nvcn", device.nvcn);
+                return ok(GSON.toJson(response));
+            }
+            // every NVCN is valid for one message
+            if (parts.length < 4 || device.nvcn == null || !device.nvcn.equals(parts[3])) {
+                rejected.incrementAndGet();
+                return status(HTTP_BAD_REQUEST);
+            }
+            device.nvcn = null;
+            String arguments = parts.length > 4 ? parts[4] : null;
+            return ok(handle(device, type, arguments));
+        }
+    }
+
+    // The wrapped response of a NVCN bound message, called with the device locked
+    private static String handle(Device device, String type, String arguments) {
+        Map<String, Object> payload = payload(type, device);
+        String signingPassword = device.password;
+        switch (type) {
+            case ScpResponseSetPassword.EXPECTED_TYPE:
+                if (arguments == null || arguments.isEmpty()) {
+                    payload.put("result", ScpStatus.RESULT_ERROR);
+                    break;
+                }
+                device.password = arguments;
+                device.currentPasswordNumber++;
+                // the response is signed with the new password
+                signingPassword = device.password;
+                payload.put("currentPasswordNumber", String.valueOf(device.currentPasswordNumber));
+                payload.put("result", ScpStatus.RESULT_DONE);
+                break;
+            case ScpResponseSetWifiConfig.EXPECTED_TYPE:
+                // <ssid> + ":" + <pre-shared-key>
+                if (arguments == null || arguments.indexOf(':') < 0) {
+                    payload.put("result", ScpStatus.RESULT_ERROR);
+                    break;
+                }
+                device.ssid = arguments.substring(0, arguments.indexOf(':'));
+                payload.put("result", ScpStatus.RESULT_SUCCESS);
+                break;
+            case ScpResponseRestart.EXPECTED_TYPE:
+                payload.put("result", ScpStatus.RESULT_SUCCESS);
+                break;
+            case ScpResponseResetToDefault.EXPECTED_TYPE:
+                // still signed with the password the client knows
+                device.password = ScpCrypto.DEFAULT_PASSWORD;
+                device.currentPasswordNumber = 0;
+                device.ssid = null;
+                payload.put("result", ScpStatus.RESULT_SUCCESS);
+                break;
+            case ScpResponseControl.EXPECTED_TYPE:
+                device.lastAction = arguments;
+                payload.put("action", arguments);
+                payload.put("result", arguments == null ? ScpStatus.RESULT_ERROR : ScpStatus.RESULT_SUCCESS);
+                break;
+            default:
+                payload.put("result", ScpStatus.RESULT_ERROR);
+                break;
+        }
+        String encoded = Base64.getEncoder().encodeToString(GSON.toJson(payload).getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("response", encoded);
+        response.put("hmac", ScpCrypto.getInstance().hmacHex(encoded, signingPassword));
+        return GSON.toJson(response);
+    }
+
+    private static String discoverResponse(Device device) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        synchronized (device) {
+            response.put("type", ScpResponseDiscover.TYPE);
+            response.put("deviceId", device.deviceId);
+            response.put("deviceType", device.deviceType);
+            response.put("currentPasswordNumber", device.currentPasswordNumber);
+            response.put("hmac", ScpCrypto.getInstance().hmacHex(ScpResponseDiscover.TYPE + device.deviceId
+                    + device.deviceType + device.currentPasswordNumber, device.password));
+        }
+        return GSON.toJson(response);
+    }
+
+    private static Map<String, Object> payload(String type, Device device) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("type", type);
+        payload.put("deviceId", device.deviceId);
+        return payload;
+    }
+
+    // Decrypts the message with the current password of the device, null if it is not authentic
+    private static String decrypt(Device device, Map<String, String> query) {
+        String nonce = query.get("nonce");
+        String payload = query.get("payload");
+        String mac = query.get("mac");
+        if (nonce == null || payload == null || mac == null) {
+            return null;
+        }
+        try {
+            byte[] encrypted = Base64.getDecoder().decode(payload);
+            byte[] tag = Base64.getDecoder().decode(mac);
+            byte[] encryptedWithMac = new byte[encrypted.length + tag.length];
+            System.arraycopy(encrypted, 0, encryptedWithMac, 0, encrypted.length);
+            System.arraycopy(tag, 0, encryptedWithMac, encrypted.length, tag.length);
+            return ScpCrypto.getInstance().decryptMessage(device.password(), Base64.getDecoder().decode(nonce),
+                    encryptedWithMac);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // Reads the request line and headers, returns null if the client closed the connection
+    private static Request readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int last = 0;
+        while (last != END_OF_HEADER) {
+            int value = in.read();
+            if (value < 0) {
+                if (header.size() == 0) {
+                    return null;
+                }
+                throw new IOException("connection closed within HTTP header");
+            }
+            header.write(value);
+            if (header.size() > MAX_REQUEST_HEADER) {
+                throw new IOException("HTTP request header too large");
+            }
+            last = last << Byte.SIZE | value;
+        }
+        String[] lines = new String(header.toByteArray(), StandardCharsets.US_ASCII).split("\r\n");
+        // "GET /secure-control?nonce=... HTTP/1.1"
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            throw new IOException("invalid HTTP request line " + lines[0]);
+        }
+        boolean keepAlive = !requestLine[2].equals("HTTP/1.0");
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].toLowerCase();
+            if (line.startsWith("connection:")) {
+                keepAlive = line.contains("keep-alive") || keepAlive && !line.contains("close");
+            }
+        }
+        String target = requestLine[1];
+        int questionMark = target.indexOf('?');
+        String path = questionMark < 0 ? target : target.substring(0, questionMark);
+        Map<String, String> query = new HashMap<>();
+        if (questionMark >= 0) {
+            for (String parameter : target.substring(questionMark + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    query.put(urlDecode(parameter.substring(0, equals)), urlDecode(parameter.substring(equals + 1)));
+                }
+            }
+        }
+        return new Request(path, query, keepAlive);
+    }
+
+    private static void writeResponse(OutputStream out, Response response, boolean keepAlive) throws IOException {
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 " + response.status + (response.status == ScpMessageSender.HTTP_OK ? " OK" : " Error")
+                + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    private static Response ok(String body) {
+        return new Response(ScpMessageSender.HTTP_OK, body);
+    }
+
+    private static Response status(int status) {
+        return new Response(status, "");
+    }
+
+    private void delay() {
+        int millis = behavior.latencyMillis;
+        if (behavior.jitterMillis > 0) {
+            millis += ThreadLocalRandom.current().nextInt(behavior.jitterMillis + 1);
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private static String urlDecode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return "";
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // closing anyway
+        }
+    }
+}
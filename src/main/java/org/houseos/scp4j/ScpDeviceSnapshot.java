@@ -0,0 +1,255 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceSnapshot Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Binary copy of the devices JSON file in <json>.bin, written by the device store whenever the JSON file changes.
+// A sorted index of device ID hashes lets a single device be looked up in the memory mapped file
+// without parsing the whole fleet. The snapshot records size, modification time and CRC32 of the JSON file
+// it was built from and is ignored as soon as they don't match anymore. The checksum catches a rewrite of
+// the same size within the same millisecond, which size and modification time alone would miss.
+//
+// Layout: header (magic, version, JSON size, JSON modification time, JSON CRC32, device count),
+// index (ID hash and record offset per device, sorted by hash), records.
+final class ScpDeviceSnapshot {
+
+    static final String SUFFIX = ".bin";
+
+    // the snapshot can be switched off with -Dscp4j.binarySnapshot=false
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("scp4j.binarySnapshot", "true"));
+
+    private static final int MAGIC = 0x53435044; // "SCPD"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    private ScpDeviceSnapshot() {
+        // this class has only static methods
+    }
+
+    // Rebuilds the snapshot of the JSON file from the given devices
+    static void write(Path jsonPath, Collection<ScpDevice> devices) throws IOException {
+        if (!Files.exists(jsonPath)) {
+            return;
+        }
+        long jsonSize = Files.size(jsonPath);
+        long jsonModified = Files.getLastModifiedTime(jsonPath).toMillis();
+        int jsonChecksum = checksum(jsonPath);
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        long[] index = new long[devices.size()];
+        int count = 0;
+        for (ScpDevice device : devices) {
+            // hash in the upper half so sorting the longs sorts by hash
+            index[count++] = ((long) hash(device.getDeviceId()) << Integer.SIZE) | records.size();
+            writeString(records, device.getDeviceId());
+            writeString(records, device.deviceType);
+            writeString(records, device.ipAddress);
+            records.writeBoolean(device.isDefaultPasswordSet);
+            writeString(records, device.knownPassword);
+            records.writeInt(device.currentPasswordNumber);
+            ScpDeviceHealth health = device.health;
+            records.writeBoolean(health != null);
+            if (health != null) {
+                synchronized (health) {
+                    records.writeInt(health.consecutiveFailures);
+                    records.writeLong(health.lastSuccess);
+                    records.writeLong(health.lastFailure);
+                }
+            }
+        }
+        records.flush();
+        Arrays.sort(index, 0, count);
+
+        int recordsStart = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(recordsStart + recordBytes.size());
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(jsonSize).putLong(jsonModified).putInt(jsonChecksum)
+                .putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt((int) (index[i] >> Integer.SIZE));
+            buffer.putInt(recordsStart + (int) index[i]);
+        }
+        buffer.put(recordBytes.toByteArray());
+        buffer.flip();
+
+        Path snapshotPath = snapshotPath(jsonPath);
+        Path tempPath = Paths.get(snapshotPath + TEMP_SUFFIX);
+        try (FileChannel temp = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                temp.write(buffer);
+            }
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the device from a memory mapped current snapshot,
+    // null if there is no current snapshot, the journal has pending records or the device is unknown
+    static ScpDevice lookup(Path jsonPath, String deviceId) throws IOException {
+        Path journalPath = Paths.get(jsonPath + ScpDeviceStore.JOURNAL_SUFFIX);
+        if (Files.exists(journalPath) && Files.size(journalPath) > 0) {
+            return null;
+        }
+        Path snapshotPath = snapshotPath(jsonPath);
+        if (!Files.exists(snapshotPath)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = validCount(buffer, jsonPath);
+            if (count < 0) {
+                return null;
+            }
+            int hash = hash(deviceId);
+            int low = 0;
+            int high = count;
+            // first index entry with a hash not lower than the wanted one
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (buffer.getInt(HEADER_SIZE + middle * INDEX_ENTRY_SIZE) < hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < count && buffer.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE) == hash; i++) {
+                buffer.position(buffer.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + Integer.BYTES));
+                ScpDevice device = readDevice(buffer);
+                if (deviceId.equals(device.getDeviceId())) {
+                    return device;
+                }
+            }
+            return null;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            // damaged snapshot, the JSON file is still there
+            return null;
+        }
+    }
+
+    // Returns all devices of a current snapshot or null if there is none
+    static List<ScpDevice> readAll(Path jsonPath) throws IOException {
+        Path snapshotPath = snapshotPath(jsonPath);
+        if (!Files.exists(snapshotPath)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        try {
+            int count = validCount(buffer, jsonPath);
+            if (count < 0) {
+                return null;
+            }
+            // records are stored in the order of the JSON file
+            buffer.position(HEADER_SIZE + count * INDEX_ENTRY_SIZE);
+            List<ScpDevice> devices = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                devices.add(readDevice(buffer));
+            }
+            return devices;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            return null;
+        }
+    }
+
+    private static Path snapshotPath(Path jsonPath) {
+        return Paths.get(jsonPath + SUFFIX);
+    }
+
+    // Returns the device count if the snapshot belongs to the current JSON file, otherwise -1
+    private static int validCount(ByteBuffer buffer, Path jsonPath) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION
+                || !Files.exists(jsonPath)) {
+            return -1;
+        }
+        long jsonSize = buffer.getLong(2 * Integer.BYTES);
+        long jsonModified = buffer.getLong(2 * Integer.BYTES + Long.BYTES);
+        if (jsonSize != Files.size(jsonPath) || jsonModified != Files.getLastModifiedTime(jsonPath).toMillis()
+                || buffer.getInt(2 * Integer.BYTES + 2 * Long.BYTES) != checksum(jsonPath)) {
+            return -1;
+        }
+        int count = buffer.getInt(3 * Integer.BYTES + 2 * Long.BYTES);
+        if (count < 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > buffer.limit()) {
+            return -1;
+        }
+        return count;
+    }
+
+    private static ScpDevice readDevice(ByteBuffer buffer) {
+        String deviceId = readString(buffer);
+        String deviceType = readString(buffer);
+        String ipAddress = readString(buffer);
+        boolean isDefaultPasswordSet = buffer.get() != 0;
+        String knownPassword = readString(buffer);
+        int currentPasswordNumber = buffer.getInt();
+        ScpDevice device = new ScpDevice(deviceId, deviceType, ipAddress, isDefaultPasswordSet, knownPassword,
+                currentPasswordNumber);
+        if (buffer.get() != 0) {
+            device.health = new ScpDeviceHealth(buffer.getInt(), buffer.getLong(), buffer.getLong());
+        }
+        return device;
+    }
+
+    private static int checksum(Path jsonPath) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(CHECKSUM_CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(jsonPath, StandardOpenOption.READ)) {
+            while (channel.read(chunk) >= 0) {
+                chunk.flip();
+                crc.update(chunk);
+                chunk.clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int hash(String deviceId) {
+        return deviceId == null ? 0 : deviceId.hashCode();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // A damaged length must not allocate more than the snapshot holds
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
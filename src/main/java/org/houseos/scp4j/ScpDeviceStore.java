@@ -0,0 +1,438 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceStore Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+// Device storage backed by the JSON devices file as snapshot and an append-only journal next to it.
+// Every stored device is appended to <json>.journal as one JSON line. Concurrent writers are committed
+// together with a single fsync, the journal is folded into the snapshot once it grows large and on close.
+// The snapshot keeps the JSON array format of the devices file, so it can still be edited and exported.
+// Several processes can use the same JSON file: loading, appending and compaction hold a lock on <json>.lock,
+// and each of them first reads the records other processes appended. The lock file counts the compactions,
+// a changed count means another process rewrote the snapshot and emptied the journal.
+final class ScpDeviceStore implements AutoCloseable {
+
+    static final String JOURNAL_SUFFIX = ".journal";
+    static final String LOCK_SUFFIX = ".lock";
+    static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte NEWLINE = '\n';
+
+    // File locks are held by the whole process, stores of the same file in this process take turns here first
+    private static final Map<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private static final class PendingRecord {
+
+        final ScpDevice device;
+        final byte[] line;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        PendingRecord(ScpDevice device, byte[] line) {
+            this.device = device;
+            this.line = line;
+        }
+    }
+
+    private interface LockedAction {
+
+        void run() throws IOException;
+    }
+
+    private final Gson gson = new Gson();
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final int compactionThreshold;
+    private final FileChannel journal;
+    private final FileChannel lockFile;
+    private final Object processLock;
+    private final Map<String, ScpDevice> devices = new LinkedHashMap<>();
+    private final Object lock = new Object();
+    private List<PendingRecord> pending = new ArrayList<>();
+    // the batch the committer is appending
+    private List<PendingRecord> committing = new ArrayList<>();
+    // records in the journal, also those of other processes
+    private int journalRecords;
+    // end of the journal records read or written by this store
+    private long journalEnd;
+    // compactions of the snapshot this store has seen
+    private long generation;
+    // set when a batch could not be appended, those devices only exist in memory until the next compaction
+    private boolean commitFailed;
+    private boolean closed;
+    private final Thread committer;
+
+    private ScpDeviceStore(Path snapshotPath, int compactionThreshold) throws IOException {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = Paths.get(snapshotPath + JOURNAL_SUFFIX);
+        this.compactionThreshold = compactionThreshold;
+        this.processLock = PROCESS_LOCKS.computeIfAbsent(snapshotPath.toAbsolutePath().normalize(),
+                path -> new Object());
+        this.lockFile = FileChannel.open(Paths.get(snapshotPath + LOCK_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel opened = null;
+        try {
+            opened = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.journal = opened;
+            locked(() -> {
+                generation = readGeneration();
+                readSnapshot();
+                replayJournal();
+            });
+        } catch (IOException | RuntimeException ex) {
+            if (opened != null) {
+                opened.close();
+            }
+            lockFile.close();
+            throw ex;
+        }
+        this.committer = new Thread(this::commitLoop, "scp-device-store-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    // Loads the devices from the JSON file and its journal, a missing JSON file is treated as empty
+    static ScpDeviceStore open(String jsonPath) throws IOException {
+        return new ScpDeviceStore(Paths.get(jsonPath), DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    // Returns a copy of all stored devices in insertion order
+    List<ScpDevice> devices() {
+        synchronized (lock) {
+            return new ArrayList<>(devices.values());
+        }
+    }
+
+    ScpDevice get(String deviceId) {
+        synchronized (lock) {
+            return devices.get(deviceId);
+        }
+    }
+
+    // Stores the device, replacing an entry with the same ID, and returns once it is durable
+    void put(ScpDevice device) {
+        byte[] line = (gson.toJson(device) + "\n").getBytes(StandardCharsets.UTF_8);
+        PendingRecord record = new PendingRecord(device, line);
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("device store is closed");
+            }
+            devices.put(device.getDeviceId(), device);
+            pending.add(record);
+            lock.notifyAll();
+        }
+        try {
+            record.committed.get();
+        } catch (ExecutionException ex) {
+            // the device stays in memory and is written with the next compaction
+            ex.getCause().printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes all devices as JSON array in the format of the devices file
+    String toJson() {
+        return gson.toJson(devices());
+    }
+
+    // Commits outstanding records, folds the journal into the snapshot and releases the journal
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean joined = false;
+        while (!joined) {
+            try {
+                committer.join();
+                joined = true;
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        }
+        try {
+            locked(() -> {
+                sync();
+                if (journalRecords > 0 || commitFailed) {
+                    compact();
+                }
+            });
+        } finally {
+            journal.close();
+            lockFile.close();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<PendingRecord> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // do nothing
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                committing = batch;
+            }
+            commit(batch);
+            synchronized (lock) {
+                committing = new ArrayList<>();
+            }
+        }
+    }
+
+    // Appends the whole batch behind the records of other processes and forces it to disk once
+    private void commit(List<PendingRecord> batch) {
+        int size = 0;
+        for (PendingRecord record : batch) {
+            size += record.line.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (PendingRecord record : batch) {
+            buffer.put(record.line);
+        }
+        buffer.flip();
+        try {
+            locked(() -> {
+                sync();
+                journal.position(journal.size());
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+                journal.force(false);
+                journalEnd = journal.size();
+                journalRecords += batch.size();
+            });
+            for (PendingRecord record : batch) {
+                record.committed.complete(null);
+            }
+        } catch (IOException ex) {
+            commitFailed = true;
+            for (PendingRecord record : batch) {
+                record.committed.completeExceptionally(ex);
+            }
+        }
+        if (journalRecords >= compactionThreshold || commitFailed) {
+            try {
+                locked(() -> {
+                    sync();
+                    compact();
+                });
+            } catch (IOException ex) {
+                // the journal still holds every record, compaction is retried with the next batch
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // Runs the action while holding the lock of the JSON file against other stores and processes
+    private void locked(LockedAction action) throws IOException {
+        synchronized (processLock) {
+            try (FileLock fileLock = lockFile.lock()) {
+                action.run();
+            }
+        }
+    }
+
+    // Catches up with the changes of other processes, called with the lock held
+    private void sync() throws IOException {
+        long current = readGeneration();
+        if (current != generation || journal.size() < journalEnd) {
+            // another process compacted, its snapshot contains everything this store has committed
+            generation = current;
+            journalEnd = 0;
+            journalRecords = 0;
+            readSnapshot();
+        }
+        replayJournal();
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (buffer.hasRemaining() && lockFile.read(buffer, buffer.position()) > 0) {
+            continue;
+        }
+        return buffer.hasRemaining() ? 0 : buffer.getLong(0);
+    }
+
+    private void writeGeneration(long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+        while (buffer.hasRemaining()) {
+            lockFile.write(buffer, buffer.position());
+        }
+        lockFile.force(true);
+    }
+
+    // Replaces the snapshot atomically and empties the journal, called with the lock held after sync.
+    // A crash before the journal is truncated replays records already in the snapshot, which is harmless.
+    private void compact() throws IOException {
+        ByteBuffer json = ByteBuffer.wrap(toJson().getBytes(StandardCharsets.UTF_8));
+        Path tempPath = Paths.get(snapshotPath + TEMP_SUFFIX);
+        try (FileChannel temp = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (json.hasRemaining()) {
+                temp.write(json);
+            }
+            temp.force(true);
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeBinarySnapshot();
+        journal.truncate(0);
+        journal.force(true);
+        generation++;
+        writeGeneration(generation);
+        journalEnd = 0;
+        journalRecords = 0;
+        commitFailed = false;
+    }
+
+    // Replaces the devices by those of the binary snapshot if it is current, otherwise by the parsed JSON file.
+    // Devices that are waiting to be committed are kept.
+    private void readSnapshot() throws IOException {
+        Map<String, ScpDevice> snapshot = new LinkedHashMap<>();
+        if (!Files.exists(snapshotPath)) {
+            replaceDevices(snapshot);
+            return;
+        }
+        List<ScpDevice> stored = ScpDeviceSnapshot.ENABLED ? ScpDeviceSnapshot.readAll(snapshotPath) : null;
+        if (stored == null) {
+            String json = new String(Files.readAllBytes(snapshotPath), StandardCharsets.UTF_8);
+            stored = ScpDevice.devicesfromJson(json);
+            if (stored != null) {
+                // the JSON file was edited or never had a binary snapshot
+                writeBinarySnapshot(stored);
+            }
+        }
+        if (stored != null) {
+            for (ScpDevice device : stored) {
+                snapshot.put(device.getDeviceId(), device);
+            }
+        }
+        replaceDevices(snapshot);
+    }
+
+    private void replaceDevices(Map<String, ScpDevice> snapshot) {
+        synchronized (lock) {
+            devices.clear();
+            devices.putAll(snapshot);
+            for (PendingRecord record : committing) {
+                devices.put(record.device.getDeviceId(), record.device);
+            }
+            for (PendingRecord record : pending) {
+                devices.put(record.device.getDeviceId(), record.device);
+            }
+        }
+    }
+
+    private void writeBinarySnapshot() {
+        writeBinarySnapshot(devices());
+    }
+
+    // The binary snapshot only speeds up loading, failing to write it is not an error
+    private void writeBinarySnapshot(List<ScpDevice> stored) {
+        if (!ScpDeviceSnapshot.ENABLED) {
+            return;
+        }
+        try {
+            ScpDeviceSnapshot.write(snapshotPath, stored);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Applies every complete journal line behind journalEnd, a torn or corrupt tail from a crash is cut off.
+    // Devices waiting to be committed are newer than the journal and stay.
+    private void replayJournal() throws IOException {
+        long size = journal.size();
+        if (size <= journalEnd) {
+            return;
+        }
+        ByteBuffer read = ByteBuffer.allocate((int) (size - journalEnd));
+        while (read.hasRemaining() && journal.read(read, journalEnd + read.position()) > 0) {
+            continue;
+        }
+        byte[] content = read.array();
+        int lineStart = 0;
+        int validEnd = 0;
+        for (int i = 0; i < read.position(); i++) {
+            if (content[i] != NEWLINE) {
+                continue;
+            }
+            String line = new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8);
+            ScpDevice device;
+            try {
+                device = gson.fromJson(line, ScpDevice.class);
+            } catch (JsonParseException ex) {
+                device = null;
+            }
+            if (device == null || device.getDeviceId() == null) {
+                break;
+            }
+            synchronized (lock) {
+                if (!isPending(device.getDeviceId())) {
+                    devices.put(device.getDeviceId(), device);
+                }
+            }
+            journalRecords++;
+            lineStart = i + 1;
+            validEnd = lineStart;
+        }
+        journalEnd += validEnd;
+        if (journalEnd < size) {
+            ScpEvents.log(ScpEvents.Level.WARN, ScpEvents.STORE,
+                    "Dropping " + (size - journalEnd) + " bytes of incomplete journal records");
+            journal.truncate(journalEnd);
+            journal.force(true);
+        }
+    }
+
+    private boolean isPending(String deviceId) {
+        for (PendingRecord record : committing) {
+            if (record.device.getDeviceId().equals(deviceId)) {
+                return true;
+            }
+        }
+        for (PendingRecord record : pending) {
+            if (record.device.getDeviceId().equals(deviceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,13 @@
+/*
+ * secure_control_protocol
+ * ScpDiscoveryListener Interface
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+// Receives every verified device as soon as its discover response arrives
+interface ScpDiscoveryListener {
+
+    void onDeviceDiscovered(ScpDevice device);
+}
@@ -0,0 +1,415 @@
+/*
+ * secure_control_protocol
+ * ScpDiscoveryScanner Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Selector based scanner that keeps many discover-hello probes in flight from a few I/O threads
+final class ScpDiscoveryScanner {
+
+    interface ResponseHandler {
+
+        // The body is only valid during the call, the buffer is reused for the next probe
+        void onResponse(String ip, byte[] data, int offset, int length);
+    }
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    static final int DEFAULT_IO_THREADS = 2;
+
+    static final String DISCOVER_HELLO = "discover-hello";
+    static final String DISCOVER_HELLO_PATH = "/secure-control/discover-hello?payload=" + DISCOVER_HELLO;
+
+    private static final ScpMetrics.MessageMetrics METRICS = ScpMetrics.message(DISCOVER_HELLO);
+    // lost probes are repeated, addresses that just time out or refuse the connection are not
+    private static final ScpRetryPolicy RETRY_POLICY = ScpRetryPolicy.forType(DISCOVER_HELLO);
+
+    // discovery probes are cut off much earlier than device requests once round trip times are known,
+    // so dead hosts don't dominate the scan. A host that never answered and times out with a timeout
+    // learned from its subnet is probed once more with the default timeouts, it may just be slower.
+    static final int DISCOVERY_CONNECTION_FLOOR = 50;
+    static final int DISCOVERY_READ_FLOOR = 250;
+    private static final int READ_CHUNK_SIZE = 2048;
+    private static final long SELECT_TICK = 20;
+
+    private final int maxInFlight;
+    private final int maxPerSecond;
+    private final int ioThreads;
+    private volatile boolean cancelled;
+
+    // The number of probes in flight is tuned between ScpScanRate.MIN_WINDOW and maxInFlight,
+    // maxPerSecond caps the probes started per second, 0 for no cap
+    ScpDiscoveryScanner(int maxInFlight, int maxPerSecond, int ioThreads) {
+        if (maxInFlight < 1 || ioThreads < 1) {
+            throw new IllegalArgumentException("in-flight limit and I/O threads must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxPerSecond = maxPerSecond;
+        this.ioThreads = Math.min(ioThreads, maxInFlight);
+    }
+
+    // Stops a running scan, probes in flight are dropped and scan returns soon after
+    void cancel() {
+        cancelled = true;
+    }
+
+    // Probes all addresses and blocks until every probe has been answered or timed out, or the scan is cancelled.
+    // Returns the rate the scan settled on.
+    ScpScanRate.Stats scan(Iterator<String> addresses, ResponseHandler handler) {
+        final Iterator<String> source = addresses;
+        ScpScanRate rate = new ScpScanRate(maxInFlight, maxPerSecond);
+        List<Thread> lanes = new ArrayList<>();
+        for (int i = 0; i < ioThreads; i++) {
+            Lane lane = new Lane(this, source, rate, handler);
+            Thread thread = new Thread(lane, "scp-discovery-" + i);
+            thread.setDaemon(true);
+            lanes.add(thread);
+            thread.start();
+        }
+        for (Thread thread : lanes) {
+            boolean joined = false;
+            while (!joined) {
+                try {
+                    thread.join();
+                    joined = true;
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            }
+        }
+        return rate.stats();
+    }
+
+    private static final class Probe {
+
+        final String ip;
+        final ByteBuffer request;
+        byte[] response;
+        int responseLength;
+        long deadline;
+        long started;
+        final long launched;
+        // counted from 1
+        final int attempt;
+        // the probe waits the default timeouts instead of the learned ones
+        final boolean defaultTimeouts;
+        boolean connected;
+        // the current deadline was estimated from other devices of the subnet
+        boolean subnetEstimated;
+
+        Probe(String ip, int attempt, boolean defaultTimeouts, byte[] response) {
+            this.ip = ip;
+            this.attempt = attempt;
+            this.defaultTimeouts = defaultTimeouts;
+            this.response = response;
+            this.launched = System.currentTimeMillis();
+            this.request = ByteBuffer.wrap(ScpHttp.buildGetRequest(ip, ScpMessageSender.PORT,
+                    DISCOVER_HELLO_PATH, false));
+        }
+    }
+
+    // A probe waiting for its backoff
+    private static final class Retry {
+
+        final String ip;
+        final int attempt;
+        final boolean defaultTimeouts;
+        final long due;
+
+        Retry(String ip, int attempt, boolean defaultTimeouts, long due) {
+            this.ip = ip;
+            this.attempt = attempt;
+            this.defaultTimeouts = defaultTimeouts;
+            this.due = due;
+        }
+    }
+
+    private static final class Lane implements Runnable {
+
+        private final ScpDiscoveryScanner scanner;
+        private final Iterator<String> source;
+        private final ScpScanRate rate;
+        private final ResponseHandler handler;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_CHUNK_SIZE);
+        // response buffers of finished probes, at most one per probe in flight
+        private final Deque<byte[]> buffers = new ArrayDeque<>();
+        private final PriorityQueue<Retry> retries = new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+        private int inFlight;
+        private boolean exhausted;
+
+        Lane(ScpDiscoveryScanner scanner, Iterator<String> source, ScpScanRate rate, ResponseHandler handler) {
+            this.scanner = scanner;
+            this.source = source;
+            this.rate = rate;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                while (true) {
+                    if (scanner.cancelled) {
+                        drop(selector);
+                        return;
+                    }
+                    fill(selector);
+                    if (inFlight == 0 && exhausted && retries.isEmpty()) {
+                        return;
+                    }
+                    selector.select(SELECT_TICK);
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        handle(key);
+                    }
+                    expire(selector);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        private String nextAddress() {
+            synchronized (source) {
+                return source.hasNext() ? source.next() : null;
+            }
+        }
+
+        private void fill(Selector selector) {
+            long now = System.currentTimeMillis();
+            while (!retries.isEmpty() && retries.peek().due <= now && rate.tryStart()) {
+                Retry retry = retries.poll();
+                start(selector, new Probe(retry.ip, retry.attempt, retry.defaultTimeouts, buffer()));
+            }
+            while (!exhausted && rate.tryStart()) {
+                String ip = nextAddress();
+                if (ip == null) {
+                    rate.cancelStart();
+                    exhausted = true;
+                    return;
+                }
+                start(selector, new Probe(ip, 1, false, buffer()));
+            }
+        }
+
+        private byte[] buffer() {
+            byte[] buffer = buffers.poll();
+            return buffer != null ? buffer : new byte[READ_CHUNK_SIZE];
+        }
+
+        // Counts the probe as lost and schedules it again if the policy allows
+        private void lost(Probe probe) {
+            rate.lost(probe.launched);
+            if (!scanner.cancelled && RETRY_POLICY.retryable(ScpRetryPolicy.Failure.NO_RESPONSE, probe.attempt)) {
+                METRICS.retries.increment();
+                retries.add(new Retry(probe.ip, probe.attempt + 1, probe.defaultTimeouts,
+                        System.currentTimeMillis() + RETRY_POLICY.backoffMillis(probe.attempt)));
+            }
+        }
+
+        private void start(Selector selector, Probe probe) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                probe.started = System.currentTimeMillis();
+                probe.deadline = probe.started + (probe.defaultTimeouts ? ScpMessageSender.CONNECTION_TIMEOUT
+                        : ScpMessageSender.CONNECT_RTT.timeout(probe.ip, DISCOVERY_CONNECTION_FLOOR,
+                                ScpMessageSender.CONNECTION_TIMEOUT, ScpMessageSender.CONNECTION_TIMEOUT));
+                probe.subnetEstimated = !probe.defaultTimeouts
+                        && ScpMessageSender.CONNECT_RTT.subnetEstimated(probe.ip);
+                if (channel.connect(new InetSocketAddress(probe.ip, ScpMessageSender.PORT))) {
+                    connected(probe);
+                    channel.register(selector, SelectionKey.OP_WRITE, probe);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                }
+                inFlight++;
+            } catch (IOException ex) {
+                // the local stack gave up on the probe, e.g. out of buffers
+                lost(probe);
+                closeQuietly(channel);
+                buffers.push(probe.response);
+            } catch (IllegalArgumentException ex) {
+                // not a valid target, treat like a dead host
+                rate.ended();
+                closeQuietly(channel);
+                buffers.push(probe.response);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Probe probe = (Probe) key.attachment();
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected(probe);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else if (key.isWritable()) {
+                    channel.write(probe.request);
+                    if (!probe.request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    read(key, probe, channel);
+                }
+            } catch (ConnectException ex) {
+                // refused, the round trip to the address worked
+                rate.answered();
+                finish(key, false);
+            } catch (NoRouteToHostException ex) {
+                // nobody at this address
+                rate.ended();
+                finish(key, false);
+            } catch (IOException ex) {
+                lost(probe);
+                finish(key, false);
+            }
+        }
+
+        // Learns the connect time and switches the deadline to the response timeout
+        private static void connected(Probe probe) {
+            long now = System.currentTimeMillis();
+            ScpMessageSender.CONNECT_RTT.sample(probe.ip, now - probe.started);
+            METRICS.connect.recordMillis(now - probe.started);
+            probe.connected = true;
+            probe.started = now;
+            probe.deadline = now + (probe.defaultTimeouts ? ScpMessageSender.READ_TIMEOUT
+                    : ScpMessageSender.RESPONSE_RTT.timeout(probe.ip, DISCOVERY_READ_FLOOR,
+                            ScpMessageSender.READ_TIMEOUT, ScpMessageSender.READ_TIMEOUT));
+            probe.subnetEstimated = !probe.defaultTimeouts && ScpMessageSender.RESPONSE_RTT.subnetEstimated(probe.ip);
+        }
+
+        private void read(SelectionKey key, Probe probe, SocketChannel channel) throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                if (ScpHttp.headerEnd(probe.response, probe.responseLength) < 0) {
+                    // closed without an answer
+                    lost(probe);
+                    finish(key, false);
+                    return;
+                }
+                rate.answered();
+                finish(key, true);
+                return;
+            }
+            if (probe.responseLength + read > ScpHttp.MAX_RESPONSE_SIZE) {
+                rate.answered();
+                finish(key, false);
+                return;
+            }
+            if (probe.responseLength + read > probe.response.length) {
+                byte[] grown = new byte[Math.min(ScpHttp.MAX_RESPONSE_SIZE,
+                        Math.max(probe.response.length * 2, probe.responseLength + read))];
+                System.arraycopy(probe.response, 0, grown, 0, probe.responseLength);
+                probe.response = grown;
+            }
+            readBuffer.flip();
+            readBuffer.get(probe.response, probe.responseLength, read);
+            probe.responseLength += read;
+            if (ScpHttp.isComplete(probe.response, probe.responseLength)) {
+                long elapsed = System.currentTimeMillis() - probe.started;
+                ScpMessageSender.RESPONSE_RTT.sample(probe.ip, elapsed);
+                METRICS.request.recordMillis(elapsed);
+                rate.answered();
+                finish(key, true);
+            }
+        }
+
+        private void drop(Selector selector) {
+            retries.clear();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.isValid()) {
+                    rate.ended();
+                    finish(key, false);
+                }
+            }
+        }
+
+        private void expire(Selector selector) {
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Probe probe = (Probe) key.attachment();
+                if (key.isValid() && probe.deadline <= now) {
+                    timedOut(probe);
+                    finish(key, false);
+                }
+            }
+        }
+
+        // A connected device that doesn't answer or a known device that doesn't accept the connection
+        // means the probe was dropped. Other addresses that time out are most likely just unused.
+        // A deadline estimated from the subnet may be too short for a slow device that never answered,
+        // its address gets one more probe with the default timeouts before it is given up.
+        private void timedOut(Probe probe) {
+            boolean dropped = probe.connected || ScpMessageSender.CONNECT_RTT.hasSamples(probe.ip);
+            if (!probe.subnetEstimated || scanner.cancelled) {
+                if (dropped) {
+                    lost(probe);
+                } else {
+                    rate.ended();
+                }
+                return;
+            }
+            if (dropped) {
+                rate.lost(probe.launched);
+            } else {
+                rate.ended();
+            }
+            METRICS.retries.increment();
+            retries.add(new Retry(probe.ip, probe.attempt, true, System.currentTimeMillis()));
+        }
+
+        // Hands a received 200 body to the handler and recycles the response buffer.
+        // A malformed response or a failing handler only costs this probe, never the lane.
+        private void finish(SelectionKey key, boolean received) {
+            Probe probe = (Probe) key.attachment();
+            key.cancel();
+            closeQuietly(key.channel());
+            inFlight--;
+            if (received) {
+                try {
+                    ScpHttp.Response response = ScpHttp.parse(probe.response, probe.responseLength);
+                    if (response != null && response.status == ScpMessageSender.HTTP_OK && !scanner.cancelled) {
+                        handler.onResponse(probe.ip, response.data, response.bodyOffset, response.bodyLength);
+                    }
+                } catch (RuntimeException ex) {
+                    ScpEvents.log(ScpEvents.Level.WARN, ScpEvents.SCAN, null, probe.ip, null, ScpEvents.NO_DURATION,
+                            "Ignoring the response: " + ex);
+                }
+            }
+            buffers.push(probe.response);
+        }
+
+        private static void closeQuietly(Channel channel) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // nothing left to clean up
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * secure_control_protocol
+ * ScpEvents Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Structured events of scans, messages and provisioning. Logging threads only put the event into a ring buffer,
+// a single writer thread formats it for the outputs, so scan and worker threads never wait for the console.
+// Console lines go to the System.out of the logging thread, in server mode the client that runs the command.
+final class ScpEvents {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    static final long NO_DURATION = -1;
+
+    // Phases of the events that are not about a single message type
+    static final String DISCOVER = "discover";
+    static final String PROVISION = "provision";
+    static final String SCAN = "scan";
+    static final String STORE = "store";
+    static final String HEALTH = "health";
+
+    // Power of two, loggers wait while the buffer is full, so no event is lost
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    // the writer flushes the outputs when the buffer is empty and at least after this many events
+    private static final int FLUSH_BATCH = 256;
+    private static final long WAIT_NANOS = 100_000;
+    private static final long IDLE_NANOS = 100_000_000;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    static final class Event {
+
+        final long time;
+        final Level level;
+        final String thread;
+        final String phase;
+        final String deviceId;
+        final String ip;
+        final String result;
+        final long durationNanos;
+        final String message;
+        // System.out of the logging thread
+        final PrintStream out;
+
+        private Event(Level level, String phase, String deviceId, String ip, String result, long durationNanos,
+                String message) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.phase = phase;
+            this.deviceId = deviceId;
+            this.ip = ip;
+            this.result = result;
+            this.durationNanos = durationNanos;
+            this.message = message;
+            this.out = ScpOutput.current();
+        }
+    }
+
+    abstract static class Output {
+
+        final Level level;
+
+        Output(Level level) {
+            this.level = level;
+        }
+
+        abstract void write(Event event) throws IOException;
+
+        void flush() throws IOException {
+            // unbuffered
+        }
+    }
+
+    // Human readable lines, the device ID in front and the duration behind the message
+    static final class ConsoleOutput extends Output {
+
+        ConsoleOutput(Level level) {
+            super(level);
+        }
+
+        @Override
+        void write(Event event) {
+            if (event.deviceId == null && event.durationNanos == NO_DURATION) {
+                event.out.println(event.message);
+                return;
+            }
+            StringBuilder line = new StringBuilder();
+            if (event.deviceId != null) {
+                line.append(event.deviceId).append(": ");
+            }
+            line.append(event.message);
+            if (event.durationNanos != NO_DURATION) {
+                line.append(" (").append(Math.round(event.durationNanos / (NANOS_PER_MILLI / 10)) / 10.0)
+                        .append(" ms)");
+            }
+            event.out.println(line);
+        }
+    }
+
+    // One JSON object per line, appended to the file
+    static final class JsonLinesOutput extends Output {
+
+        private final Writer writer;
+
+        JsonLinesOutput(Path path, Level level) throws IOException {
+            super(level);
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        @Override
+        void write(Event event) throws IOException {
+            JsonWriter json = new JsonWriter(writer);
+            json.beginObject();
+            json.name("time").value(Instant.ofEpochMilli(event.time).toString());
+            json.name("level").value(event.level.name());
+            json.name("thread").value(event.thread);
+            json.name("phase").value(event.phase);
+            if (event.deviceId != null) {
+                json.name("deviceId").value(event.deviceId);
+            }
+            if (event.ip != null) {
+                json.name("ip").value(event.ip);
+            }
+            if (event.result != null) {
+                json.name("result").value(event.result);
+            }
+            if (event.durationNanos != NO_DURATION) {
+                json.name("durationMs").value(event.durationNanos / NANOS_PER_MILLI);
+            }
+            json.name("message").value(event.message);
+            json.endObject();
+            json.flush();
+            writer.write('\n');
+        }
+
+        @Override
+        void flush() throws IOException {
+            writer.flush();
+        }
+    }
+
+    private static final AtomicReferenceArray<Event> RING = new AtomicReferenceArray<>(CAPACITY);
+    // next sequence handed to a logger, sequence of the next event the writer takes,
+    // all events before FLUSHED have been written and flushed
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static final AtomicLong TAKEN = new AtomicLong();
+    private static final AtomicLong FLUSHED = new AtomicLong();
+
+    private static volatile Output[] outputs = {new ConsoleOutput(Level.INFO)};
+    private static volatile Level minLevel = Level.INFO;
+    private static volatile boolean writerWaiting;
+    private static final Thread WRITER = new Thread(ScpEvents::writeEvents, "scp-events");
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    private ScpEvents() {
+        // this class has only static methods
+    }
+
+    // Events below the level of every output are dropped by the logging thread
+    static boolean enabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    static void log(Level level, String phase, String message) {
+        log(level, phase, null, null, null, NO_DURATION, message);
+    }
+
+    static void log(Level level, String phase, ScpDevice device, String message) {
+        log(level, phase, device, null, NO_DURATION, message);
+    }
+
+    static void log(Level level, String phase, ScpDevice device, String result, long durationNanos,
+            String message) {
+        log(level, phase, device.getDeviceId(), device.ipAddress, result, durationNanos, message);
+    }
+
+    static void log(Level level, String phase, String deviceId, String ip, String result, long durationNanos,
+            String message) {
+        if (!enabled(level)) {
+            return;
+        }
+        publish(new Event(level, phase, deviceId, ip, result, durationNanos, message));
+    }
+
+    // Waits until the events logged so far are written and flushed
+    static void flush() {
+        long logged = CLAIMED.get();
+        while (FLUSHED.get() < logged) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    // Replaces the console output by one with the given level
+    static synchronized void setConsoleLevel(Level level) {
+        Output[] current = outputs;
+        Output[] updated = Arrays.copyOf(current, current.length);
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] instanceof ConsoleOutput) {
+                updated[i] = new ConsoleOutput(level);
+            }
+        }
+        setOutputs(updated);
+    }
+
+    static synchronized void addOutput(Output output) {
+        Output[] current = outputs;
+        Output[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = output;
+        setOutputs(updated);
+    }
+
+    private static void setOutputs(Output[] updated) {
+        Level lowest = Level.ERROR;
+        for (Output output : updated) {
+            if (output.level.compareTo(lowest) < 0) {
+                lowest = output.level;
+            }
+        }
+        outputs = updated;
+        minLevel = lowest;
+    }
+
+    private static void publish(Event event) {
+        long sequence = CLAIMED.getAndIncrement();
+        while (sequence - TAKEN.get() >= CAPACITY) {
+            // full, the writer is behind
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        RING.set((int) sequence & MASK, event);
+        if (writerWaiting) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    private static void writeEvents() {
+        long next = 0;
+        long unflushed = 0;
+        while (true) {
+            int slot = (int) next & MASK;
+            Event event = RING.get(slot);
+            if (event == null || unflushed >= FLUSH_BATCH) {
+                flushOutputs();
+                FLUSHED.set(next);
+                unflushed = 0;
+                if (event == null) {
+                    writerWaiting = true;
+                    // a logger that published before seeing the flag is caught by the second look
+                    if (RING.get(slot) == null) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                    writerWaiting = false;
+                }
+                continue;
+            }
+            RING.set(slot, null);
+            next++;
+            TAKEN.set(next);
+            unflushed++;
+            for (Output output : outputs) {
+                if (event.level.compareTo(output.level) >= 0) {
+                    try {
+                        output.write(event);
+                    } catch (IOException ex) {
+                        remove(output, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void flushOutputs() {
+        for (Output output : outputs) {
+            try {
+                output.flush();
+            } catch (IOException ex) {
+                remove(output, ex);
+            }
+        }
+    }
+
+    private static synchronized void remove(Output failed, IOException ex) {
+        System.out.println("Can't write events, output removed: " + ex.getMessage());
+        Output[] updated = Arrays.stream(outputs).filter(output -> output != failed).toArray(Output[]::new);
+        setOutputs(updated);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * secure_control_protocol
+ * ScpExecutors Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Executors for blocking per device work.
+// On Java 21+ the multi-release jar replaces this class with a virtual thread based variant.
+final class ScpExecutors {
+
+    static final boolean VIRTUAL_THREADS = false;
+
+    private ScpExecutors() {
+        // this class has only static methods
+    }
+
+    // Returns an executor running one task per device on at most platformThreads threads
+    static ExecutorService newPerDeviceExecutor(int platformThreads) {
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+}
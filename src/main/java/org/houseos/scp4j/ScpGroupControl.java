@@ -0,0 +1,119 @@
+/*
+ * secure_control_protocol
+ * ScpGroupControl Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Sends one control command to a group of devices, at most parallelism devices at the same time
+final class ScpGroupControl {
+
+    static final class DeviceResult {
+
+        final String deviceId;
+        final String result;
+        final long latencyMillis;
+
+        DeviceResult(String deviceId, String result, long latencyMillis) {
+            this.deviceId = deviceId;
+            this.result = result;
+            this.latencyMillis = latencyMillis;
+        }
+
+        boolean isSuccess() {
+            return ScpStatus.RESULT_SUCCESS.equals(result);
+        }
+
+        @Override
+        public String toString() {
+            return deviceId + ": " + result + " after " + latencyMillis + " ms";
+        }
+    }
+
+    static final class Result {
+
+        final String command;
+        final List<DeviceResult> deviceResults;
+        final long totalMillis;
+
+        Result(String command, List<DeviceResult> deviceResults, long totalMillis) {
+            this.command = command;
+            this.deviceResults = Collections.unmodifiableList(deviceResults);
+            this.totalMillis = totalMillis;
+        }
+
+        long successCount() {
+            return deviceResults.stream().filter(DeviceResult::isSuccess).count();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (DeviceResult deviceResult : deviceResults) {
+                builder.append(deviceResult).append('\n');
+            }
+            return builder.append("Sent ").append(command).append(" to ").append(deviceResults.size())
+                    .append(" devices, ").append(successCount()).append(" succeeded, took ").append(totalMillis)
+                    .append(" ms").toString();
+        }
+    }
+
+    private ScpGroupControl() {
+        // this class has only static methods
+    }
+
+    // Sends the command to all devices and waits for every device result.
+    // Results keep the order of the given devices, unknown device IDs are reported as errors.
+    static Result send(List<String> deviceIds, List<ScpDevice> devices, String command, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        long start = System.nanoTime();
+        DeviceResult[] results = new DeviceResult[deviceIds.size()];
+        Semaphore permits = new Semaphore(parallelism);
+        ExecutorService executor = ScpExecutors.newPerDeviceExecutor(parallelism);
+        for (int i = 0; i < deviceIds.size(); i++) {
+            final int index = i;
+            final String deviceId = deviceIds.get(i);
+            final ScpDevice device = devices.get(i);
+            if (device == null) {
+                results[index] = new DeviceResult(deviceId, "unknown device", 0);
+                continue;
+            }
+            executor.submit(() -> {
+                permits.acquireUninterruptibly();
+                long deviceStart = System.nanoTime();
+                String result;
+                try {
+                    result = ScpMessageSender.sendControl(device, command);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    result = ScpStatus.RESULT_ERROR;
+                } finally {
+                    permits.release();
+                }
+                results[index] = new DeviceResult(deviceId, result,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deviceStart));
+            });
+        }
+        executor.shutdown();
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        }
+        List<DeviceResult> deviceResults = new ArrayList<>();
+        Collections.addAll(deviceResults, results);
+        return new Result(command, deviceResults, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
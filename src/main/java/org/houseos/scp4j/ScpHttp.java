@@ -0,0 +1,387 @@
+/*
+ * secure_control_protocol
+ * ScpHttp Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Minimal HTTP/1.1 helpers for the raw socket based request paths.
+// Responses stay bytes, the body is handed to the parsers without building a String.
+final class ScpHttp {
+
+    static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final int HEX_RADIX = 16;
+    private static final int STATUS_CODE_LENGTH = 3;
+    private static final int INITIAL_BUFFER_SIZE = 2 * 1024;
+    private static final String HTTP_1_0 = "HTTP/1.0";
+
+    private static final int MAX_IDLE_BUFFERS = 64;
+
+    // Receive buffers, grown on demand up to MAX_RESPONSE_SIZE and borrowed for the read of one response
+    private static final ScpObjectPool<byte[][]> RECEIVE_BUFFERS
+            = new ScpObjectPool<>(() -> new byte[][]{new byte[INITIAL_BUFFER_SIZE]}, MAX_IDLE_BUFFERS);
+
+    // A response with its body located inside data
+    static final class Response {
+
+        final int status;
+        final byte[] data;
+        final int bodyOffset;
+        final int bodyLength;
+        // true if the connection can carry the next request
+        final boolean reusable;
+
+        Response(int status, byte[] data, int bodyOffset, int bodyLength, boolean reusable) {
+            this.status = status;
+            this.data = data;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.reusable = reusable;
+        }
+
+        String bodyAsString() {
+            return new String(data, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    // The connection was closed before the first byte of the response, e.g. an idle connection the device dropped
+    static final class ClosedBeforeResponseException extends EOFException {
+
+        ClosedBeforeResponseException() {
+            super("connection closed before response");
+        }
+    }
+
+    private ScpHttp() {
+        // this class has only static methods
+    }
+
+    static byte[] buildGetRequest(String host, int port, String pathAndQuery, boolean keepAlive) {
+        String request = "GET " + pathAndQuery + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns the offset of the first body byte or -1 if the header is not complete yet
+    static int headerEnd(byte[] raw, int length) {
+        for (int i = 3; i < length; i++) {
+            if (raw[i] == LF && raw[i - 1] == CR && raw[i - 2] == LF && raw[i - 3] == CR) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    static int statusCode(byte[] raw, int length) {
+        // "HTTP/1.1 200 OK"
+        int space = indexOf(raw, 0, length, (byte) ' ');
+        if (space < 0 || space + STATUS_CODE_LENGTH >= length) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = space + 1; i <= space + STATUS_CODE_LENGTH; i++) {
+            int digit = raw[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+
+    // Returns the value of the given (lower case) header or null
+    static String header(byte[] raw, int headerEnd, String name) {
+        String headers = new String(raw, 0, headerEnd, StandardCharsets.US_ASCII);
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase().equals(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    // Returns true if the response can be consumed without waiting for the end of the stream.
+    // A negative content length is complete right away, parse rejects it.
+    static boolean isComplete(byte[] raw, int length) {
+        int bodyStart = headerEnd(raw, length);
+        if (bodyStart < 0) {
+            return false;
+        }
+        String contentLength = header(raw, bodyStart, "content-length");
+        if (contentLength != null) {
+            try {
+                int bodyLength = Integer.parseInt(contentLength);
+                return bodyLength < 0 || length - bodyStart >= bodyLength;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+        if (isChunked(raw, bodyStart)) {
+            return chunkedBodyEnd(raw, bodyStart, length) >= 0;
+        }
+        return false;
+    }
+
+    // Locates the body of a completely received response, a chunked body is decoded in place.
+    // Returns null if the response is malformed.
+    static Response parse(byte[] raw, int length) {
+        int bodyStart = headerEnd(raw, length);
+        if (bodyStart < 0) {
+            return null;
+        }
+        int status = statusCode(raw, length);
+        int bodyLength = length - bodyStart;
+        if (isChunked(raw, bodyStart)) {
+            bodyLength = dechunkInPlace(raw, bodyStart, length);
+            if (bodyLength < 0) {
+                return null;
+            }
+        } else {
+            String contentLength = header(raw, bodyStart, "content-length");
+            if (contentLength != null) {
+                int declaredLength;
+                try {
+                    declaredLength = Integer.parseInt(contentLength);
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+                if (declaredLength < 0) {
+                    return null;
+                }
+                bodyLength = Math.min(bodyLength, declaredLength);
+            }
+        }
+        return new Response(status, raw, bodyStart, bodyLength, false);
+    }
+
+    // Reads exactly one response from a persistent connection into a pooled receive buffer.
+    // The returned response holds a copy of the body, the buffer goes back to the pool.
+    // Throws ClosedBeforeResponseException if the stream ends before the first byte of the response.
+    static Response readResponse(InputStream in) throws IOException {
+        byte[][] buffer = RECEIVE_BUFFERS.borrow();
+        try {
+            return readResponse(in, buffer);
+        } finally {
+            RECEIVE_BUFFERS.release(buffer);
+        }
+    }
+
+    private static Response readResponse(InputStream in, byte[][] buffer) throws IOException {
+        int length = 0;
+        int bodyStart = -1;
+        while (bodyStart < 0) {
+            ensureCapacity(buffer, length + 1);
+            int value = in.read();
+            if (value < 0) {
+                if (length == 0) {
+                    throw new ClosedBeforeResponseException();
+                }
+                throw new IOException("connection closed within HTTP header");
+            }
+            buffer[0][length++] = (byte) value;
+            if (value == LF) {
+                bodyStart = headerEnd(buffer[0], length);
+            }
+        }
+        int status = statusCode(buffer[0], length);
+        boolean keepAlive = isKeepAlive(buffer[0], bodyStart);
+        String contentLength = header(buffer[0], bodyStart, "content-length");
+        if (isChunked(buffer[0], bodyStart)) {
+            length = readChunkedBody(in, buffer, bodyStart);
+        } else if (contentLength != null) {
+            int bodyLength;
+            try {
+                bodyLength = Integer.parseInt(contentLength);
+            } catch (NumberFormatException ex) {
+                throw new IOException("invalid content length " + contentLength);
+            }
+            if (bodyLength < 0) {
+                throw new IOException("invalid content length " + contentLength);
+            }
+            ensureCapacity(buffer, bodyStart + bodyLength);
+            readFully(in, buffer[0], bodyStart, bodyLength);
+            length = bodyStart + bodyLength;
+        } else {
+            // the body is delimited by the end of the stream, the connection can't be reused
+            length = readUntilEnd(in, buffer, bodyStart);
+            keepAlive = false;
+        }
+        return new Response(status, Arrays.copyOfRange(buffer[0], bodyStart, length), 0, length - bodyStart,
+                keepAlive);
+    }
+
+    private static boolean isKeepAlive(byte[] raw, int bodyStart) {
+        boolean http10 = new String(raw, 0, Math.min(bodyStart, HTTP_1_0.length()), StandardCharsets.US_ASCII)
+                .equals(HTTP_1_0);
+        String connection = header(raw, bodyStart, "connection");
+        if (connection == null) {
+            return !http10;
+        }
+        String value = connection.toLowerCase();
+        return value.contains("keep-alive") || !http10 && !value.contains("close");
+    }
+
+    // A negative capacity is a length that overflowed int
+    private static void ensureCapacity(byte[][] buffer, int capacity) throws IOException {
+        if (capacity < 0 || capacity > MAX_RESPONSE_SIZE) {
+            throw new IOException("HTTP response too large");
+        }
+        if (capacity <= buffer[0].length) {
+            return;
+        }
+        byte[] grown = new byte[Math.min(MAX_RESPONSE_SIZE, Math.max(capacity, buffer[0].length * 2))];
+        System.arraycopy(buffer[0], 0, grown, 0, buffer[0].length);
+        buffer[0] = grown;
+    }
+
+    // Appends the decoded chunks behind the header and returns the end of the body
+    private static int readChunkedBody(InputStream in, byte[][] buffer, int bodyStart) throws IOException {
+        int length = bodyStart;
+        while (true) {
+            String sizeLine = readLine(in);
+            int chunkSize = parseChunkSize(sizeLine);
+            if (chunkSize < 0) {
+                throw new IOException("invalid chunk size " + sizeLine);
+            }
+            if (chunkSize == 0) {
+                // skip trailers up to the final empty line
+                while (!readLine(in).isEmpty()) {
+                    continue;
+                }
+                return length;
+            }
+            ensureCapacity(buffer, length + chunkSize);
+            readFully(in, buffer[0], length, chunkSize);
+            length += chunkSize;
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int value;
+        while ((value = in.read()) != LF) {
+            if (value < 0) {
+                throw new EOFException("connection closed within chunked body");
+            }
+            if (value != CR) {
+                line.append((char) value);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] data, int offset, int length) throws IOException {
+        int position = 0;
+        while (position < length) {
+            int read = in.read(data, offset + position, length - position);
+            if (read < 0) {
+                throw new EOFException("connection closed within HTTP body");
+            }
+            position += read;
+        }
+    }
+
+    private static int readUntilEnd(InputStream in, byte[][] buffer, int bodyStart) throws IOException {
+        int length = bodyStart;
+        while (true) {
+            ensureCapacity(buffer, length + 1);
+            int read = in.read(buffer[0], length, buffer[0].length - length);
+            if (read < 0) {
+                return length;
+            }
+            length += read;
+        }
+    }
+
+    private static boolean isChunked(byte[] raw, int bodyStart) {
+        String transferEncoding = header(raw, bodyStart, "transfer-encoding");
+        return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+    }
+
+    // Returns the chunk size of a size line or -1 if it is invalid
+    private static int parseChunkSize(String sizeLine) {
+        int extension = sizeLine.indexOf(';');
+        String size = extension >= 0 ? sizeLine.substring(0, extension) : sizeLine;
+        try {
+            return Integer.parseInt(size.trim(), HEX_RADIX);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Returns the end of the last chunk or -1 if it has not been received yet
+    private static int chunkedBodyEnd(byte[] raw, int bodyStart, int length) {
+        int position = bodyStart;
+        while (position < length) {
+            int lineEnd = indexOf(raw, position, length, LF);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            int chunkSize = parseChunkSize(new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII));
+            if (chunkSize < 0) {
+                return -1;
+            }
+            position = lineEnd + 1;
+            if (chunkSize == 0) {
+                return position;
+            }
+            // chunk data and trailing CRLF, compared without adding to the untrusted size
+            if (chunkSize > length - position - 2) {
+                return -1;
+            }
+            position += chunkSize + 2;
+        }
+        return -1;
+    }
+
+    // Moves the chunk data together at the start of the body, returns the body length or -1
+    private static int dechunkInPlace(byte[] raw, int bodyStart, int length) {
+        int bodyLength = 0;
+        int position = bodyStart;
+        while (position < length) {
+            int lineEnd = indexOf(raw, position, length, LF);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            int chunkSize = parseChunkSize(new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII));
+            if (chunkSize < 0) {
+                return -1;
+            }
+            position = lineEnd + 1;
+            if (chunkSize == 0) {
+                return bodyLength;
+            }
+            if (chunkSize > length - position) {
+                return -1;
+            }
+            System.arraycopy(raw, position, raw, bodyStart + bodyLength, chunkSize);
+            bodyLength += chunkSize;
+            // skip chunk data and trailing CRLF
+            position += chunkSize + 2;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] raw, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (raw[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -6,90 +6,192 @@
  */
 package org.houseos.scp4j;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.houseos.scp4j.ScpEvents.Level;
 
 public final class ScpMessageSender {
 
     static final int PORT = 19316;
     static final int HTTP_OK = 200;
+    // connect timeout until round trip times are known and its upper bound
     static final int CONNECTION_TIMEOUT = 1000;
+    static final int MIN_CONNECTION_TIMEOUT = 200;
+    // read timeout until response times are known and its upper bound
+    static final int READ_TIMEOUT = 5000;
+    // devices may need a while for flash writes or crypto, so reads are never cut shorter than this
+    static final int MIN_READ_TIMEOUT = 2000;
+
+    // TCP connect times and request to response times per device and subnet
+    static final ScpRttEstimator CONNECT_RTT = new ScpRttEstimator("connect");
+    static final ScpRttEstimator RESPONSE_RTT = new ScpRttEstimator("response");
+
+    private static final ScpConnectionPool CONNECTION_POOL = new ScpConnectionPool(
+            ScpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST, ScpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+
+    private static final ScpNvcnManager NVCN_MANAGER = new ScpNvcnManager(
+            ScpNvcnManager.DEFAULT_NVCN_TTL, ScpNvcnManager.DEFAULT_HOT_WINDOW);
+
+    // Runs both requests of a hedged exchange, the caller waits for the first answer
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "scp-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Tests devices with an open circuit breaker once their open time is over
+    private static final int HEALTH_PROBE_THREADS = 2;
+    private static final ScheduledExecutorService HEALTH_PROBES = Executors.newScheduledThreadPool(
+            HEALTH_PROBE_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "scp-health-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Result of an exchange whose connection failed, so the device has not seen the request
+    private static final ScpHttp.Response NOT_SENT = new ScpHttp.Response(0, new byte[0], 0, 0, false);
+    // Result of a message that was not sent because the device is known to be down
+    private static final ScpHttp.Response DEVICE_DOWN = new ScpHttp.Response(0, new byte[0], 0, 0, false);
+    // Result of a message the device received but did not answer, it may have acted on it
+    private static final ScpHttp.Response UNANSWERED = new ScpHttp.Response(0, new byte[0], 0, 0, false);
 
     private ScpMessageSender() {
         //this class consists only of static methods
     }
 
-    static String sendDiscoverHello(String ip) {
-        return requestHttpServer("http://" + ip + ":" + PORT + "/secure-control/discover-hello?payload=discover-hello");
+    static ScpHttp.Response sendDiscoverHello(String ip) {
+        return requestHttpServer(ip, ScpDiscoveryScanner.DISCOVER_HELLO, ScpDiscoveryScanner.DISCOVER_HELLO_PATH);
     }
 
-    static String fetchNVCN(ScpDevice device) {
+    // Returns the 200 response or null if the device did not answer with one
+    static ScpHttp.Response fetchNVCN(ScpDevice device) {
         //plain text = <salt> + ":" + "security-fetch-nvcn" + ":" + <device ID>
-        String salt = new ScpCrypto().generatePassword();
-        String payload = salt + ":security-fetch-nvcn:" + device.getDeviceId();
-        ScpJson scpJson = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
-
-        String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
-        query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
-        query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
-        query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
-
-        return requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
+        String salt = ScpCrypto.getInstance().generatePassword();
+        String payload = salt + ":" + ScpResponseFetchNvcn.TYPE + ":" + device.getDeviceId();
+        ScpHttp.Response response = request(device.ipAddress, ScpResponseFetchNvcn.TYPE,
+                secureControlPath(device, ScpResponseFetchNvcn.TYPE, payload));
+        recordHealth(device, response);
+        return isOk(response) ? response : null;
     }
 
-    static String sendNewPassword(ScpDevice device) {
-        // get NVCN
-        System.out.println("Fetching NVCN");
-        String nvcnResponse = fetchNVCN(device);
-        if (nvcnResponse == null) {
-            return ScpStatus.RESULT_ERROR;
+    // Sends a secure-control message that is bound to a NVCN and returns the 200 response or null:
+    // <salt> + ":" + <type> + ":" + <device ID> + ":" + <NVCN> [+ ":" + <arguments>]
+    // If the device rejects a prefetched NVCN, the message is sent once more with a freshly fetched one: the
+    // prefetched NVCN was never used before and the exchange does not resend a delivered message, so the device
+    // rejected the stale NVCN and not a replay. Otherwise it is sent again by the policy of the type, which
+    // repeats messages that change the device only if they were not sent.
+    // Returns DEVICE_DOWN without sending anything while the circuit breaker of the device is open
+    // and UNANSWERED if the message itself got no response.
+    private static ScpHttp.Response sendWithNvcn(ScpDevice device, String type, String arguments) {
+        ScpDeviceHealth health = device.health();
+        if (!health.tryRequest(System.currentTimeMillis())) {
+            ScpEvents.log(Level.INFO, type, device, ScpStatus.RESULT_DEVICE_DOWN, ScpEvents.NO_DURATION,
+                    "Not sent, the device did not answer the last " + health.consecutiveFailures + " times");
+            scheduleHealthProbe(device);
+            return DEVICE_DOWN;
         }
-        ScpResponseFetchNvcn parsedNvcnResponse
-                = ScpResponseParser.parseNvcnResponse(nvcnResponse);
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(type);
+        ScpRetryPolicy policy = ScpRetryPolicy.forType(type);
+        boolean mayUsePrefetched = true;
+        int attempt = 1;
+        while (true) {
+            long start = System.nanoTime();
+            String nvcn = mayUsePrefetched ? NVCN_MANAGER.takePrefetched(device) : null;
+            boolean prefetched = nvcn != null;
+            if (!prefetched) {
+                ScpEvents.log(Level.DEBUG, type, device, "Fetching NVCN");
+                // the NVCN request records the health of the device
+                nvcn = NVCN_MANAGER.fetch(device);
+                if (nvcn == null) {
+                    return null;
+                }
+            }
+            metrics.nvcnFetch.recordNanos(System.nanoTime() - start);
+            ScpHttp.Response response = exchange(device.ipAddress, type,
+                    secureControlPath(device, type, nvcnPayload(device, type, nvcn, arguments)));
+            if (isOk(response)) {
+                recordHealth(device, response);
+                return response;
+            }
+            ScpRetryPolicy.Failure failure = failure(response);
+            if (failure == ScpRetryPolicy.Failure.REJECTED) {
+                // the NVCN may be used up or replaced by a newer one
+                NVCN_MANAGER.invalidate(device);
+                if (prefetched) {
+                    ScpEvents.log(Level.DEBUG, type, device, "Prefetched NVCN rejected, fetching NVCN");
+                    mayUsePrefetched = false;
+                    continue;
+                }
+            }
+            if (!retryAfter(device.ipAddress, type, policy, failure, attempt)) {
+                recordHealth(device, response);
+                return failure == ScpRetryPolicy.Failure.NO_RESPONSE ? UNANSWERED : null;
+            }
+            attempt++;
+        }
+    }
 
-        String nvcn = parsedNvcnResponse.nvcn;
-        // generate new password
-        String password = new ScpCrypto().generatePassword();
-        //send new password
-        // <salt> + ":" + "security-pw-change" + ":" + <device ID> + ":" + <NVCN> + ":" + <new password>
+    private static String nvcnPayload(ScpDevice device, String type, String nvcn, String arguments) {
+        String salt = ScpCrypto.getInstance().generatePassword();
+        String payload = salt + ":" + type + ":" + device.getDeviceId() + ":" + nvcn;
+        return arguments == null ? payload : payload + ":" + arguments;
+    }
 
-        String salt = new ScpCrypto().generatePassword();
-        String payload
-                = salt + ":security-pw-change:" + device.getDeviceId() + ":" + nvcn + ":" + password;
-        ScpJson scpJson
-                = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
+    // Encrypts the payload with the known password of the device and builds the secure-control request
+    private static String secureControlPath(ScpDevice device, String type, String payload) {
+        long start = System.nanoTime();
+        ScpJson scpJson = ScpCrypto.getInstance().encryptThenEncode(device.knownPassword, payload);
+        ScpMetrics.message(type).encrypt.recordNanos(System.nanoTime() - start);
 
         String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
         query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
         query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
         query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
+        return "/secure-control?" + query;
+    }
 
-        // await response
-        System.out.println("Setting new password");
-        String newPasswordResponse
-                = requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
-
-        if (newPasswordResponse == null) {
-            System.out.println("failed to send new password");
+    static String sendNewPassword(ScpDevice device) {
+        // generate new password
+        String password = ScpCrypto.getInstance().generatePassword();
+        //send new password
+        // <salt> + ":" + "security-pw-change" + ":" + <device ID> + ":" + <NVCN> + ":" + <new password>
+        ScpEvents.log(Level.DEBUG, "security-pw-change", device, "Setting new password");
+        long start = System.nanoTime();
+        ScpHttp.Response newPasswordResponse = sendWithNvcn(device, "security-pw-change", password);
+
+        if (newPasswordResponse == DEVICE_DOWN) {
+            return ScpStatus.RESULT_DEVICE_DOWN;
+        } else if (newPasswordResponse == null || newPasswordResponse == UNANSWERED) {
+            ScpEvents.log(Level.WARN, "security-pw-change", device, ScpStatus.RESULT_ERROR, System.nanoTime() - start,
+                    "failed to send new password");
             return ScpStatus.RESULT_ERROR;
         } else {
             ScpResponseSetPassword parsedResponse
-                    = ScpResponseParser.parseSetPasswordResponse(
-                            newPasswordResponse, password);
+                    = ScpResponseParser.parseSetPasswordResponse(newPasswordResponse.data,
+                            newPasswordResponse.bodyOffset, newPasswordResponse.bodyLength, password);
             if (parsedResponse != null) {
                 if (parsedResponse.result.equals(ScpStatus.RESULT_DONE)) {
-                    System.out.println("Successfully set new password.");
                     device.knownPassword = password;
                     device.currentPasswordNumber
                             = Integer.parseInt(parsedResponse.currentPasswordNumber);
                     device.isDefaultPasswordSet = false;
-                    System.out.println(device.toString());
+                    ScpEvents.log(Level.DEBUG, "security-pw-change", device, ScpStatus.RESULT_DONE,
+                            System.nanoTime() - start, "Successfully set new password.");
                     return ScpStatus.RESULT_DONE;
                 }
             }
@@ -98,49 +200,34 @@ public final class ScpMessageSender {
     }
 
     static String sendWifiConfig(ScpDevice device, String ssid, String preSharedKey) {
-        // get NVCN
-        System.out.println("Fetching NVCN");
-        String nvcnResponse = fetchNVCN(device);
-        if (nvcnResponse == null) {
-            return ScpStatus.RESULT_ERROR;
-        }
-        ScpResponseFetchNvcn parsedNvcnResponse
-                = ScpResponseParser.parseNvcnResponse(nvcnResponse);
-
-        String nvcn = parsedNvcnResponse.nvcn;
 
         //send new wifi credentials
         // <salt> + ":" + "security-wifi-config" + ":" + <device ID> + ":"
         // + <NVCN> + ":" + <ssid> + ":" + <pre-shared-key>
-        String salt = new ScpCrypto().generatePassword();
-        String payload
-                = salt + ":security-wifi-config:" + device.getDeviceId() + ":" + nvcn + ":" + ssid + ":" + preSharedKey;
-        ScpJson scpJson
-                = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
-
-        String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
-        query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
-        query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
-        query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
-
-        // await response
-        System.out.println("Setting new wifi credentials");
-        String setWifiCredentialsResponse
-                = requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
-
-        if (setWifiCredentialsResponse == null) {
-            System.out.println("failed to send Wifi credentials");
+        ScpEvents.log(Level.DEBUG, "security-wifi-config", device, "Setting new wifi credentials");
+        long start = System.nanoTime();
+        ScpHttp.Response setWifiCredentialsResponse
+                = sendWithNvcn(device, "security-wifi-config", ssid + ":" + preSharedKey);
+
+        if (setWifiCredentialsResponse == DEVICE_DOWN) {
+            return ScpStatus.RESULT_DEVICE_DOWN;
+        } else if (setWifiCredentialsResponse == null || setWifiCredentialsResponse == UNANSWERED) {
+            ScpEvents.log(Level.WARN, "security-wifi-config", device, ScpStatus.RESULT_ERROR,
+                    System.nanoTime() - start, "failed to send Wifi credentials");
             return ScpStatus.RESULT_ERROR;
         } else {
             ScpResponseSetWifiConfig parsedResponse
-                    = ScpResponseParser.parseSetWifiConfigResponse(
-                            setWifiCredentialsResponse, device.knownPassword);
+                    = ScpResponseParser.parseSetWifiConfigResponse(setWifiCredentialsResponse.data,
+                            setWifiCredentialsResponse.bodyOffset, setWifiCredentialsResponse.bodyLength,
+                            device.knownPassword);
             if (parsedResponse != null) {
                 if (parsedResponse.result.equals(ScpStatus.RESULT_SUCCESS)) {
-                    System.out.println("Successfully set Wifi config, ready for restart.");
+                    ScpEvents.log(Level.DEBUG, "security-wifi-config", device, parsedResponse.result,
+                            System.nanoTime() - start, "Successfully set Wifi config, ready for restart.");
                     return ScpStatus.RESULT_DONE;
                 } else if (parsedResponse.result.equals(ScpStatus.RESULT_ERROR)) {
-                    System.out.println("Failed setting Wifi config.");
+                    ScpEvents.log(Level.WARN, "security-wifi-config", device, parsedResponse.result,
+                            System.nanoTime() - start, "Failed setting Wifi config.");
                     return ScpStatus.RESULT_ERROR;
                 }
             }
@@ -149,47 +236,37 @@ public final class ScpMessageSender {
     }
 
     static String sendRestart(ScpDevice device) {
-        // get NVCN
-        System.out.println("Fetching NVCN");
-        String nvcnResponse = fetchNVCN(device);
-        if (nvcnResponse == null) {
-            return ScpStatus.RESULT_ERROR;
-        }
-        ScpResponseFetchNvcn parsedNvcnResponse
-                = ScpResponseParser.parseNvcnResponse(nvcnResponse);
-
-        String nvcn = parsedNvcnResponse.nvcn;
-
-        //send new wifi credentials
-        // <salt> + ":" + "security-wifi-config" + ":" + <device ID> + ":" + <NVCN>
-        String salt = new ScpCrypto().generatePassword();
-        String payload = salt + ":security-restart:" + device.getDeviceId() + ":" + nvcn;
-        ScpJson scpJson
-                = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
-
-        String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
-        query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
-        query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
-        query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
-
-        // await response
-        System.out.println("Restarting device.");
-        String restartDeviceResponse
-                = requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
 
-        if (restartDeviceResponse == null) {
-            System.out.println("failed to restart device");
+        //send restart
+        // <salt> + ":" + "security-restart" + ":" + <device ID> + ":" + <NVCN>
+        ScpEvents.log(Level.DEBUG, "security-restart", device, "Restarting device.");
+        long start = System.nanoTime();
+        ScpHttp.Response restartDeviceResponse = sendWithNvcn(device, "security-restart", null);
+
+        if (restartDeviceResponse == DEVICE_DOWN) {
+            return ScpStatus.RESULT_DEVICE_DOWN;
+        } else if (restartDeviceResponse == UNANSWERED) {
+            // the device may restart before its answer is sent
+            ScpEvents.log(Level.INFO, "security-restart", device, ScpStatus.RESULT_NO_ANSWER,
+                    System.nanoTime() - start, "No answer to the restart, the device may have restarted already");
+            return ScpStatus.RESULT_NO_ANSWER;
+        } else if (restartDeviceResponse == null) {
+            ScpEvents.log(Level.WARN, "security-restart", device, ScpStatus.RESULT_ERROR, System.nanoTime() - start,
+                    "failed to restart device");
             return ScpStatus.RESULT_ERROR;
         } else {
             ScpResponseRestart parsedResponse
-                    = ScpResponseParser.parseRestartDeviceResponse(
-                            restartDeviceResponse, device.knownPassword);
+                    = ScpResponseParser.parseRestartDeviceResponse(restartDeviceResponse.data,
+                            restartDeviceResponse.bodyOffset, restartDeviceResponse.bodyLength,
+                            device.knownPassword);
             if (parsedResponse != null) {
                 if (parsedResponse.result.equals(ScpStatus.RESULT_SUCCESS)) {
-                    System.out.println("Successfully restarted device.");
+                    ScpEvents.log(Level.DEBUG, "security-restart", device, parsedResponse.result,
+                            System.nanoTime() - start, "Successfully restarted device.");
                     return ScpStatus.RESULT_DONE;
                 } else if (parsedResponse.result.equals(ScpStatus.RESULT_ERROR)) {
-                    System.out.println("Failed to restart device.");
+                    ScpEvents.log(Level.WARN, "security-restart", device, parsedResponse.result,
+                            System.nanoTime() - start, "Failed to restart device.");
                     return ScpStatus.RESULT_ERROR;
                 }
             }
@@ -198,46 +275,31 @@ public final class ScpMessageSender {
     }
 
     static String sendResetToDefault(ScpDevice device) {
-        // get NVCN
-        System.out.println("Fetching NVCN");
-        String nvcnResponse = fetchNVCN(device);
-        if (nvcnResponse == null) {
-            return ScpStatus.RESULT_ERROR;
-        }
-        ScpResponseFetchNvcn parsedNvcnResponse
-                = ScpResponseParser.parseNvcnResponse(nvcnResponse);
 
-        String nvcn = parsedNvcnResponse.nvcn;
-
-        //send control command
+        //send reset to default
         // <salt> + ":" + "security-reset-to-default" + ":" + <device ID> + ":" + <NVCN>
-        String salt = new ScpCrypto().generatePassword();
-        String payload = salt + ":security-reset-to-default:" + device.getDeviceId() + ":" + nvcn;
-        ScpJson scpJson
-                = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
-
-        String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
-        query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
-        query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
-        query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
-
-        // await response
-        System.out.println("Send reset to default message");
-        String resetToDefaultMessage
-                = requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
-
-        if (resetToDefaultMessage == null) {
-            System.out.println("failed to send reset to default message");
+        ScpEvents.log(Level.DEBUG, "security-reset-to-default", device, "Send reset to default message");
+        long start = System.nanoTime();
+        ScpHttp.Response resetToDefaultMessage = sendWithNvcn(device, "security-reset-to-default", null);
+
+        if (resetToDefaultMessage == DEVICE_DOWN) {
+            return ScpStatus.RESULT_DEVICE_DOWN;
+        } else if (resetToDefaultMessage == null || resetToDefaultMessage == UNANSWERED) {
+            ScpEvents.log(Level.WARN, "security-reset-to-default", device, ScpStatus.RESULT_ERROR,
+                    System.nanoTime() - start, "failed to send reset to default message");
             return ScpStatus.RESULT_ERROR;
         } else {
-            ScpResponseResetToDefault parsedResponse = ScpResponseParser.parseResetToDefault(resetToDefaultMessage,
+            ScpResponseResetToDefault parsedResponse = ScpResponseParser.parseResetToDefault(
+                    resetToDefaultMessage.data, resetToDefaultMessage.bodyOffset, resetToDefaultMessage.bodyLength,
                     device.knownPassword);
             if (parsedResponse != null) {
                 if (parsedResponse.result.equals(ScpStatus.RESULT_SUCCESS)) {
-                    System.out.println("Successfully reset the device to default.");
+                    ScpEvents.log(Level.DEBUG, "security-reset-to-default", device, parsedResponse.result,
+                            System.nanoTime() - start, "Successfully reset the device to default.");
                     return ScpStatus.RESULT_SUCCESS;
                 } else if (parsedResponse.result.equals(ScpStatus.RESULT_ERROR)) {
-                    System.out.println("Failed resetting the device to default.");
+                    ScpEvents.log(Level.WARN, "security-reset-to-default", device, parsedResponse.result,
+                            System.nanoTime() - start, "Failed resetting the device to default.");
                     return ScpStatus.RESULT_ERROR;
                 }
             }
@@ -246,46 +308,34 @@ public final class ScpMessageSender {
     }
 
     static String sendControl(ScpDevice device, String action) {
-        // get NVCN
-        System.out.println("Fetching NVCN");
-        String nvcnResponse = fetchNVCN(device);
-        if (nvcnResponse == null) {
-            return ScpStatus.RESULT_ERROR;
-        }
-
-        ScpResponseFetchNvcn parsedNvcnResponse = ScpResponseParser.parseNvcnResponse(nvcnResponse);
-
-        String nvcn = parsedNvcnResponse.nvcn;
 
         //send control command
         // <salt> + ":" + "control" + ":" + <device ID> + ":" + <NVCN> + ":" + action
-        String salt = new ScpCrypto().generatePassword();
-        String payload = salt + ":control:" + device.getDeviceId() + ":" + nvcn + ":" + action;
-        ScpJson scpJson = new ScpCrypto().encryptThenEncode(device.knownPassword, payload);
-
-        String query = "nonce=" + urlEncode(scpJson.encryptedPayload.base64Nonce);
-        query += "&payload=" + urlEncode(scpJson.encryptedPayload.base64Data);
-        query += "&payloadLength=" + scpJson.encryptedPayload.dataLength;
-        query += "&mac=" + urlEncode(scpJson.encryptedPayload.base64Mac);
-
-        // await response
-        System.out.println("Send control command: " + action);
-        String controlResponse
-                = requestHttpServer("http://" + device.ipAddress + ":" + PORT + "/secure-control?" + query);
-
-        if (controlResponse == null) {
-            System.out.println("failed to send control command");
+        if (ScpEvents.enabled(Level.DEBUG)) {
+            ScpEvents.log(Level.DEBUG, "control", device, "Send control command: " + action);
+        }
+        long start = System.nanoTime();
+        ScpHttp.Response controlResponse = sendWithNvcn(device, "control", action);
+
+        if (controlResponse == DEVICE_DOWN) {
+            return ScpStatus.RESULT_DEVICE_DOWN;
+        } else if (controlResponse == null || controlResponse == UNANSWERED) {
+            ScpEvents.log(Level.WARN, "control", device, ScpStatus.RESULT_ERROR, System.nanoTime() - start,
+                    "failed to send control command");
             return ScpStatus.RESULT_ERROR;
         } else {
-            ScpResponseControl parsedResponse = ScpResponseParser.parseControlResponse(controlResponse,
-                    device.knownPassword);
+            ScpResponseControl parsedResponse = ScpResponseParser.parseControlResponse(controlResponse.data,
+                    controlResponse.bodyOffset, controlResponse.bodyLength, device.knownPassword);
             if (parsedResponse != null) {
                 if (parsedResponse.result.equals(ScpStatus.RESULT_SUCCESS) && action.equals(parsedResponse.action)) {
-                    System.out.println("Successfully controlled device.");
+                    ScpEvents.log(Level.DEBUG, "control", device, parsedResponse.result, System.nanoTime() - start,
+                            "Successfully controlled device.");
+                    NVCN_MANAGER.markUsed(device);
                     return ScpStatus.RESULT_SUCCESS;
                 } else if (parsedResponse.result.equals(ScpStatus.RESULT_ERROR)
                         || !action.equals(parsedResponse.action)) {
-                    System.out.println("Failed controlling device.");
+                    ScpEvents.log(Level.WARN, "control", device, parsedResponse.result, System.nanoTime() - start,
+                            "Failed controlling device.");
                     return ScpStatus.RESULT_ERROR;
                 }
             }
@@ -294,23 +344,201 @@ public final class ScpMessageSender {
         return ScpStatus.RESULT_ERROR;
     }
 
-    private static String requestHttpServer(String url) {
-        String response = "";
+    // Sends a GET request and returns the response if its status is 200, otherwise null.
+    // Failed requests are repeated and slow requests hedged as the policy of the type allows.
+    private static ScpHttp.Response requestHttpServer(String ip, String type, String pathAndQuery) {
+        ScpHttp.Response response = request(ip, type, pathAndQuery);
+        return isOk(response) ? response : null;
+    }
+
+    // Like requestHttpServer, but returns the result of the last attempt
+    private static ScpHttp.Response request(String ip, String type, String pathAndQuery) {
+        ScpRetryPolicy policy = ScpRetryPolicy.forType(type);
+        for (int attempt = 1;; attempt++) {
+            ScpHttp.Response response = hedgedExchange(ip, type, pathAndQuery, policy);
+            if (isOk(response) || !retryAfter(ip, type, policy, failure(response), attempt)) {
+                return response;
+            }
+        }
+    }
+
+    // Any answer, even an HTTP error, shows the device is up, a failed connection or a missing answer counts
+    // as failure. Opening the breaker schedules the background probe of the device.
+    private static void recordHealth(ScpDevice device, ScpHttp.Response response) {
+        ScpDeviceHealth health = device.health();
+        long now = System.currentTimeMillis();
+        if (response != null && response != NOT_SENT) {
+            health.succeeded(now);
+        } else if (health.failed(now)) {
+            ScpEvents.log(Level.WARN, ScpEvents.HEALTH, device, ScpDeviceHealth.State.OPEN.name(),
+                    ScpEvents.NO_DURATION, "No answer " + health.consecutiveFailures
+                    + " times in a row, failing fast for " + health.openTimeLeft(now) / 1000 + " s");
+            scheduleHealthProbe(device);
+        }
+    }
+
+    // Probes the device in the background once its breaker is half open, unless a probe is scheduled already
+    private static void scheduleHealthProbe(ScpDevice device) {
+        ScpDeviceHealth health = device.health();
+        if (health.claimProbe()) {
+            HEALTH_PROBES.schedule(() -> probeHealth(device), health.openTimeLeft(System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sends discover-hello as the trial request of the half open breaker, an answer closes it.
+    // The changed health is stored if the device store is open.
+    private static void probeHealth(ScpDevice device) {
+        ScpDeviceHealth health = device.health();
+        health.probeStarted();
+        long now = System.currentTimeMillis();
+        if (!health.tryRequest(now)) {
+            // reopened by another failure meanwhile, or another request is testing the device
+            if (health.state(now) == ScpDeviceHealth.State.OPEN) {
+                scheduleHealthProbe(device);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        ScpHttp.Response response = request(device.ipAddress, ScpDiscoveryScanner.DISCOVER_HELLO,
+                ScpDiscoveryScanner.DISCOVER_HELLO_PATH);
+        recordHealth(device, response);
+        if (health.state(System.currentTimeMillis()) == ScpDeviceHealth.State.CLOSED) {
+            ScpEvents.log(Level.INFO, ScpEvents.HEALTH, device, ScpDeviceHealth.State.CLOSED.name(),
+                    System.nanoTime() - start, "Device answers again");
+        }
+        Scp.getInstance().storeHealthChanges(Collections.singletonList(device), false);
+    }
+
+    private static boolean isOk(ScpHttp.Response response) {
+        return response != null && response.status == HTTP_OK;
+    }
+
+    private static ScpRetryPolicy.Failure failure(ScpHttp.Response response) {
+        if (response == NOT_SENT) {
+            return ScpRetryPolicy.Failure.NOT_SENT;
+        }
+        return response == null ? ScpRetryPolicy.Failure.NO_RESPONSE : ScpRetryPolicy.Failure.REJECTED;
+    }
+
+    // Waits for the backoff of the policy if the failed attempt may be repeated
+    private static boolean retryAfter(String ip, String type, ScpRetryPolicy policy, ScpRetryPolicy.Failure failure,
+            int attempt) {
+        if (!policy.retryable(failure, attempt)) {
+            return false;
+        }
+        long delay = policy.backoffMillis(attempt);
+        ScpMetrics.message(type).retries.increment();
+        if (ScpEvents.enabled(Level.DEBUG)) {
+            ScpEvents.log(Level.DEBUG, type, null, ip, failure.name(), ScpEvents.NO_DURATION,
+                    "Attempt " + attempt + " failed, retrying in " + delay + " ms");
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Sends the request and a second one if the first is unanswered after the hedge delay of the type.
+    // Returns the first 200 response, otherwise the result of the request that finished last.
+    private static ScpHttp.Response hedgedExchange(String ip, String type, String pathAndQuery,
+            ScpRetryPolicy policy) {
+        long hedgeDelay = policy.hedgeDelayNanos();
+        if (hedgeDelay == ScpRetryPolicy.NO_HEDGE) {
+            return exchange(ip, type, pathAndQuery);
+        }
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(type);
+        Callable<ScpHttp.Response> request = () -> exchange(ip, type, pathAndQuery);
+        CompletionService<ScpHttp.Response> requests = new ExecutorCompletionService<>(HEDGE_EXECUTOR);
+        requests.submit(request);
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            connection.setRequestMethod("GET");
-            connection.connect();
-            if (connection.getResponseCode() != HTTP_OK) {
-                connection.disconnect();
-                return null;
+            Future<ScpHttp.Response> done = requests.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done != null) {
+                return done.get();
+            }
+            Future<ScpHttp.Response> hedge = requests.submit(request);
+            done = requests.take();
+            if (!isOk(done.get())) {
+                done = requests.take();
             }
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                response += inputLine;
+            (done == hedge ? metrics.hedgesWon : metrics.hedgesLost).increment();
+            return done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    // Sends a GET request over a pooled keep-alive connection, returns null if no response was received
+    // and NOT_SENT if no connection could be established.
+    private static ScpHttp.Response exchange(String ip, String type, String pathAndQuery) {
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(type);
+        long exchangeStart = System.nanoTime();
+        ScpHttp.Response response = exchange(ip, pathAndQuery, ScpRetryPolicy.forType(type).readOnly, metrics);
+        long elapsed = System.nanoTime() - exchangeStart;
+        if (response == null || response == NOT_SENT) {
+            metrics.noResponse.recordNanos(elapsed);
+        } else if (response.status != HTTP_OK) {
+            metrics.httpError.recordNanos(elapsed);
+        } else {
+            metrics.ok.recordNanos(elapsed);
+        }
+        return response;
+    }
+
+    // A reused connection the device has closed is replaced once by a fresh one. The request is only sent again
+    // if it could not be written or the connection closed before any response byte, a read-only request also
+    // after a reset while reading. Otherwise the device may have acted on a message that changes it.
+    private static ScpHttp.Response exchange(String ip, String pathAndQuery, boolean readOnly,
+            ScpMetrics.MessageMetrics metrics) {
+        byte[] request = ScpHttp.buildGetRequest(ip, PORT, pathAndQuery, true);
+        try {
+            while (true) {
+                ScpConnectionPool.Connection connection;
+                try {
+                    connection = CONNECTION_POOL.borrow(ip, PORT,
+                            CONNECT_RTT.timeout(ip, MIN_CONNECTION_TIMEOUT, CONNECTION_TIMEOUT, CONNECTION_TIMEOUT));
+                } catch (IOException ex) {
+                    return NOT_SENT;
+                }
+                if (!connection.reused) {
+                    CONNECT_RTT.sample(ip, TimeUnit.NANOSECONDS.toMillis(connection.connectNanos));
+                    metrics.connect.recordNanos(connection.connectNanos);
+                }
+                boolean reusable = false;
+                boolean written = false;
+                try {
+                    // a hung device must not block the caller forever
+                    connection.socket.setSoTimeout(
+                            RESPONSE_RTT.timeout(ip, MIN_READ_TIMEOUT, READ_TIMEOUT, READ_TIMEOUT));
+                    long start = System.nanoTime();
+                    connection.out.write(request);
+                    connection.out.flush();
+                    written = true;
+                    ScpHttp.Response response = ScpHttp.readResponse(connection.in);
+                    long elapsed = System.nanoTime() - start;
+                    RESPONSE_RTT.sample(ip, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                    metrics.request.recordNanos(elapsed);
+                    reusable = response.reusable;
+                    return response;
+                } catch (IOException ex) {
+                    // the device may have closed an idle connection, repeat once on a fresh one
+                    boolean closed = ex instanceof EOFException || ex instanceof SocketException;
+                    boolean unanswered = !written || ex instanceof ScpHttp.ClosedBeforeResponseException
+                            || readOnly && closed;
+                    if (!connection.reused || !closed || !unanswered) {
+                        throw ex;
+                    }
+                } finally {
+                    CONNECTION_POOL.release(connection, reusable);
+                }
             }
-            in.close();
         } catch (IOException ioex) {
             // can't connect to targetURL
             return null;
@@ -318,7 +546,20 @@ public final class ScpMessageSender {
             ex.printStackTrace();
             return null;
         }
-        return response;
+    }
+
+    // Fetches the next NVCN of the device in the background, so the next message needs one round trip
+    static void prefetchNvcn(ScpDevice device) {
+        NVCN_MANAGER.prefetch(device);
+    }
+
+    // Learned round trip times of the subnets
+    static List<ScpRttEstimator.Estimate> subnetRoundTripTimes() {
+        return CONNECT_RTT.subnetEstimates();
+    }
+
+    static ScpConnectionPool.Stats connectionPoolStats() {
+        return CONNECTION_POOL.stats();
     }
 
     private static String urlEncode(String value) {
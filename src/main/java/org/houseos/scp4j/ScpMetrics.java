@@ -0,0 +1,486 @@
+/*
+ * secure_control_protocol
+ * ScpMetrics Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Latency histograms and counters of the messages and scans, exported as Prometheus text and via JMX.
+// Recording is a few atomic adds, the metrics of a message type are looked up once per message.
+// -Dscp4j.metrics=false turns recording off.
+final class ScpMetrics {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("scp4j.metrics", "true"));
+
+    static final String JMX_DOMAIN = "org.houseos.scp4j";
+
+    // Phases of a message
+    static final String CONNECT = "connect";
+    static final String NVCN_FETCH = "nvcn_fetch";
+    static final String ENCRYPT = "encrypt";
+    static final String REQUEST = "request";
+    static final String HMAC_VERIFY = "hmac_verify";
+    static final String PARSE = "parse";
+
+    // Outcomes of an exchange
+    static final String OK = "ok";
+    static final String HTTP_ERROR = "http_error";
+    static final String NO_RESPONSE = "no_response";
+
+    private static final String PHASE_SECONDS = "scp_phase_seconds";
+    private static final String MESSAGE_SECONDS = "scp_message_seconds";
+    private static final String RESPONSES_TOTAL = "scp_responses_total";
+    private static final String RETRIES_TOTAL = "scp_retries_total";
+    private static final String HEDGES_TOTAL = "scp_hedges_total";
+    private static final String SCAN_SECONDS = "scp_scan_seconds";
+    private static final String SCAN_PROBES_TOTAL = "scp_scan_probes_total";
+    private static final String SCAN_DEVICES_TOTAL = "scp_scan_devices_total";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    // Families in output order with their help text
+    private static final Map<String, String> HELP = new LinkedHashMap<>();
+
+    static {
+        HELP.put(PHASE_SECONDS, "Time spent in a phase of a SCP message.");
+        HELP.put(MESSAGE_SECONDS, "Time from sending a SCP message until its response, by outcome.");
+        HELP.put(RESPONSES_TOTAL, "Parsed SCP responses, by result.");
+        HELP.put(RETRIES_TOTAL, "SCP messages sent again after a failure.");
+        HELP.put(HEDGES_TOTAL, "Second requests sent while the first one was slow, by whether they answered first.");
+        HELP.put(SCAN_SECONDS, "Duration of discovery scans.");
+        HELP.put(SCAN_PROBES_TOTAL, "Discovery probes, by outcome.");
+        HELP.put(SCAN_DEVICES_TOTAL, "Devices found by discovery scans.");
+    }
+
+    private static final Map<String, Metric> METRICS = new ConcurrentHashMap<>();
+    private static final Map<String, MessageMetrics> MESSAGES = new ConcurrentHashMap<>();
+    private static volatile MBeanServer mbeanServer;
+
+    // Log-linear buckets like HdrHistogram: every power of two is split into 16 linear sub-buckets,
+    // so a recorded value is off by at most 1/16 (6.25 %). Values are microseconds.
+    static final class Histogram extends Metric {
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // up to 2^40 us, about 12 days
+        private static final int MAX_BITS = 40;
+        // the exact values below 16 and 16 sub-buckets for each power of two from 2^4 to 2^40
+        private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String labels) {
+            super(name, labels);
+        }
+
+        void record(long micros) {
+            if (!ENABLED) {
+                return;
+            }
+            long value = Math.max(0, micros);
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+            long previousMax = max.get();
+            while (value > previousMax && !max.compareAndSet(previousMax, value)) {
+                previousMax = max.get();
+            }
+        }
+
+        void recordNanos(long nanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        void recordMillis(long millis) {
+            record(TimeUnit.MILLISECONDS.toMicros(millis));
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_BITS) {
+                return BUCKETS - 1;
+            }
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // Highest value that falls into the bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        double sumSeconds() {
+            return sum.sum() / MICROS_PER_SECOND;
+        }
+
+        double maxSeconds() {
+            return max.get() / MICROS_PER_SECOND;
+        }
+
+        // Values of the quantiles in seconds, taken from one pass over the buckets
+        double[] quantileSeconds(double[] quantiles) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            double[] values = new double[quantiles.length];
+            if (total == 0) {
+                return values;
+            }
+            int bucket = 0;
+            long seen = snapshot[0];
+            for (int q = 0; q < quantiles.length; q++) {
+                long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+                while (seen < rank && bucket < BUCKETS - 1) {
+                    seen += snapshot[++bucket];
+                }
+                values[q] = Math.min(upperBound(bucket), max.get()) / MICROS_PER_SECOND;
+            }
+            return values;
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder out) {
+            double[] values = quantileSeconds(QUANTILES);
+            String separator = labels.isEmpty() ? "" : ",";
+            for (int q = 0; q < QUANTILES.length; q++) {
+                out.append(name).append('{').append(labels).append(separator).append("quantile=\"")
+                        .append(QUANTILES[q]).append("\"} ").append(values[q]).append('\n');
+            }
+            out.append(name).append("_sum").append(braced(labels)).append(' ').append(sumSeconds()).append('\n');
+            out.append(name).append("_count").append(braced(labels)).append(' ').append(count()).append('\n');
+        }
+
+        @Override
+        String prometheusType() {
+            return "summary";
+        }
+
+        @Override
+        Map<String, Object> attributes() {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            double[] values = quantileSeconds(QUANTILES);
+            long count = count();
+            attributes.put("Count", count);
+            attributes.put("SumSeconds", sumSeconds());
+            attributes.put("MeanSeconds", count == 0 ? 0.0 : sumSeconds() / count);
+            attributes.put("P50Seconds", values[0]);
+            attributes.put("P90Seconds", values[1]);
+            attributes.put("P99Seconds", values[2]);
+            attributes.put("P999Seconds", values[3]);
+            attributes.put("MaxSeconds", maxSeconds());
+            return attributes;
+        }
+    }
+
+    static final class Counter extends Metric {
+
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String labels) {
+            super(name, labels);
+        }
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long value) {
+            if (ENABLED) {
+                count.add(value);
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder out) {
+            out.append(name).append(braced(labels)).append(' ').append(count()).append('\n');
+        }
+
+        @Override
+        String prometheusType() {
+            return "counter";
+        }
+
+        @Override
+        Map<String, Object> attributes() {
+            return Collections.singletonMap("Count", count());
+        }
+    }
+
+    // A named metric with Prometheus labels, e.g. type="control",phase="connect".
+    // Also the JMX view of the metric, its attributes are read only.
+    abstract static class Metric implements DynamicMBean {
+
+        final String name;
+        final String labels;
+
+        Metric(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        abstract void appendPrometheus(StringBuilder out);
+
+        abstract String prometheusType();
+
+        abstract Map<String, Object> attributes();
+
+        ObjectName objectName() throws JMException {
+            // name=scp_phase_seconds,type=control,phase=connect
+            return new ObjectName(JMX_DOMAIN + ":name=" + name
+                    + (labels.isEmpty() ? "" : "," + labels.replace("\"", "")));
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String attribute : names) {
+                if (attributes.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, attributes.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Object> attribute : attributes().entrySet()) {
+                infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+                        attribute.getKey(), true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), HELP.get(name),
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    // The metrics of one message type
+    static final class MessageMetrics {
+
+        final Histogram connect;
+        final Histogram nvcnFetch;
+        final Histogram encrypt;
+        final Histogram request;
+        final Histogram hmacVerify;
+        final Histogram parse;
+        final Histogram ok;
+        final Histogram httpError;
+        final Histogram noResponse;
+        final Counter valid;
+        final Counter invalid;
+        final Counter retries;
+        final Counter hedgesWon;
+        final Counter hedgesLost;
+
+        private MessageMetrics(String type) {
+            connect = phase(type, CONNECT);
+            nvcnFetch = phase(type, NVCN_FETCH);
+            encrypt = phase(type, ENCRYPT);
+            request = phase(type, REQUEST);
+            hmacVerify = phase(type, HMAC_VERIFY);
+            parse = phase(type, PARSE);
+            ok = histogram(MESSAGE_SECONDS, "type=\"" + type + "\",outcome=\"" + OK + "\"");
+            httpError = histogram(MESSAGE_SECONDS, "type=\"" + type + "\",outcome=\"" + HTTP_ERROR + "\"");
+            noResponse = histogram(MESSAGE_SECONDS, "type=\"" + type + "\",outcome=\"" + NO_RESPONSE + "\"");
+            valid = counter(RESPONSES_TOTAL, "type=\"" + type + "\",result=\"valid\"");
+            invalid = counter(RESPONSES_TOTAL, "type=\"" + type + "\",result=\"invalid\"");
+            retries = counter(RETRIES_TOTAL, "type=\"" + type + "\"");
+            hedgesWon = counter(HEDGES_TOTAL, "type=\"" + type + "\",result=\"won\"");
+            hedgesLost = counter(HEDGES_TOTAL, "type=\"" + type + "\",result=\"lost\"");
+        }
+
+        private static Histogram phase(String type, String phase) {
+            return histogram(PHASE_SECONDS, "type=\"" + type + "\",phase=\"" + phase + "\"");
+        }
+
+        void parsed(boolean isValid) {
+            (isValid ? valid : invalid).increment();
+        }
+    }
+
+    private ScpMetrics() {
+        // this class has only static methods
+    }
+
+    // The metrics of a message type like control or security-fetch-nvcn
+    static MessageMetrics message(String type) {
+        MessageMetrics metrics = MESSAGES.get(type);
+        if (metrics == null) {
+            metrics = MESSAGES.computeIfAbsent(type, MessageMetrics::new);
+        }
+        return metrics;
+    }
+
+    // Records the result of a finished discovery scan
+    static void scanFinished(ScpScanRate.Stats stats, long devices) {
+        histogram(SCAN_SECONDS, "").recordMillis(stats.elapsedMillis);
+        counter(SCAN_PROBES_TOTAL, "outcome=\"answered\"").add(stats.answered);
+        counter(SCAN_PROBES_TOTAL, "outcome=\"lost\"").add(stats.losses);
+        counter(SCAN_PROBES_TOTAL, "outcome=\"unanswered\"").add(stats.probes - stats.answered - stats.losses);
+        counter(SCAN_DEVICES_TOTAL, "").add(devices);
+    }
+
+    static Histogram histogram(String name, String labels) {
+        return (Histogram) metric(name, labels, Histogram::new);
+    }
+
+    static Counter counter(String name, String labels) {
+        return (Counter) metric(name, labels, Counter::new);
+    }
+
+    // Returns the metric with the name and labels, creates it on first use
+    private static Metric metric(String name, String labels, BiFunction<String, String, Metric> factory) {
+        String key = name + "{" + labels + "}";
+        Metric existing = METRICS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        Metric metric = factory.apply(name, labels);
+        existing = METRICS.putIfAbsent(key, metric);
+        if (existing != null) {
+            return existing;
+        }
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            registerMBean(server, metric);
+        }
+        return metric;
+    }
+
+    // Publishes all metrics, including the ones created later, in the platform MBean server
+    static synchronized void registerJmx() {
+        if (mbeanServer != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer = server;
+        for (Metric metric : METRICS.values()) {
+            registerMBean(server, metric);
+        }
+    }
+
+    private static void registerMBean(MBeanServer server, Metric metric) {
+        try {
+            ObjectName objectName = metric.objectName();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // All metrics in the Prometheus text exposition format
+    static String prometheusText() {
+        List<Metric> metrics = new ArrayList<>(METRICS.values());
+        metrics.sort(Comparator.comparing((Metric metric) -> metric.name).thenComparing(metric -> metric.labels));
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> family : HELP.entrySet()) {
+            boolean headerWritten = false;
+            for (Metric metric : metrics) {
+                // phases a message type doesn't have stay out of the text
+                if (!metric.name.equals(family.getKey())
+                        || metric instanceof Histogram && ((Histogram) metric).count() == 0) {
+                    continue;
+                }
+                if (!headerWritten) {
+                    out.append("# HELP ").append(metric.name).append(' ').append(family.getValue()).append('\n');
+                    out.append("# TYPE ").append(metric.name).append(' ').append(metric.prometheusType())
+                            .append('\n');
+                    headerWritten = true;
+                }
+                metric.appendPrometheus(out);
+            }
+        }
+        return out.toString();
+    }
+
+    // Replaces the file atomically, e.g. for the textfile collector of the Prometheus node exporter
+    static void writePrometheusText(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, prometheusText().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String braced(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * secure_control_protocol
+ * ScpNvcnManager Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Fetches the next NVCN of frequently controlled devices ahead of time,
+// so that a control message needs only one round trip.
+// Every NVCN is handed out at most once, callers fall back to fetch() if none is prefetched.
+final class ScpNvcnManager {
+
+    static final long DEFAULT_NVCN_TTL = 60 * 1000;
+    static final long DEFAULT_HOT_WINDOW = 5 * 60 * 1000;
+
+    private static final int PREFETCH_THREADS = 2;
+
+    private static final class Entry {
+
+        final Future<String> nvcn;
+        final long fetchedAt;
+
+        Entry(Future<String> nvcn, long fetchedAt) {
+            this.nvcn = nvcn;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final long nvcnTtl;
+    private final long hotWindow;
+    private final Map<String, Entry> prefetched = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+    private final ExecutorService prefetcher;
+
+    ScpNvcnManager(long nvcnTtl, long hotWindow) {
+        this.nvcnTtl = nvcnTtl;
+        this.hotWindow = hotWindow;
+        this.prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "scp-nvcn-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Returns the prefetched NVCN of the device and forgets it, null if there is no valid one
+    String takePrefetched(ScpDevice device) {
+        Entry entry = prefetched.remove(device.getDeviceId());
+        if (entry == null || System.currentTimeMillis() - entry.fetchedAt > nvcnTtl) {
+            return null;
+        }
+        try {
+            // waits for a prefetch that is still running instead of requesting a competing NVCN
+            return entry.nvcn.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            return null;
+        }
+    }
+
+    // Fetches a NVCN from the device synchronously, returns null on error
+    String fetch(ScpDevice device) {
+        ScpHttp.Response nvcnResponse = ScpMessageSender.fetchNVCN(device);
+        if (nvcnResponse == null) {
+            return null;
+        }
+        ScpResponseFetchNvcn parsedNvcnResponse = ScpResponseParser.parseNvcnResponse(nvcnResponse.data,
+                nvcnResponse.bodyOffset, nvcnResponse.bodyLength);
+        return parsedNvcnResponse == null ? null : parsedNvcnResponse.nvcn;
+    }
+
+    // Fetches the next NVCN of the device in the background
+    void prefetch(ScpDevice device) {
+        prefetched.computeIfAbsent(device.getDeviceId(),
+                id -> new Entry(prefetcher.submit(() -> fetch(device)), System.currentTimeMillis()));
+    }
+
+    // Records a successful use, devices used again within the hot window get their next NVCN prefetched
+    void markUsed(ScpDevice device) {
+        long now = System.currentTimeMillis();
+        Long previousUse = lastUsed.put(device.getDeviceId(), now);
+        if (previousUse != null && now - previousUse <= hotWindow) {
+            prefetch(device);
+        }
+    }
+
+    // Drops a prefetched NVCN, e.g. after the device rejected a message
+    void invalidate(ScpDevice device) {
+        prefetched.remove(device.getDeviceId());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * secure_control_protocol
+ * ScpOutput Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Routes System.out per thread, so commands running side by side in the server
+// print to their own client. Threads started by a command inherit its target.
+final class ScpOutput {
+
+    // Target of a running command, ignored once the command has finished
+    static final class Capture {
+
+        private final PrintStream target;
+        private volatile boolean closed;
+
+        private Capture(PrintStream target) {
+            this.target = target;
+        }
+
+        void close() {
+            closed = true;
+            CURRENT.remove();
+        }
+    }
+
+    private static final InheritableThreadLocal<Capture> CURRENT = new InheritableThreadLocal<>();
+
+    private static PrintStream original;
+
+    private ScpOutput() {
+        // this class has only static methods
+    }
+
+    // Replaces System.out by the routing stream, output of threads without a capture goes to the original stream
+    static synchronized void install() {
+        if (original != null) {
+            return;
+        }
+        original = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                target().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                target().write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                target().flush();
+            }
+        }, true));
+    }
+
+    // Sends System.out of the current thread and the threads it starts to the given stream until closed
+    static Capture capture(PrintStream target) {
+        Capture capture = new Capture(target);
+        CURRENT.set(capture);
+        return capture;
+    }
+
+    // The stream System.out of the current thread writes to, for output written later by another thread
+    static PrintStream current() {
+        return original == null ? System.out : target();
+    }
+
+    private static PrintStream target() {
+        Capture capture = CURRENT.get();
+        return capture == null || capture.closed ? original : capture.target;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * secure_control_protocol
+ * ScpProvisioningPipeline Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.houseos.scp4j.ScpEvents.Level;
+
+// Provisions many devices concurrently, at most parallelism devices at the same time.
+// Every device runs through its own state machine, a failing device does not affect the others.
+final class ScpProvisioningPipeline {
+
+    enum State {
+        DISCOVERED,
+        PASSWORD_CHANGED,
+        WIFI_CONFIGURED,
+        RESTARTED,
+        PERSISTED,
+        FAILED
+    }
+
+    static final class Job {
+
+        final ScpDevice device;
+        private volatile State state = State.DISCOVERED;
+        private volatile State failedState;
+        private long stageStart;
+        private final Map<State, Long> stageMillis = Collections.synchronizedMap(new EnumMap<>(State.class));
+
+        Job(ScpDevice device) {
+            this.device = device;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        // The state the device was in when provisioning failed, null if it did not fail
+        State getFailedState() {
+            return failedState;
+        }
+
+        // Time in milliseconds the stage leading to the given state took
+        Long getStageMillis(State reached) {
+            return stageMillis.get(reached);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(device.getDeviceId()).append(": ").append(state);
+            if (failedState != null) {
+                builder.append(" in ").append(failedState);
+            }
+            synchronized (stageMillis) {
+                for (Map.Entry<State, Long> stage : stageMillis.entrySet()) {
+                    builder.append(", ").append(stage.getKey()).append(" took ").append(stage.getValue())
+                            .append(" ms");
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    private final String ssid;
+    private final String wifiPassword;
+    private final Consumer<ScpDevice> persister;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final List<Job> jobs = Collections.synchronizedList(new ArrayList<>());
+
+    ScpProvisioningPipeline(int parallelism, String ssid, String wifiPassword, Consumer<ScpDevice> persister) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.ssid = ssid;
+        this.wifiPassword = wifiPassword;
+        this.persister = persister;
+        this.permits = new Semaphore(parallelism);
+        this.executor = ScpExecutors.newPerDeviceExecutor(parallelism);
+    }
+
+    // Queues the device for provisioning, does not block the caller
+    Job submit(ScpDevice device) {
+        Job job = new Job(device);
+        jobs.add(job);
+        executor.submit(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                run(job);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+                fail(job, "unexpected error: " + ex);
+            } finally {
+                permits.release();
+            }
+        });
+        return job;
+    }
+
+    // Waits until all submitted devices have been provisioned or failed
+    List<Job> awaitCompletion() {
+        executor.shutdown();
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        }
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    private void run(Job job) {
+        ScpDevice device = job.device;
+        if (ssid == null
+                || ssid.isEmpty()
+                || wifiPassword == null
+                || wifiPassword.isEmpty()) {
+            fail(job, "provisioning without ssid or wifiPassword not possible.");
+            return;
+        }
+        ScpEvents.log(Level.DEBUG, ScpEvents.PROVISION, device, "Provisioning device");
+        job.stageStart = System.nanoTime();
+
+        // send security-pw-change
+        if (!ScpStatus.RESULT_DONE.equals(ScpMessageSender.sendNewPassword(device))) {
+            fail(job, "failed to set new password.");
+            return;
+        }
+        advance(job, State.PASSWORD_CHANGED);
+        // the new password only exists in memory, without it the device can't be reached anymore
+        persister.accept(device);
+
+        // send security-wifi-config
+        if (!ScpStatus.RESULT_DONE.equals(ScpMessageSender.sendWifiConfig(device, ssid, wifiPassword))) {
+            fail(job, "failed to set wifi config.");
+            return;
+        }
+        advance(job, State.WIFI_CONFIGURED);
+
+        // send security-restart, the device may restart before its answer arrives
+        String restartResult = ScpMessageSender.sendRestart(device);
+        if (ScpStatus.RESULT_NO_ANSWER.equals(restartResult)) {
+            ScpEvents.log(Level.INFO, ScpEvents.PROVISION, device, restartResult, ScpEvents.NO_DURATION,
+                    "Restart not confirmed, assuming the device restarted before replying");
+        } else if (!ScpStatus.RESULT_DONE.equals(restartResult)) {
+            fail(job, "failed to restart device.");
+            return;
+        }
+        advance(job, State.RESTARTED);
+
+        persister.accept(device);
+        advance(job, State.PERSISTED);
+        ScpEvents.log(Level.INFO, ScpEvents.PROVISION, device, job.getState().name(), ScpEvents.NO_DURATION,
+                "Provisioned device");
+    }
+
+    private static void advance(Job job, State reached) {
+        long now = System.nanoTime();
+        job.stageMillis.put(reached, TimeUnit.NANOSECONDS.toMillis(now - job.stageStart));
+        job.stageStart = now;
+        job.state = reached;
+    }
+
+    private static void fail(Job job, String reason) {
+        job.failedState = job.state;
+        job.state = State.FAILED;
+        ScpEvents.log(Level.WARN, ScpEvents.PROVISION, job.device, job.failedState.name(), ScpEvents.NO_DURATION,
+                "Provisioning failed: " + reason);
+    }
+}
@@ -6,9 +6,10 @@
  */
 package org.houseos.scp4j;
 
-import com.google.gson.Gson;
-import java.util.Base64;
-import java.util.List;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
 
 final class ScpResponseDiscover {
 
@@ -18,6 +19,33 @@ final class ScpResponseDiscover {
     int currentPasswordNumber;
     String hmac;
 
+    static final ScpResponseReader<ScpResponseDiscover> READER = new ScpResponseReader<ScpResponseDiscover>() {
+        @Override
+        ScpResponseDiscover create() {
+            return new ScpResponseDiscover(null, null, 0, null);
+        }
+
+        @Override
+        boolean readField(ScpResponseDiscover target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "deviceType":
+                    target.deviceType = nextString(in);
+                    return true;
+                case "currentPasswordNumber":
+                    target.currentPasswordNumber = in.nextInt();
+                    return true;
+                case "hmac":
+                    target.hmac = nextString(in);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    };
+
     private ScpResponseDiscover(String deviceId, String deviceType, int currentPasswordNumber,
             final String hmac) {
         this.deviceId = deviceId;
@@ -25,30 +53,6 @@ final class ScpResponseDiscover {
         this.currentPasswordNumber = currentPasswordNumber;
         this.hmac = hmac;
     }
-
-    // Returns a ScpResponseDiscover if HMAC valid, otherwise null
-    static ScpResponseDiscover fromJson(String json, List<ScpDevice> devices) {
-        Gson g = new Gson();
-        ScpResponseDiscover discoverResponse = g.fromJson(json, ScpResponseDiscover.class);
-
-        String password = null;
-        if (devices != null) {
-            ScpDevice scpDevice = devices.stream().filter(element -> element.getDeviceId()
-                    .equals(discoverResponse.deviceId)).findFirst().orElse(null);
-            if (scpDevice != null) {
-                password = scpDevice.knownPassword;
-            }
-        }
-
-        // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(ScpResponseDiscover.TYPE + discoverResponse.deviceId
-                + discoverResponse.deviceType + discoverResponse.currentPasswordNumber,
-                discoverResponse.hmac,
-                password)) {
-            return discoverResponse;
-        }
-        return null;
-    }
 }
 
 final class ScpResponseFetchNvcn {
@@ -57,23 +61,38 @@ final class ScpResponseFetchNvcn {
     String deviceId;
     String nvcn;
 
-    private ScpResponseFetchNvcn(String deviceId, String nvcn) {
-        this.deviceId = deviceId;
-        this.nvcn = nvcn;
-    }
+    static final ScpResponseReader<ScpResponseFetchNvcn> READER = new ScpResponseReader<ScpResponseFetchNvcn>() {
+        @Override
+        ScpResponseFetchNvcn create() {
+            return new ScpResponseFetchNvcn(null, null);
+        }
 
-    static ScpResponseFetchNvcn fromJson(String json) {
-        Gson g = new Gson();
-        ScpResponseFetchNvcn nvcnResponse = g.fromJson(json, ScpResponseFetchNvcn.class);
+        @Override
+        boolean readField(ScpResponseFetchNvcn target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "nvcn":
+                    target.nvcn = nextString(in);
+                    return true;
+                default:
+                    return false;
+            }
+        }
 
-        if (nvcnResponse.deviceId == null
-                || nvcnResponse.deviceId.isEmpty()
-                || nvcnResponse.nvcn == null
-                || nvcnResponse.nvcn.isEmpty()) {
-            return null;
+        @Override
+        boolean isValid(ScpResponseFetchNvcn response) {
+            return response.deviceId != null
+                    && !response.deviceId.isEmpty()
+                    && response.nvcn != null
+                    && !response.nvcn.isEmpty();
         }
+    };
 
-        return nvcnResponse;
+    private ScpResponseFetchNvcn(String deviceId, String nvcn) {
+        this.deviceId = deviceId;
+        this.nvcn = nvcn;
     }
 }
 
@@ -85,34 +104,43 @@ final class ScpResponseSetPassword {
     String currentPasswordNumber;
     String result;
 
-    private ScpResponseSetPassword(String deviceId, String currentPasswordNumber, String result) {
-        this.deviceId = deviceId;
-        this.currentPasswordNumber = currentPasswordNumber;
-        this.result = result;
-    }
-
-    static ScpResponseSetPassword fromJson(String inputJson, String password) {
-        Gson g = new Gson();
-        WrappedScpResponse wrappedScpResponse = g.fromJson(inputJson, WrappedScpResponse.class);
-        if (wrappedScpResponse.response == null
-                || wrappedScpResponse.response.isEmpty()
-                || wrappedScpResponse.hmac == null
-                || wrappedScpResponse.hmac.isEmpty()) {
-            return null;
+    static final ScpResponseReader<ScpResponseSetPassword> READER
+            = new ScpResponseReader<ScpResponseSetPassword>() {
+        @Override
+        ScpResponseSetPassword create() {
+            return new ScpResponseSetPassword(null, null, null);
         }
-        String response = wrappedScpResponse.response;
-        String hmac = wrappedScpResponse.hmac;
 
-        // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(response, hmac, password)) {
-            byte[] decodedPayloadBytes = Base64.getDecoder().decode(response);
-            String decodedPayload = new String(decodedPayloadBytes);
-            ScpResponseSetPassword scpResponse = g.fromJson(decodedPayload, ScpResponseSetPassword.class);
-            if (scpResponse.type.equals(EXPECTED_TYPE)) {
-                return scpResponse;
+        @Override
+        boolean readField(ScpResponseSetPassword target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "type":
+                    target.type = nextString(in);
+                    return true;
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "currentPasswordNumber":
+                    target.currentPasswordNumber = nextString(in);
+                    return true;
+                case "result":
+                    target.result = nextString(in);
+                    return true;
+                default:
+                    return false;
             }
         }
-        return null;
+
+        @Override
+        boolean isValid(ScpResponseSetPassword response) {
+            return EXPECTED_TYPE.equals(response.type);
+        }
+    };
+
+    private ScpResponseSetPassword(String deviceId, String currentPasswordNumber, String result) {
+        this.deviceId = deviceId;
+        this.currentPasswordNumber = currentPasswordNumber;
+        this.result = result;
     }
 }
 
@@ -123,33 +151,39 @@ final class ScpResponseSetWifiConfig {
     String deviceId;
     String result;
 
-    private ScpResponseSetWifiConfig(String deviceId, String result) {
-        this.deviceId = deviceId;
-        this.result = result;
-    }
-
-    static ScpResponseSetWifiConfig fromJson(String inputJson, String password) {
-        Gson g = new Gson();
-        WrappedScpResponse wrappedScpResponse = g.fromJson(inputJson, WrappedScpResponse.class);
-        if (wrappedScpResponse.response == null
-                || wrappedScpResponse.response.isEmpty()
-                || wrappedScpResponse.hmac == null
-                || wrappedScpResponse.hmac.isEmpty()) {
-            return null;
+    static final ScpResponseReader<ScpResponseSetWifiConfig> READER
+            = new ScpResponseReader<ScpResponseSetWifiConfig>() {
+        @Override
+        ScpResponseSetWifiConfig create() {
+            return new ScpResponseSetWifiConfig(null, null);
         }
-        String response = wrappedScpResponse.response;
-        String hmac = wrappedScpResponse.hmac;
 
-        // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(response, hmac, password)) {
-            byte[] decodedPayloadBytes = Base64.getDecoder().decode(response);
-            String decodedPayload = new String(decodedPayloadBytes);
-            ScpResponseSetWifiConfig scpResponse = g.fromJson(decodedPayload, ScpResponseSetWifiConfig.class);
-            if (scpResponse.type.equals(EXPECTED_TYPE)) {
-                return scpResponse;
+        @Override
+        boolean readField(ScpResponseSetWifiConfig target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "type":
+                    target.type = nextString(in);
+                    return true;
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "result":
+                    target.result = nextString(in);
+                    return true;
+                default:
+                    return false;
             }
         }
-        return null;
+
+        @Override
+        boolean isValid(ScpResponseSetWifiConfig response) {
+            return EXPECTED_TYPE.equals(response.type);
+        }
+    };
+
+    private ScpResponseSetWifiConfig(String deviceId, String result) {
+        this.deviceId = deviceId;
+        this.result = result;
     }
 }
 
@@ -160,33 +194,38 @@ final class ScpResponseRestart {
     String deviceId;
     String result;
 
-    private ScpResponseRestart(String deviceId, String result) {
-        this.deviceId = deviceId;
-        this.result = result;
-    }
-
-    static ScpResponseRestart fromJson(String inputJson, String password) {
-        Gson g = new Gson();
-        WrappedScpResponse wrappedScpResponse = g.fromJson(inputJson, WrappedScpResponse.class);
-        if (wrappedScpResponse.response == null
-                || wrappedScpResponse.response.isEmpty()
-                || wrappedScpResponse.hmac == null
-                || wrappedScpResponse.hmac.isEmpty()) {
-            return null;
+    static final ScpResponseReader<ScpResponseRestart> READER = new ScpResponseReader<ScpResponseRestart>() {
+        @Override
+        ScpResponseRestart create() {
+            return new ScpResponseRestart(null, null);
         }
-        String response = wrappedScpResponse.response;
-        String hmac = wrappedScpResponse.hmac;
 
-        // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(response, hmac, password)) {
-            byte[] decodedPayloadBytes = Base64.getDecoder().decode(response);
-            String decodedPayload = new String(decodedPayloadBytes);
-            ScpResponseRestart scpResponse = g.fromJson(decodedPayload, ScpResponseRestart.class);
-            if (scpResponse.type.equals(EXPECTED_TYPE)) {
-                return scpResponse;
+        @Override
+        boolean readField(ScpResponseRestart target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "type":
+                    target.type = nextString(in);
+                    return true;
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "result":
+                    target.result = nextString(in);
+                    return true;
+                default:
+                    return false;
             }
         }
-        return null;
+
+        @Override
+        boolean isValid(ScpResponseRestart response) {
+            return EXPECTED_TYPE.equals(response.type);
+        }
+    };
+
+    private ScpResponseRestart(String deviceId, String result) {
+        this.deviceId = deviceId;
+        this.result = result;
     }
 }
 
@@ -197,33 +236,39 @@ final class ScpResponseResetToDefault {
     String deviceId;
     String result;
 
-    private ScpResponseResetToDefault(String deviceId, String result) {
-        this.deviceId = deviceId;
-        this.result = result;
-    }
-
-    static ScpResponseResetToDefault fromJson(String inputJson, String password) {
-        Gson g = new Gson();
-        WrappedScpResponse wrappedScpResponse = g.fromJson(inputJson, WrappedScpResponse.class);
-        if (wrappedScpResponse.response == null
-                || wrappedScpResponse.response.isEmpty()
-                || wrappedScpResponse.hmac == null
-                || wrappedScpResponse.hmac.isEmpty()) {
-            return null;
+    static final ScpResponseReader<ScpResponseResetToDefault> READER
+            = new ScpResponseReader<ScpResponseResetToDefault>() {
+        @Override
+        ScpResponseResetToDefault create() {
+            return new ScpResponseResetToDefault(null, null);
         }
-        String response = wrappedScpResponse.response;
-        String hmac = wrappedScpResponse.hmac;
 
-        // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(response, hmac, password)) {
-            byte[] decodedPayloadBytes = Base64.getDecoder().decode(response);
-            String decodedPayload = new String(decodedPayloadBytes);
-            ScpResponseResetToDefault scpResponse = g.fromJson(decodedPayload, ScpResponseResetToDefault.class);
-            if (scpResponse.type.equals(EXPECTED_TYPE)) {
-                return scpResponse;
+        @Override
+        boolean readField(ScpResponseResetToDefault target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "type":
+                    target.type = nextString(in);
+                    return true;
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "result":
+                    target.result = nextString(in);
+                    return true;
+                default:
+                    return false;
             }
         }
-        return null;
+
+        @Override
+        boolean isValid(ScpResponseResetToDefault response) {
+            return EXPECTED_TYPE.equals(response.type);
+        }
+    };
+
+    private ScpResponseResetToDefault(String deviceId, String result) {
+        this.deviceId = deviceId;
+        this.result = result;
     }
 }
 
@@ -235,75 +280,181 @@ final class ScpResponseControl {
     String deviceId;
     String result;
 
+    static final ScpResponseReader<ScpResponseControl> READER = new ScpResponseReader<ScpResponseControl>() {
+        @Override
+        ScpResponseControl create() {
+            return new ScpResponseControl(null, null, null);
+        }
+
+        @Override
+        boolean readField(ScpResponseControl target, String name, JsonReader in) throws IOException {
+            switch (name) {
+                case "type":
+                    target.type = nextString(in);
+                    return true;
+                case "action":
+                    target.action = nextString(in);
+                    return true;
+                case "deviceId":
+                    target.deviceId = nextString(in);
+                    return true;
+                case "result":
+                    target.result = nextString(in);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        boolean isValid(ScpResponseControl response) {
+            return EXPECTED_TYPE.equals(response.type);
+        }
+    };
+
     private ScpResponseControl(String action, String deviceId, String result) {
         this.action = action;
         this.deviceId = deviceId;
         this.result = result;
     }
+}
+
+// {"response": <Base64 payload>, "hmac": <hex HMAC of the Base64 payload>}
+final class WrappedScpResponse {
 
-    static ScpResponseControl fromJson(String inputJson, String password) {
-        Gson g = new Gson();
-        WrappedScpResponse wrappedScpResponse = g.fromJson(inputJson, WrappedScpResponse.class);
+    private static final int RANGE_SIZE = 2;
+
+    private WrappedScpResponse() {
+        // this class has only static methods
+    }
 
-        if (wrappedScpResponse.response == null
-                || wrappedScpResponse.response.isEmpty()
-                || wrappedScpResponse.hmac == null
-                || wrappedScpResponse.hmac.isEmpty()) {
+    // Verifies the HMAC over the raw response bytes and decodes the payload in place.
+    // Returns a reader over the decoded payload or null if the response is malformed or not authentic.
+    static Reader verifiedPayload(byte[] data, int offset, int length, String password) {
+        int[] response = new int[RANGE_SIZE];
+        int[] hmac = new int[RANGE_SIZE];
+        if (!ScpBytes.stringField(data, offset, length, "response", response)
+                || !ScpBytes.stringField(data, offset, length, "hmac", hmac)) {
+            return null;
+        }
+        int responseLength = ScpBytes.unescapeInPlace(data, response[0], response[1]);
+        int hmacLength = ScpBytes.unescapeInPlace(data, hmac[0], hmac[1]);
+        if (responseLength <= 0 || hmacLength <= 0) {
             return null;
         }
-        String response = wrappedScpResponse.response;
-        String hmac = wrappedScpResponse.hmac;
 
         // Check hmac before additional processing
-        if (new ScpCrypto().verifyHMAC(response, hmac, password)) {
-            byte[] decodedPayloadBytes = Base64.getDecoder().decode(response);
-            String decodedPayload = new String(decodedPayloadBytes);
-            ScpResponseControl scpResponse = g.fromJson(decodedPayload, ScpResponseControl.class);
-            if (scpResponse.type.equals(EXPECTED_TYPE)) {
-                return scpResponse;
-            }
+        if (!ScpCrypto.getInstance().verifyHMAC(data, response[0], responseLength, data, hmac[0], hmacLength,
+                password)) {
+            return null;
+        }
+        int payloadLength = ScpBytes.decodeBase64InPlace(data, response[0], responseLength);
+        if (payloadLength < 0) {
+            return null;
         }
-        return null;
+        return ScpBytes.reader(data, response[0], payloadLength);
     }
 }
 
-class WrappedScpResponse {
-
-    String response;
-    String hmac;
-}
-
 public final class ScpResponseParser {
 
     private ScpResponseParser() {
         // this class has only static methods
     }
 
-    static ScpResponseDiscover parseDiscoverResponse(String response, List<ScpDevice> devices) {
-        return ScpResponseDiscover.fromJson(response, devices);
+    // Returns a ScpResponseDiscover if HMAC valid, otherwise null.
+    // The HMAC is checked with the password of the matching known device, or the default password.
+    static ScpResponseDiscover parseDiscoverResponse(byte[] data, int offset, int length,
+            ScpDeviceRegistry devices) {
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(ScpDiscoveryScanner.DISCOVER_HELLO);
+        long start = System.nanoTime();
+        ScpResponseDiscover discoverResponse = decode(ScpBytes.reader(data, offset, length),
+                ScpResponseDiscover.READER);
+        long decoded = System.nanoTime();
+        metrics.parse.recordNanos(decoded - start);
+        if (discoverResponse == null) {
+            metrics.parsed(false);
+            return null;
+        }
+
+        String password = null;
+        if (devices != null) {
+            ScpDevice scpDevice = devices.known(discoverResponse.deviceId);
+            if (scpDevice != null) {
+                password = scpDevice.knownPassword;
+            }
+        }
+
+        // The HMAC covers the field values, so the response has to be decoded first
+        boolean valid = ScpCrypto.getInstance().verifyHMAC(ScpResponseDiscover.TYPE + discoverResponse.deviceId
+                + discoverResponse.deviceType + discoverResponse.currentPasswordNumber,
+                discoverResponse.hmac,
+                password);
+        metrics.hmacVerify.recordNanos(System.nanoTime() - decoded);
+        metrics.parsed(valid);
+        return valid ? discoverResponse : null;
+    }
+
+    static ScpResponseFetchNvcn parseNvcnResponse(byte[] data, int offset, int length) {
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(ScpResponseFetchNvcn.TYPE);
+        long start = System.nanoTime();
+        ScpResponseFetchNvcn response = decode(ScpBytes.reader(data, offset, length), ScpResponseFetchNvcn.READER);
+        metrics.parse.recordNanos(System.nanoTime() - start);
+        metrics.parsed(response != null);
+        return response;
+    }
+
+    static ScpResponseSetPassword parseSetPasswordResponse(byte[] data, int offset, int length, String password) {
+        return decodeWrapped(data, offset, length, password, ScpResponseSetPassword.EXPECTED_TYPE,
+                ScpResponseSetPassword.READER);
     }
 
-    static ScpResponseFetchNvcn parseNvcnResponse(String response) {
-        return ScpResponseFetchNvcn.fromJson(response);
+    static ScpResponseSetWifiConfig parseSetWifiConfigResponse(byte[] data, int offset, int length,
+            String password) {
+        return decodeWrapped(data, offset, length, password, ScpResponseSetWifiConfig.EXPECTED_TYPE,
+                ScpResponseSetWifiConfig.READER);
     }
 
-    static ScpResponseSetPassword parseSetPasswordResponse(String response, String password) {
-        return ScpResponseSetPassword.fromJson(response, password);
+    static ScpResponseRestart parseRestartDeviceResponse(byte[] data, int offset, int length, String password) {
+        return decodeWrapped(data, offset, length, password, ScpResponseRestart.EXPECTED_TYPE,
+                ScpResponseRestart.READER);
     }
 
-    static ScpResponseSetWifiConfig parseSetWifiConfigResponse(String response, String password) {
-        return ScpResponseSetWifiConfig.fromJson(response, password);
+    static ScpResponseResetToDefault parseResetToDefault(byte[] data, int offset, int length, String password) {
+        return decodeWrapped(data, offset, length, password, ScpResponseResetToDefault.EXPECTED_TYPE,
+                ScpResponseResetToDefault.READER);
     }
 
-    static ScpResponseRestart parseRestartDeviceResponse(String response, String password) {
-        return ScpResponseRestart.fromJson(response, password);
+    static ScpResponseControl parseControlResponse(byte[] data, int offset, int length, String password) {
+        return decodeWrapped(data, offset, length, password, ScpResponseControl.EXPECTED_TYPE,
+                ScpResponseControl.READER);
     }
 
-    static ScpResponseResetToDefault parseResetToDefault(String response, String password) {
-        return ScpResponseResetToDefault.fromJson(response, password);
+    // Verifies a wrapped response and decodes its payload, the typed object is only built for authentic responses
+    static <T> T decodeWrapped(byte[] data, int offset, int length, String password, String type,
+            ScpResponseReader<T> reader) {
+        ScpMetrics.MessageMetrics metrics = ScpMetrics.message(type);
+        long start = System.nanoTime();
+        // the verification includes locating the fields and decoding the Base64 payload
+        Reader payload = WrappedScpResponse.verifiedPayload(data, offset, length, password);
+        long verified = System.nanoTime();
+        metrics.hmacVerify.recordNanos(verified - start);
+        if (payload == null) {
+            metrics.parsed(false);
+            return null;
+        }
+        T response = decode(payload, reader);
+        metrics.parse.recordNanos(System.nanoTime() - verified);
+        metrics.parsed(response != null);
+        return response;
     }
 
-    static ScpResponseControl parseControlResponse(String response, String password) {
-        return ScpResponseControl.fromJson(response, password);
+    // Returns null for malformed JSON instead of throwing
+    private static <T> T decode(Reader json, ScpResponseReader<T> reader) {
+        try {
+            return reader.read(new JsonReader(json));
+        } catch (IOException | IllegalStateException | NumberFormatException | JsonParseException ex) {
+            return null;
+        }
     }
 }
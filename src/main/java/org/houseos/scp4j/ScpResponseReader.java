@@ -0,0 +1,52 @@
+/*
+ * secure_control_protocol
+ * ScpResponseReader Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+
+// Streaming JSON binding for a response type without reflection.
+// Subclasses create the object and assign one field per known name, unknown fields are skipped.
+abstract class ScpResponseReader<T> {
+
+    abstract T create();
+
+    // Reads the value of the named field into the target, returns false if the field is unknown
+    abstract boolean readField(T target, String name, JsonReader in) throws IOException;
+
+    // Checks a completely read response, invalid responses are returned as null
+    boolean isValid(T response) {
+        return true;
+    }
+
+    // Reads one response object, null for a JSON null or an invalid response
+    T read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        T target = create();
+        in.beginObject();
+        while (in.hasNext()) {
+            if (!readField(target, in.nextName(), in)) {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return isValid(target) ? target : null;
+    }
+
+    // Reads a string, number or null value as String
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
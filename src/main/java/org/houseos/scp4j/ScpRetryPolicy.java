@@ -0,0 +1,134 @@
+/*
+ * secure_control_protocol
+ * ScpRetryPolicy Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// How often a message type is sent again after a failure, with exponential backoff and full jitter.
+// Read-only messages are repeated after any failure. discover-hello is also hedged: a request still unanswered
+// after the 95th percentile of the answered ones gets a second request and the first answer wins. A NVCN fetch
+// is repeated but not hedged, every fetch replaces the NVCN of the device, so the losing request would void the
+// NVCN of the winning one. Messages that change the device are only repeated when the connection failed, so
+// they never reached it and are never executed twice.
+// A rejection is not repeated either, the device may have rejected a replay of a message it executed.
+// -Dscp4j.retry.<type>=<attempts>[,<base delay ms>[,<max delay ms>]] configures a message type,
+// -Dscp4j.hedging=false turns hedging off. The hedge delay is learned from the metrics of the type.
+final class ScpRetryPolicy {
+
+    enum Failure {
+        // the connection failed, nothing was sent
+        NOT_SENT,
+        // the request was sent, the device may have acted on it
+        NO_RESPONSE,
+        // the device answered with an HTTP error and did not act on the request
+        REJECTED
+    }
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BASE_DELAY = 100;
+    static final long DEFAULT_MAX_DELAY = 2000;
+
+    static final boolean HEDGING = Boolean.parseBoolean(System.getProperty("scp4j.hedging", "true"));
+    static final long NO_HEDGE = -1;
+
+    private static final String PROPERTY_PREFIX = "scp4j.retry.";
+    private static final double HEDGE_QUANTILE = 0.95;
+    // answered requests of the type needed before hedging starts
+    private static final long HEDGE_MIN_SAMPLES = 20;
+    private static final long HEDGE_DELAY_REFRESH = TimeUnit.SECONDS.toNanos(1);
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private static final Set<String> READ_ONLY = new HashSet<>(Arrays.asList(
+            ScpDiscoveryScanner.DISCOVER_HELLO, ScpResponseFetchNvcn.TYPE));
+
+    private static final Set<String> HEDGED = new HashSet<>(Arrays.asList(ScpDiscoveryScanner.DISCOVER_HELLO));
+
+    private static final Map<String, ScpRetryPolicy> POLICIES = new ConcurrentHashMap<>();
+
+    final String type;
+    final int maxAttempts;
+    final long baseDelayMillis;
+    final long maxDelayMillis;
+    final boolean readOnly;
+    final boolean hedged;
+
+    private volatile long hedgeDelayNanos = NO_HEDGE;
+    private volatile long hedgeDelayExpires = System.nanoTime();
+
+    ScpRetryPolicy(String type, int maxAttempts, long baseDelayMillis, long maxDelayMillis, boolean readOnly) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("attempts must be positive and 0 <= base delay <= max delay");
+        }
+        this.type = type;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.readOnly = readOnly;
+        this.hedged = readOnly && HEDGED.contains(type);
+    }
+
+    // The policy of a message type like control or security-fetch-nvcn
+    static ScpRetryPolicy forType(String type) {
+        ScpRetryPolicy policy = POLICIES.get(type);
+        if (policy == null) {
+            policy = POLICIES.computeIfAbsent(type, ScpRetryPolicy::configured);
+        }
+        return policy;
+    }
+
+    private static ScpRetryPolicy configured(String type) {
+        boolean readOnly = READ_ONLY.contains(type);
+        String value = System.getProperty(PROPERTY_PREFIX + type);
+        if (value != null) {
+            try {
+                String[] parts = value.split(",");
+                int attempts = Integer.parseInt(parts[0].trim());
+                long base = parts.length > 1 ? Long.parseLong(parts[1].trim()) : DEFAULT_BASE_DELAY;
+                long max = parts.length > 2 ? Long.parseLong(parts[2].trim()) : Math.max(base, DEFAULT_MAX_DELAY);
+                return new ScpRetryPolicy(type, attempts, base, max, readOnly);
+            } catch (IllegalArgumentException ex) {
+                ScpEvents.log(ScpEvents.Level.WARN, type, "Ignoring " + PROPERTY_PREFIX + type + "=" + value
+                        + ", expected <attempts>[,<base delay ms>[,<max delay ms>]]");
+            }
+        }
+        return new ScpRetryPolicy(type, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, readOnly);
+    }
+
+    // True if the message may be sent once more after the given failed attempt, counted from 1
+    boolean retryable(Failure failure, int attempt) {
+        return attempt < maxAttempts && (readOnly || failure == Failure.NOT_SENT);
+    }
+
+    // Random delay before the next attempt, up to the base delay doubled for every failed attempt
+    long backoffMillis(int attempt) {
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, MAX_BACKOFF_SHIFT));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    // Time after which a second request is sent, NO_HEDGE for messages that are not hedged
+    // and until enough answers of the type have been measured
+    long hedgeDelayNanos() {
+        if (!hedged || !HEDGING) {
+            return NO_HEDGE;
+        }
+        long now = System.nanoTime();
+        if (now - hedgeDelayExpires >= 0) {
+            ScpMetrics.Histogram answered = ScpMetrics.message(type).ok;
+            hedgeDelayNanos = answered.count() < HEDGE_MIN_SAMPLES ? NO_HEDGE
+                    : (long) (answered.quantileSeconds(new double[]{HEDGE_QUANTILE})[0] * NANOS_PER_SECOND);
+            hedgeDelayExpires = now + HEDGE_DELAY_REFRESH;
+        }
+        return hedgeDelayNanos;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * secure_control_protocol
+ * ScpRttEstimator Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Smoothed round trip times per device and per subnet, the timeout for a request is derived from them
+// like the TCP retransmission timeout: SRTT + 4 * RTTVAR (RFC 6298).
+// Devices without samples use the estimate of their subnet, so a scan adapts after the first answers.
+final class ScpRttEstimator {
+
+    // Learned values of one device or subnet
+    static final class Estimate {
+
+        final String key;
+        final long srtt;
+        final long rttvar;
+        final long samples;
+
+        private Estimate(String key, long srtt, long rttvar, long samples) {
+            this.key = key;
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+            this.samples = samples;
+        }
+
+        long timeout() {
+            return srtt + Math.max(MIN_VARIANCE, VARIANCE_FACTOR * rttvar);
+        }
+
+        @Override
+        public String toString() {
+            return key + ": srtt " + srtt + " ms, rttvar " + rttvar + " ms, timeout " + timeout() + " ms, "
+                    + samples + " samples";
+        }
+    }
+
+    // Running SRTT and RTTVAR of one device or subnet
+    private static final class Rtt {
+
+        private double srtt;
+        private double rttvar;
+        private long samples;
+
+        synchronized void sample(long rtt) {
+            if (samples == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+            } else {
+                rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+                srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+            }
+            samples++;
+        }
+
+        synchronized Estimate estimate(String key) {
+            return new Estimate(key, Math.round(srtt), Math.round(rttvar), samples);
+        }
+    }
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int VARIANCE_FACTOR = 4;
+    // clock granularity, keeps the timeout above SRTT for very stable links
+    private static final long MIN_VARIANCE = 10;
+
+    private final String name;
+    private final Map<String, Rtt> hosts = new ConcurrentHashMap<>();
+    private final Map<String, Rtt> subnets = new ConcurrentHashMap<>();
+
+    ScpRttEstimator(String name) {
+        this.name = name;
+    }
+
+    void sample(String ip, long rttMillis) {
+        hosts.computeIfAbsent(ip, k -> new Rtt()).sample(rttMillis);
+        subnets.computeIfAbsent(subnet(ip), k -> new Rtt()).sample(rttMillis);
+    }
+
+    // True if the device answered before
+    boolean hasSamples(String ip) {
+        return hosts.containsKey(ip);
+    }
+
+    // True if the timeout of the device is estimated from other devices of its subnet
+    boolean subnetEstimated(String ip) {
+        return !hosts.containsKey(ip) && subnets.containsKey(subnet(ip));
+    }
+
+    // Timeout for the next request to the device, between floor and ceiling.
+    // Without any samples for the device or its subnet the fallback is used.
+    int timeout(String ip, int floor, int ceiling, int fallback) {
+        Rtt rtt = hosts.get(ip);
+        if (rtt == null) {
+            rtt = subnets.get(subnet(ip));
+        }
+        if (rtt == null) {
+            return fallback;
+        }
+        return (int) Math.max(floor, Math.min(ceiling, rtt.estimate(ip).timeout()));
+    }
+
+    List<Estimate> hostEstimates() {
+        return estimates(hosts);
+    }
+
+    List<Estimate> subnetEstimates() {
+        return estimates(subnets);
+    }
+
+    @Override
+    public String toString() {
+        return name + " round trip times " + subnetEstimates();
+    }
+
+    private static List<Estimate> estimates(Map<String, Rtt> rtts) {
+        List<Estimate> estimates = new ArrayList<>();
+        for (Map.Entry<String, Rtt> entry : rtts.entrySet()) {
+            estimates.add(entry.getValue().estimate(entry.getKey()));
+        }
+        estimates.sort((a, b) -> a.key.compareTo(b.key));
+        return estimates;
+    }
+
+    // The /24 network of an IPv4 address, e.g. 192.168.1.0/24
+    private static String subnet(String ip) {
+        int lastDot = ip.lastIndexOf('.');
+        return lastDot < 0 ? ip : ip.substring(0, lastDot) + ".0/24";
+    }
+}
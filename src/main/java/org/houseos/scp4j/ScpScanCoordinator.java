@@ -0,0 +1,331 @@
+/*
+ * secure_control_protocol
+ * ScpScanCoordinator Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.houseos.scp4j.ScpEvents.Level;
+import org.houseos.scp4j.util.IPRangeSet;
+
+// Splits a scan into shards and hands them to scan worker processes (ScpScanWorker), which connect over TCP.
+// One JSON message per line:
+// worker: request, then response* complete for the assigned shard, heartbeat while the scan makes progress
+// coordinator: shard with its address ranges, or done once every shard is complete
+// The shard of a worker that disconnects or stops sending heartbeats is handed to the next worker.
+// Local workers that exit are restarted, the scan fails once none are left or no worker connects in time.
+final class ScpScanCoordinator {
+
+    static final int DEFAULT_PORT = 19318;
+    static final long DEFAULT_SHARD_SIZE = 4096;
+
+    static final int HEARTBEAT_INTERVAL = 5000;
+    // a worker is considered dead or stuck after missing this many heartbeats
+    static final int LEASE_TIMEOUT = 6 * HEARTBEAT_INTERVAL;
+    static final int DEFAULT_WORKER_TIMEOUT = 300;
+    // a local worker that keeps exiting is given up after this many restarts
+    private static final int MAX_RESTARTS = 3;
+    private static final int ACCEPT_TICK = 500;
+    private static final int NO_SHARD = -1;
+
+    // Message between coordinator and worker, unused fields stay null
+    static final class Message {
+
+        static final String REQUEST = "request";
+        static final String SHARD = "shard";
+        static final String RESPONSE = "response";
+        static final String COMPLETE = "complete";
+        static final String HEARTBEAT = "heartbeat";
+        static final String DONE = "done";
+
+        String type;
+        Integer shard;
+        String ranges;
+        String ip;
+        String body;
+
+        Message(String type) {
+            this.type = type;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<IPRangeSet> shards;
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private final boolean[] completed;
+    private int remaining;
+    private final List<Process> localWorkers = new ArrayList<>();
+    private final List<Integer> restarts = new ArrayList<>();
+    private int localMaxInFlight;
+    private int localMaxPerSecond;
+    private int connected;
+    private long idleSince = System.currentTimeMillis();
+
+    // Listens for workers right away, so they can be started before run
+    ScpScanCoordinator(IPRangeSet addresses, long shardSize, InetAddress bindAddress, int port) throws IOException {
+        this.shards = addresses.split(shardSize);
+        this.completed = new boolean[shards.size()];
+        this.remaining = shards.size();
+        for (int i = 0; i < shards.size(); i++) {
+            pending.add(i);
+        }
+        this.serverSocket = new ServerSocket(port, 0, bindAddress);
+        this.serverSocket.setSoTimeout(ACCEPT_TICK);
+    }
+
+    int shardCount() {
+        return shards.size();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Hands out shards until all are complete, handler calls are serialized.
+    // Returns false if the scan failed because no worker was connected for workerTimeoutMillis (0 waits forever)
+    // or all local workers exited.
+    boolean run(ScpDiscoveryScanner.ResponseHandler handler, long workerTimeoutMillis) {
+        ScpEvents.log(Level.INFO, ScpEvents.SCAN, "Waiting for scan workers on "
+                + serverSocket.getLocalSocketAddress() + ", " + shards.size() + " shards");
+        Object handlerLock = new Object();
+        try {
+            while (!isComplete()) {
+                try {
+                    Socket worker = serverSocket.accept();
+                    connected(1);
+                    Thread thread = new Thread(() -> serve(worker, handler, handlerLock), "scp-scan-coordinator");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (SocketTimeoutException ex) {
+                    // check for completion
+                }
+                String failure = superviseWorkers(workerTimeoutMillis);
+                if (failure != null) {
+                    ScpEvents.log(Level.ERROR, ScpEvents.SCAN, failure + ", " + remaining() + " of "
+                            + shards.size() + " shards not scanned");
+                    return false;
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(serverSocket);
+        }
+        ScpEvents.log(Level.INFO, ScpEvents.SCAN, "All " + shards.size() + " shards scanned");
+        return true;
+    }
+
+    // Restarts local workers that exited, returns why the scan can't finish or null
+    private String superviseWorkers(long workerTimeoutMillis) {
+        boolean localLeft = false;
+        for (int i = 0; i < localWorkers.size(); i++) {
+            Process worker = localWorkers.get(i);
+            if (worker != null && !worker.isAlive() && !isComplete()) {
+                worker = restart(i, worker.exitValue());
+            }
+            localLeft |= worker != null;
+        }
+        synchronized (this) {
+            if (connected > 0) {
+                return null;
+            }
+            if (!localWorkers.isEmpty() && !localLeft) {
+                return "All local scan workers exited";
+            }
+            if (workerTimeoutMillis > 0 && System.currentTimeMillis() - idleSince > workerTimeoutMillis) {
+                return "No scan worker connected for " + TimeUnit.MILLISECONDS.toSeconds(workerTimeoutMillis) + " s";
+            }
+        }
+        return null;
+    }
+
+    // Returns the new process or null if the worker is given up
+    private Process restart(int index, int exitCode) {
+        Process worker = null;
+        if (restarts.get(index) < MAX_RESTARTS) {
+            restarts.set(index, restarts.get(index) + 1);
+            ScpEvents.log(Level.WARN, ScpEvents.SCAN, "Local scan worker exited with code " + exitCode
+                    + ", restarting it");
+            try {
+                worker = startLocalWorker(localMaxInFlight, localMaxPerSecond);
+            } catch (IOException ex) {
+                ScpEvents.log(Level.WARN, ScpEvents.SCAN, "Can't restart the local scan worker: " + ex.getMessage());
+            }
+        } else {
+            ScpEvents.log(Level.WARN, ScpEvents.SCAN, "Local scan worker exited with code " + exitCode
+                    + " after " + MAX_RESTARTS + " restarts");
+        }
+        localWorkers.set(index, worker);
+        return worker;
+    }
+
+    private void serve(Socket worker, ScpDiscoveryScanner.ResponseHandler handler, Object handlerLock) {
+        Gson gson = new Gson();
+        String name = worker.getRemoteSocketAddress().toString();
+        int assigned = NO_SHARD;
+        try (Socket socket = worker) {
+            socket.setSoTimeout(LEASE_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            String line;
+            while ((line = in.readLine()) != null) {
+                Message message = gson.fromJson(line, Message.class);
+                if (message == null || message.type == null) {
+                    continue;
+                }
+                switch (message.type) {
+                    case Message.REQUEST:
+                        assigned = take();
+                        Message reply;
+                        if (assigned == NO_SHARD) {
+                            reply = new Message(Message.DONE);
+                        } else {
+                            reply = new Message(Message.SHARD);
+                            reply.shard = assigned;
+                            reply.ranges = shards.get(assigned).toString();
+                            ScpEvents.log(Level.DEBUG, ScpEvents.SCAN,
+                                    "Shard " + assigned + " assigned to worker " + name);
+                        }
+                        out.write(gson.toJson(reply) + "\n");
+                        out.flush();
+                        if (assigned == NO_SHARD) {
+                            return;
+                        }
+                        break;
+                    case Message.RESPONSE:
+                        if (message.shard != null && message.shard == assigned && message.ip != null
+                                && message.body != null) {
+                            byte[] body = message.body.getBytes(StandardCharsets.UTF_8);
+                            synchronized (handlerLock) {
+                                handler.onResponse(message.ip, body, 0, body.length);
+                            }
+                        }
+                        break;
+                    case Message.COMPLETE:
+                        if (message.shard != null && message.shard == assigned) {
+                            complete(assigned);
+                            assigned = NO_SHARD;
+                        }
+                        break;
+                    default:
+                        // heartbeat, the read itself renews the lease
+                        break;
+                }
+            }
+        } catch (IOException | JsonParseException ex) {
+            // worker crashed, hangs or sent garbage
+        } finally {
+            if (assigned != NO_SHARD) {
+                ScpEvents.log(Level.WARN, ScpEvents.SCAN,
+                        "Lost worker " + name + ", shard " + assigned + " is reassigned");
+                requeue(assigned);
+            }
+            connected(-1);
+        }
+    }
+
+    private synchronized void connected(int change) {
+        connected += change;
+        if (connected == 0) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    // Next shard to scan, waits while all remaining shards are being scanned, NO_SHARD once all are complete
+    private synchronized int take() {
+        while (pending.isEmpty() && remaining > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return NO_SHARD;
+            }
+        }
+        return remaining == 0 ? NO_SHARD : pending.poll();
+    }
+
+    private synchronized void complete(int shard) {
+        if (!completed[shard]) {
+            completed[shard] = true;
+            remaining--;
+            notifyAll();
+        }
+    }
+
+    private synchronized void requeue(int shard) {
+        if (!completed[shard]) {
+            pending.addFirst(shard);
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean isComplete() {
+        return remaining == 0;
+    }
+
+    private synchronized int remaining() {
+        return remaining;
+    }
+
+    // Starts worker processes on this machine, run restarts them if they exit
+    void startLocalWorkers(int count, int maxInFlight, int maxPerSecond) throws IOException {
+        localMaxInFlight = maxInFlight;
+        localMaxPerSecond = maxPerSecond;
+        for (int i = 0; i < count; i++) {
+            localWorkers.add(startLocalWorker(maxInFlight, maxPerSecond));
+            restarts.add(0);
+        }
+    }
+
+    void stopLocalWorkers() {
+        for (Process worker : localWorkers) {
+            if (worker != null) {
+                worker.destroy();
+            }
+        }
+    }
+
+    // Starts a worker process on this machine with the same Java installation and class path
+    private Process startLocalWorker(int maxInFlight, int maxPerSecond) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ScpClient.class.getName());
+        command.add("scan-worker");
+        command.add("--coordinator=" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port());
+        command.add("--max-in-flight=" + maxInFlight);
+        command.add("--max-rate=" + maxPerSecond);
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // nothing left to clean up
+        }
+    }
+}
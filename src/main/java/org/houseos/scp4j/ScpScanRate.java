@@ -0,0 +1,149 @@
+/*
+ * secure_control_protocol
+ * ScpScanRate Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+// Congestion window for discovery probes, tuned while the scan runs (AIMD like TCP):
+// the number of probes in flight grows with every answered probe, exponentially up to the slow start
+// threshold and by one per window afterwards, and is halved at most once per round trip on a loss.
+// An optional token bucket caps the probes started per second.
+final class ScpScanRate {
+
+    static final int INITIAL_WINDOW = 16;
+    static final int MIN_WINDOW = 2;
+
+    // the token bucket holds the probes of this many milliseconds, so short pauses don't lose the rate
+    private static final int BURST_MILLIS = 50;
+    private static final double MILLIS_PER_SECOND = 1000.0;
+
+    static final class Stats {
+
+        final long probes;
+        final long answered;
+        final long losses;
+        final long decreases;
+        final int window;
+        final int peakWindow;
+        final long elapsedMillis;
+
+        Stats(long probes, long answered, long losses, long decreases, int window, int peakWindow,
+                long elapsedMillis) {
+            this.probes = probes;
+            this.answered = answered;
+            this.losses = losses;
+            this.decreases = decreases;
+            this.window = window;
+            this.peakWindow = peakWindow;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        long probesPerSecond() {
+            return elapsedMillis == 0 ? probes : Math.round(probes * MILLIS_PER_SECOND / elapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return probes + " probes in " + elapsedMillis + " ms (" + probesPerSecond() + " probes/s), "
+                    + answered + " answered, " + losses + " lost, window " + window + " (peak " + peakWindow
+                    + ", " + decreases + " decreases)";
+        }
+    }
+
+    private final int maxWindow;
+    private final int maxPerSecond;
+    private final double burst;
+    private final long started = System.currentTimeMillis();
+
+    private double window;
+    private double slowStartThreshold;
+    private int inFlight;
+    private double tokens;
+    private long lastRefill = started;
+    private long lastDecrease = started;
+
+    private long probes;
+    private long answered;
+    private long losses;
+    private long decreases;
+    private int peakWindow;
+
+    // maxPerSecond 0 means no rate cap
+    ScpScanRate(int maxWindow, int maxPerSecond) {
+        if (maxWindow < 1 || maxPerSecond < 0) {
+            throw new IllegalArgumentException("window must be positive and the rate cap not negative");
+        }
+        this.maxWindow = maxWindow;
+        this.maxPerSecond = maxPerSecond;
+        this.burst = Math.max(1, maxPerSecond * BURST_MILLIS / MILLIS_PER_SECOND);
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+        this.slowStartThreshold = maxWindow;
+        this.tokens = burst;
+        this.peakWindow = (int) window;
+    }
+
+    // Takes a slot for a new probe, false if the window is full or the rate cap is reached
+    synchronized boolean tryStart() {
+        if (inFlight >= (int) window) {
+            return false;
+        }
+        if (maxPerSecond > 0) {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * maxPerSecond / MILLIS_PER_SECOND);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+        }
+        inFlight++;
+        probes++;
+        return true;
+    }
+
+    // Gives back a slot that was not used for a probe
+    synchronized void cancelStart() {
+        inFlight--;
+        probes--;
+        if (maxPerSecond > 0) {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+
+    // The target answered (or refused the connection), the round trip worked
+    synchronized void answered() {
+        // the window only grows while it is what limits the scan, not the rate cap or the address supply
+        boolean windowLimited = inFlight >= (int) window;
+        inFlight--;
+        answered++;
+        if (windowLimited) {
+            window = Math.min(maxWindow, window < slowStartThreshold ? window + 1 : window + 1 / window);
+            peakWindow = Math.max(peakWindow, (int) window);
+        }
+    }
+
+    // The probe was dropped or failed locally. Only one decrease per round trip:
+    // probes launched before the last decrease saw the old window and don't count again.
+    synchronized void lost(long launched) {
+        inFlight--;
+        losses++;
+        if (launched >= lastDecrease) {
+            slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+            window = Math.min(window, slowStartThreshold);
+            lastDecrease = System.currentTimeMillis();
+            decreases++;
+        }
+    }
+
+    // The probe ended without telling anything about the network, e.g. no host at the address
+    synchronized void ended() {
+        inFlight--;
+    }
+
+    synchronized Stats stats() {
+        return new Stats(probes, answered, losses, decreases, (int) window, peakWindow,
+                System.currentTimeMillis() - started);
+    }
+}
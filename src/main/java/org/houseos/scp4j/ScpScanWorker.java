@@ -0,0 +1,162 @@
+/*
+ * secure_control_protocol
+ * ScpScanWorker Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.houseos.scp4j.ScpEvents.Level;
+import org.houseos.scp4j.util.IPRangeSet;
+
+// Scans the shards a ScpScanCoordinator hands out and sends back the raw discover responses.
+// The coordinator verifies them, so the worker doesn't need to know any device passwords.
+// Heartbeats are only sent while the scan makes progress, a stuck scan loses its shard to another worker.
+final class ScpScanWorker {
+
+    private final String host;
+    private final int port;
+    private final int maxInFlight;
+    private final int maxPerSecond;
+    private final Gson gson = new Gson();
+    private Socket socket;
+    private Writer out;
+    // addresses taken and responses received in the current shard
+    private final AtomicLong progress = new AtomicLong();
+    private ScpDiscoveryScanner scanner;
+    private boolean stalled;
+    private long heartbeatProgress;
+    private long lastProgress;
+
+    ScpScanWorker(String host, int port, int maxInFlight, int maxPerSecond) {
+        this.host = host;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    // Scans shards until the coordinator is done or gone
+    void run() throws IOException {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scp-scan-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (Socket connection = new Socket(host, port)) {
+            socket = connection;
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            heartbeat.scheduleAtFixedRate(this::heartbeat, ScpScanCoordinator.HEARTBEAT_INTERVAL,
+                    ScpScanCoordinator.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+            while (true) {
+                send(new ScpScanCoordinator.Message(ScpScanCoordinator.Message.REQUEST));
+                String line = in.readLine();
+                ScpScanCoordinator.Message shard = line == null ? null
+                        : gson.fromJson(line, ScpScanCoordinator.Message.class);
+                if (shard == null || !ScpScanCoordinator.Message.SHARD.equals(shard.type)) {
+                    ScpEvents.log(Level.INFO, ScpEvents.SCAN, "Scan worker finished");
+                    return;
+                }
+                if (!scan(shard)) {
+                    throw new IOException("Scan of shard " + shard.shard + " made no progress");
+                }
+            }
+        } catch (JsonParseException ex) {
+            throw new IOException("Invalid message from the coordinator", ex);
+        } finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    // Returns false if the scan was given up
+    private boolean scan(ScpScanCoordinator.Message shard) {
+        IPRangeSet addresses = IPRangeSet.parse(Arrays.asList(shard.ranges.split(",")), null, null);
+        ScpEvents.log(Level.INFO, ScpEvents.SCAN,
+                "Scanning shard " + shard.shard + " with " + addresses.size() + " IP addresses");
+        Iterator<String> source = addresses.iterator();
+        Iterator<String> counted = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public String next() {
+                progress.incrementAndGet();
+                return source.next();
+            }
+        };
+        ScpDiscoveryScanner shardScanner = new ScpDiscoveryScanner(maxInFlight, maxPerSecond,
+                ScpDiscoveryScanner.DEFAULT_IO_THREADS);
+        synchronized (this) {
+            scanner = shardScanner;
+            lastProgress = System.currentTimeMillis();
+        }
+        ScpScanRate.Stats stats = shardScanner.scan(counted, (ip, data, offset, length) -> {
+            progress.incrementAndGet();
+            ScpScanCoordinator.Message response = new ScpScanCoordinator.Message(ScpScanCoordinator.Message.RESPONSE);
+            response.shard = shard.shard;
+            response.ip = ip;
+            response.body = new String(data, offset, length, StandardCharsets.UTF_8);
+            send(response);
+        });
+        synchronized (this) {
+            scanner = null;
+            if (stalled) {
+                return false;
+            }
+        }
+        ScpEvents.log(Level.INFO, ScpEvents.SCAN, "Scanned shard " + shard.shard + ": " + stats);
+        ScpScanCoordinator.Message complete = new ScpScanCoordinator.Message(ScpScanCoordinator.Message.COMPLETE);
+        complete.shard = shard.shard;
+        send(complete);
+        return true;
+    }
+
+    // Renews the lease only if the scan went on since the last heartbeat. A scan that is stuck for the lease
+    // timeout has lost its shard already, it is cancelled and the connection closed, so the worker ends.
+    private synchronized void heartbeat() {
+        long current = progress.get();
+        long now = System.currentTimeMillis();
+        if (current != heartbeatProgress) {
+            heartbeatProgress = current;
+            lastProgress = now;
+            send(new ScpScanCoordinator.Message(ScpScanCoordinator.Message.HEARTBEAT));
+        } else if (scanner != null && now - lastProgress >= ScpScanCoordinator.LEASE_TIMEOUT) {
+            ScpEvents.log(Level.WARN, ScpEvents.SCAN, "Scan made no progress, giving up the shard");
+            stalled = true;
+            scanner.cancel();
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // closed already
+            }
+        }
+    }
+
+    // Called from the scanner lanes and the heartbeat, a lost coordinator shows up in the next read
+    private synchronized void send(ScpScanCoordinator.Message message) {
+        try {
+            out.write(gson.toJson(message) + "\n");
+            out.flush();
+        } catch (IOException ex) {
+            // the coordinator is gone
+        }
+    }
+}
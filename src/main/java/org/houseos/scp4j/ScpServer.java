@@ -0,0 +1,262 @@
+/*
+ * secure_control_protocol
+ * ScpServer Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import picocli.CommandLine;
+
+// Daemon mode: runs the CLI commands inside one long-lived process, so the device registry,
+// crypto contexts and device connections stay warm between commands.
+// Clients connect to a loopback TCP port and send one command per connection:
+// request: a line with the token of the server, then a JSON array with the command line arguments in one line
+// response: everything the command prints, followed by a line with the exit code
+// The server writes a random token to ~/.scp4j/server-<port>.token, readable only by its user, so other local
+// users can't run commands with the stored device passwords. Commands may only use the devices JSON file the
+// server was started with, they must not make the server write other files.
+// Commands share the device store, the device registry and the scan settings of Scp, so they run one after
+// the other. Only commands that don't use any of them run alongside.
+final class ScpServer {
+
+    static final int DEFAULT_PORT = 19317;
+
+    static final String EXIT_CODE_PREFIX = "scp4j-exit-code: ";
+
+    // time a client gets to send its request lines
+    private static final int REQUEST_TIMEOUT = 10000;
+
+    private static final Path TOKEN_DIRECTORY = Paths.get(System.getProperty("user.home"), ".scp4j");
+    private static final String JSON_OPTION = "--json";
+
+    // commands that never touch the shared state of Scp
+    private static final Set<String> INDEPENDENT_COMMANDS = new HashSet<>(Arrays.asList(
+            "metrics", "simulate", "scan-worker"));
+
+    // held while a command that uses Scp runs, fair so clients are served in order
+    private static final ReentrantLock SCP_LOCK = new ReentrantLock(true);
+
+    private final int port;
+    private final Path jsonPath;
+    private String token;
+
+    ScpServer(int port, String jsonPath) {
+        this.port = port;
+        this.jsonPath = Paths.get(jsonPath).toAbsolutePath().normalize();
+    }
+
+    // The file with the token of the server listening on the port
+    static Path tokenPath(int port) {
+        return TOKEN_DIRECTORY.resolve("server-" + port + ".token");
+    }
+
+    // Accepts commands until the process is stopped
+    void serve() throws IOException {
+        ScpOutput.install();
+        ScpMetrics.registerJmx();
+        Scp scp = Scp.getInstance();
+        scp.keepDeviceStoreOpen = true;
+        token = ScpCrypto.getInstance().generatePassword();
+        writeToken(tokenPath(port), token);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(tokenPath(port));
+                scp.shutdownDeviceStore();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }, "scp-server-shutdown"));
+
+        ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "scp-server-command");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening on " + serverSocket.getLocalSocketAddress() + ", devices JSON file "
+                    + jsonPath);
+            while (true) {
+                Socket client = serverSocket.accept();
+                workers.submit(() -> handle(client));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void handle(Socket client) {
+        try (Socket socket = client) {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String clientToken = in.readLine();
+            String request = in.readLine();
+            socket.setSoTimeout(0);
+            OutputStream out = socket.getOutputStream();
+            PrintStream clientOut = new PrintStream(out, true, StandardCharsets.UTF_8.name());
+            int exitCode;
+            if (clientToken == null || !MessageDigest.isEqual(clientToken.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                clientOut.println("Invalid token, the client must run as the user of the server.");
+                exitCode = CommandLine.ExitCode.USAGE;
+            } else {
+                exitCode = execute(request, clientOut);
+            }
+            clientOut.println(EXIT_CODE_PREFIX + exitCode);
+            clientOut.flush();
+        } catch (IOException ex) {
+            // the client went away
+        }
+    }
+
+    // Runs the command with System.out of this thread and its child threads redirected to the client
+    private int execute(String request, PrintStream clientOut) {
+        String[] args;
+        try {
+            args = request == null ? null : new Gson().fromJson(request, String[].class);
+        } catch (JsonParseException ex) {
+            args = null;
+        }
+        if (args == null || args.length == 0) {
+            clientOut.println("Invalid request, expected a JSON array of arguments.");
+            return CommandLine.ExitCode.USAGE;
+        }
+        if ("serve".equals(args[0])) {
+            clientOut.println("The server can't be started from a client.");
+            return CommandLine.ExitCode.USAGE;
+        }
+        String otherJsonPath = otherJsonPath(args);
+        if (otherJsonPath != null) {
+            clientOut.println("The server only uses the devices JSON file " + jsonPath + ", not " + otherJsonPath
+                    + ".");
+            return CommandLine.ExitCode.USAGE;
+        }
+        ScpOutput.Capture capture = ScpOutput.capture(clientOut);
+        CommandLine commandLine = new CommandLine(new ScpClient());
+        boolean locked = !INDEPENDENT_COMMANDS.contains(subcommand(commandLine, args));
+        if (locked && !SCP_LOCK.tryLock()) {
+            clientOut.println("Waiting for the running command to finish.");
+            SCP_LOCK.lock();
+        }
+        try {
+            commandLine.setOut(new PrintWriter(clientOut, true));
+            commandLine.setErr(new PrintWriter(clientOut, true));
+            return commandLine.execute(args);
+        } finally {
+            // the events of the command go to the client, not to the server console
+            ScpEvents.flush();
+            capture.close();
+            if (locked) {
+                SCP_LOCK.unlock();
+            }
+        }
+    }
+
+    // The --json path of the command if it is not the devices JSON file of the server, otherwise null.
+    // Arguments that don't parse are reported when the command is executed.
+    private String otherJsonPath(String[] args) {
+        try {
+            CommandLine.ParseResult subcommand = new CommandLine(new ScpClient()).parseArgs(args).subcommand();
+            CommandLine.Model.OptionSpec json = subcommand == null ? null : subcommand.matchedOption(JSON_OPTION);
+            if (json == null) {
+                return null;
+            }
+            String value = json.getValue();
+            return jsonPath.equals(Paths.get(value).toAbsolutePath().normalize()) ? null : value;
+        } catch (CommandLine.ParameterException | InvalidPathException ex) {
+            return null;
+        }
+    }
+
+    // Writes the token to a file only the user can read, replacing the token of an earlier server
+    private static void writeToken(Path path, String token) throws IOException {
+        Path directory = path.getParent();
+        boolean posix = Files.getFileStore(Files.exists(directory) ? directory : directory.getParent())
+                .supportsFileAttributeView(PosixFileAttributeView.class);
+        if (!Files.exists(directory)) {
+            if (posix) {
+                Files.createDirectories(directory,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        Path tempPath = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        if (posix) {
+            Files.setPosixFilePermissions(tempPath, PosixFilePermissions.fromString("rw-------"));
+        }
+        Files.write(tempPath, token.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The name of the subcommand in the arguments, null if there is none
+    private static String subcommand(CommandLine commandLine, String[] args) {
+        Set<String> names = commandLine.getSubcommands().keySet();
+        for (String arg : args) {
+            if (names.contains(arg)) {
+                return arg;
+            }
+        }
+        return null;
+    }
+
+    // Sends the arguments to a running server and prints its output, returns the exit code of the command
+    static int forward(int port, List<String> args) {
+        String token;
+        try {
+            token = new String(Files.readAllBytes(tokenPath(port)), StandardCharsets.UTF_8).trim();
+        } catch (IOException ex) {
+            System.out.println("Can't read the token of the server on port " + port + " from " + tokenPath(port)
+                    + ", the client must run as the user of the server.");
+            return CommandLine.ExitCode.SOFTWARE;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(token + "\n" + new Gson().toJson(args) + "\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(EXIT_CODE_PREFIX)) {
+                    return Integer.parseInt(line.substring(EXIT_CODE_PREFIX.length()).trim());
+                }
+                System.out.println(line);
+            }
+            System.out.println("Connection to the server closed unexpectedly.");
+        } catch (IOException ex) {
+            System.out.println("Can't reach the server on port " + port + ": " + ex.getMessage());
+        }
+        return CommandLine.ExitCode.SOFTWARE;
+    }
+}
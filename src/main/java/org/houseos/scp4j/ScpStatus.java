@@ -15,4 +15,8 @@ public final class ScpStatus {
     static final String RESULT_DONE = "done";
     static final String RESULT_SUCCESS = "success";
     static final String RESULT_ERROR = "error";
+    // not sent, the circuit breaker of the device is open
+    static final String RESULT_DEVICE_DOWN = "device down";
+    // sent, but the device did not answer
+    static final String RESULT_NO_ANSWER = "no answer";
 }
@@ -16,6 +16,7 @@ public final class IPRange {
     private static final int SHIFT_3_BYTES = 24; // 3 * 8
     private static final int SHIFT_2_BYTES = 16; // 2 * 8
     private static final int SHIFT_1_BYTE = 8;   // 1 * 8
+    private static final long ALL_ONES = 0xFFFFFFFFL;
 
     private IPRange() {
         //private constructor, because this is a utility class
@@ -52,56 +53,21 @@ public final class IPRange {
         return octets[0] + "." + octets[1] + "." + octets[2] + "." + octets[3];
     }
 
-    private static long[] calculateLastIpAddress(long address, long netmask) {
-        long[] octets = new long[AMOUNT_OF_OCTETS];
-
-        // Determine host bits
-        final long maximalNetmask = 32;
-        long hostbits = maximalNetmask - netmask;
-        // Set all host bits to 1
-        long invertor = 0;
-        for (long i = 0; i < hostbits; i++) {
-            invertor += Math.pow(2, i);
-        }
-        long lastAddress = address | invertor;
-        //substract 1 to get last address instead of broadcast address
-        lastAddress--;
-
-        octets[0] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_3_BYTES)) >> SHIFT_3_BYTES;
-        octets[1] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_2_BYTES)) >> SHIFT_2_BYTES;
-        octets[2] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_1_BYTE)) >> SHIFT_1_BYTE;
-        octets[3] = lastAddress & (BITMASK_ONE_BYTE);
-        return octets;
-    }
-
-    private static long[] calculateNetworkAddress(long address, long netmask) {
-        long[] octets = new long[AMOUNT_OF_OCTETS];
-
-        // Get only the network bits set to 1
-        long invertor = 0;
-        final int maximalExponent = 31;
-        for (long i = 0; i < netmask; i++) {
-            invertor += Math.pow(2, maximalExponent - i);
-        }
-        long lastAddress = address & invertor;
-
-        octets[0] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_3_BYTES)) >> SHIFT_3_BYTES;
-        octets[1] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_2_BYTES)) >> SHIFT_2_BYTES;
-        octets[2] = (lastAddress & (BITMASK_ONE_BYTE << SHIFT_1_BYTE)) >> SHIFT_1_BYTE;
-        octets[3] = lastAddress & (BITMASK_ONE_BYTE);
-        return octets;
-    }
-
+    // Materializes every host address of the block, IPRangeSet iterates large ranges without doing so
     public static List<String> getAllIpAddressesInRange(String networkAddress, long netmask) {
         long[] octets = getOctetsOfIpAddress(networkAddress);
         long address = octetsToInteger(octets);
 
         List<String> ipAddresses = new ArrayList<>();
 
+        // host bits set to 1
+        long hostMask = ALL_ONES >>> netmask;
         //start with lowest address
-        long currentAddress = octetsToInteger(calculateNetworkAddress(address, netmask));
+        long currentAddress = address & ~hostMask;
+        //substract 1 to get last address instead of broadcast address
+        long lastAddress = (address | hostMask) - 1;
         //increment address using long value
-        while (currentAddress < octetsToInteger(calculateLastIpAddress(address, netmask))) {
+        while (currentAddress < lastAddress) {
             currentAddress++;
             ipAddresses.add(octetsToString(integerToOctets(currentAddress)));
         }
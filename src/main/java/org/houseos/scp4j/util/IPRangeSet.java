@@ -0,0 +1,259 @@
+/*
+ * secure_control_protocol
+ * IPRangeSet Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// IPv4 addresses to scan, kept as sorted disjoint ranges of integers.
+// Addresses are only turned into strings while iterating, so the memory needed
+// depends on the number of ranges and not on the number of addresses.
+//
+// Entries: a CIDR block (192.168.1.0/24, without network and broadcast address),
+// an explicit range (192.168.1.10-192.168.1.20) or a single address.
+public final class IPRangeSet implements Iterable<String> {
+
+    private static final int ADDRESS_BITS = 32;
+    private static final int AMOUNT_OF_OCTETS = 4;
+    private static final int BITS_PER_OCTET = 8;
+    private static final int MAX_OCTET = 255;
+    private static final long ALL_ONES = 0xFFFFFFFFL;
+    // smaller blocks have no network and broadcast address (RFC 3021)
+    private static final int MAX_PREFIX_WITH_BROADCAST = 30;
+
+    // inclusive bounds of the ranges, sorted and not overlapping
+    private final long[] starts;
+    private final long[] ends;
+
+    private IPRangeSet(List<long[]> ranges) {
+        starts = new long[ranges.size()];
+        ends = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            starts[i] = ranges.get(i)[0];
+            ends[i] = ranges.get(i)[1];
+        }
+    }
+
+    // All included addresses that are not excluded. A single address in includes is
+    // expanded to its block if a prefix length is given. Throws IllegalArgumentException for invalid entries.
+    public static IPRangeSet parse(List<String> includes, Integer prefixLength, List<String> excludes) {
+        List<long[]> included = new ArrayList<>();
+        for (String entry : includes) {
+            String trimmed = entry.trim();
+            if (prefixLength != null && trimmed.indexOf('/') < 0 && trimmed.indexOf('-') < 0) {
+                trimmed = trimmed + "/" + prefixLength;
+            }
+            included.add(parseEntry(trimmed, true));
+        }
+        List<long[]> excluded = new ArrayList<>();
+        if (excludes != null) {
+            for (String entry : excludes) {
+                excluded.add(parseEntry(entry.trim(), false));
+            }
+        }
+        return new IPRangeSet(subtract(merge(included), merge(excluded)));
+    }
+
+    // The same set without the given addresses
+    public IPRangeSet excluding(Collection<String> addresses) {
+        List<long[]> excluded = new ArrayList<>();
+        for (String address : addresses) {
+            long value = toLong(address);
+            excluded.add(new long[]{value, value});
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+            ranges.add(new long[]{starts[i], ends[i]});
+        }
+        return new IPRangeSet(subtract(ranges, merge(excluded)));
+    }
+
+    // Splits the set into parts of at most maxAddresses addresses, in address order
+    public List<IPRangeSet> split(long maxAddresses) {
+        if (maxAddresses < 1) {
+            throw new IllegalArgumentException("parts need at least one address");
+        }
+        List<IPRangeSet> parts = new ArrayList<>();
+        List<long[]> part = new ArrayList<>();
+        long partSize = 0;
+        for (int i = 0; i < starts.length; i++) {
+            long start = starts[i];
+            while (start <= ends[i]) {
+                long end = Math.min(ends[i], start + (maxAddresses - partSize) - 1);
+                part.add(new long[]{start, end});
+                partSize += end - start + 1;
+                start = end + 1;
+                if (partSize == maxAddresses) {
+                    parts.add(new IPRangeSet(part));
+                    part = new ArrayList<>();
+                    partSize = 0;
+                }
+            }
+        }
+        if (!part.isEmpty()) {
+            parts.add(new IPRangeSet(part));
+        }
+        return parts;
+    }
+
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < starts.length; i++) {
+            size += ends[i] - starts[i] + 1;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int range;
+            private long next = starts.length > 0 ? starts[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                return range < starts.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long current = next;
+                if (current == ends[range]) {
+                    range++;
+                    if (range < starts.length) {
+                        next = starts[range];
+                    }
+                } else {
+                    next = current + 1;
+                }
+                return toAddressString(current);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(toAddressString(starts[i]));
+            if (ends[i] != starts[i]) {
+                builder.append('-').append(toAddressString(ends[i]));
+            }
+        }
+        return builder.toString();
+    }
+
+    // Inclusive bounds of a CIDR block, range or single address
+    private static long[] parseEntry(String entry, boolean hostsOnly) {
+        int slash = entry.indexOf('/');
+        if (slash >= 0) {
+            int prefix;
+            try {
+                prefix = Integer.parseInt(entry.substring(slash + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid prefix length in " + entry);
+            }
+            if (prefix < 0 || prefix > ADDRESS_BITS) {
+                throw new IllegalArgumentException("Invalid prefix length in " + entry);
+            }
+            long hostMask = ALL_ONES >>> prefix;
+            long network = toLong(entry.substring(0, slash)) & ~hostMask & ALL_ONES;
+            long broadcast = network | hostMask;
+            if (hostsOnly && prefix <= MAX_PREFIX_WITH_BROADCAST) {
+                return new long[]{network + 1, broadcast - 1};
+            }
+            return new long[]{network, broadcast};
+        }
+        int dash = entry.indexOf('-');
+        if (dash >= 0) {
+            long first = toLong(entry.substring(0, dash).trim());
+            long last = toLong(entry.substring(dash + 1).trim());
+            if (last < first) {
+                throw new IllegalArgumentException("Range " + entry + " ends before it starts");
+            }
+            return new long[]{first, last};
+        }
+        long address = toLong(entry);
+        return new long[]{address, address};
+    }
+
+    // Sorts the ranges and joins overlapping and adjacent ones
+    private static List<long[]> merge(List<long[]> ranges) {
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    // Both lists sorted and disjoint
+    private static List<long[]> subtract(List<long[]> ranges, List<long[]> excluded) {
+        List<long[]> result = new ArrayList<>();
+        int e = 0;
+        for (long[] range : ranges) {
+            long start = range[0];
+            long end = range[1];
+            while (e < excluded.size() && excluded.get(e)[1] < start) {
+                e++;
+            }
+            int i = e;
+            while (start <= end && i < excluded.size() && excluded.get(i)[0] <= end) {
+                long[] cut = excluded.get(i);
+                if (cut[0] > start) {
+                    result.add(new long[]{start, cut[0] - 1});
+                }
+                start = Math.max(start, cut[1] + 1);
+                i++;
+            }
+            if (start <= end) {
+                result.add(new long[]{start, end});
+            }
+        }
+        return result;
+    }
+
+    private static long toLong(String address) {
+        String[] octets = address.split("\\.", -1);
+        if (octets.length != AMOUNT_OF_OCTETS) {
+            throw new IllegalArgumentException("Invalid IPv4 address " + address);
+        }
+        long value = 0;
+        for (String octet : octets) {
+            int parsed;
+            try {
+                parsed = Integer.parseInt(octet);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid IPv4 address " + address);
+            }
+            if (parsed < 0 || parsed > MAX_OCTET) {
+                throw new IllegalArgumentException("Invalid IPv4 address " + address);
+            }
+            value = (value << BITS_PER_OCTET) | parsed;
+        }
+        return value;
+    }
+
+    private static String toAddressString(long address) {
+        return ((address >>> (3 * BITS_PER_OCTET)) & MAX_OCTET) + "." + ((address >>> (2 * BITS_PER_OCTET)) & MAX_OCTET)
+                + "." + ((address >>> BITS_PER_OCTET) & MAX_OCTET) + "." + (address & MAX_OCTET);
+    }
+}
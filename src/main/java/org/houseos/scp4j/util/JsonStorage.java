@@ -25,7 +25,7 @@ public final class JsonStorage {
         //private constructor, because this is a utility class
     }
 
-    public static void storeDevice(ScpDevice device, String path) {
+    public static synchronized void storeDevice(ScpDevice device, String path) {
         try {
             //read file
             String json = readFile(path, StandardCharsets.UTF_8);
@@ -37,7 +37,6 @@ public final class JsonStorage {
             //add to List, remove if it already exists to mitigate duplicates
             devices.removeIf(element -> element.getDeviceId().equals(device.getDeviceId()));
             devices.add(device);
-            System.out.println(devices);
             //write the file and list to JSON
             FileWriter fw = new FileWriter(path);
             g.toJson(devices, fw);
@@ -0,0 +1,30 @@
+/*
+ * secure_control_protocol
+ * ScpExecutors Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Java 21+ variant of ScpExecutors, selected through the multi-release jar.
+// Starts one virtual thread per task unless -Dscp4j.virtualThreads=false is set.
+final class ScpExecutors {
+
+    static final boolean VIRTUAL_THREADS
+            = Boolean.parseBoolean(System.getProperty("scp4j.virtualThreads", "true"));
+
+    private ScpExecutors() {
+        // this class has only static methods
+    }
+
+    // Returns an executor running one task per device, platformThreads only applies without virtual threads
+    static ExecutorService newPerDeviceExecutor(int platformThreads) {
+        if (VIRTUAL_THREADS) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * secure_control_protocol
+ * ScpBytesTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.Test;
+
+public class ScpBytesTest {
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The value of the field as string, null if stringField doesn't find it
+    private static String field(String json, String name) {
+        // surrounding bytes check that offsets are honoured
+        byte[] data = utf8("xx" + json + "yy");
+        int[] range = new int[2];
+        if (!ScpBytes.stringField(data, 2, data.length - 4, name, range)) {
+            return null;
+        }
+        return new String(data, range[0], range[1], StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void stringFieldFindsTopLevelFields() {
+        String json = "{ \"a\" : 1, \"nested\": {\"hmac\": \"inner\", \"list\": [1, \"]\", {}]},"
+                + " \"text\": \"with \\\"quotes\\\"\", \"hmac\":\"outer\" }";
+        assertEquals("outer", field(json, "hmac"));
+        assertEquals("with \\\"quotes\\\"", field(json, "text"));
+        assertNull(field(json, "missing"));
+        // not a string
+        assertNull(field(json, "a"));
+        assertNull(field(json, "nested"));
+    }
+
+    @Test
+    public void stringFieldRejectsMalformedJson() {
+        assertNull(field("[\"hmac\", \"x\"]", "hmac"));
+        assertNull(field("{\"hmac\": \"unterminated}", "hmac"));
+        assertNull(field("{\"a\" 1, \"hmac\": \"x\"}", "hmac"));
+        assertNull(field("{\"a\": {\"b\": 1, \"hmac\": \"x\"}", "hmac"));
+        assertNull(field("", "hmac"));
+    }
+
+    @Test
+    public void decodeBase64InPlaceMatchesTheJdkDecoder() {
+        Random random = new Random(1);
+        for (int length = 0; length < 64; length++) {
+            byte[] original = new byte[length];
+            random.nextBytes(original);
+            byte[] data = utf8(Base64.getEncoder().encodeToString(original));
+            int decoded = ScpBytes.decodeBase64InPlace(data, 0, data.length);
+            assertArrayEquals(original, Arrays.copyOf(data, decoded));
+        }
+    }
+
+    @Test
+    public void decodeBase64InPlaceRejectsInvalidInput() {
+        for (String invalid : new String[]{"abc", "ab=c", "a===", "ab-_", "abä="}) {
+            byte[] data = utf8(invalid);
+            assertEquals(invalid, -1, ScpBytes.decodeBase64InPlace(data, 0, data.length));
+        }
+    }
+
+    @Test
+    public void unescapeInPlace() {
+        byte[] data = utf8("a\\\"b\\\\c\\/d\\n\\t");
+        int length = ScpBytes.unescapeInPlace(data, 0, data.length);
+        assertEquals("a\"b\\c/d\n\t", new String(data, 0, length, StandardCharsets.UTF_8));
+        byte[] unicode = utf8("\\u0041");
+        assertEquals(-1, ScpBytes.unescapeInPlace(unicode, 0, unicode.length));
+        byte[] trailing = utf8("abc\\");
+        assertEquals(-1, ScpBytes.unescapeInPlace(trailing, 0, trailing.length));
+    }
+
+    @Test
+    public void hexToBytes() {
+        byte[] hex = utf8("00ff7Fa0");
+        assertArrayEquals(new byte[]{0, (byte) 0xff, 0x7f, (byte) 0xa0}, ScpBytes.hexToBytes(hex, 0, hex.length));
+        assertArrayEquals(new byte[]{(byte) 0xff}, ScpBytes.hexToBytes(hex, 2, 2));
+        assertNull(ScpBytes.hexToBytes(hex, 0, 3));
+        byte[] invalid = utf8("0g");
+        assertNull(ScpBytes.hexToBytes(invalid, 0, invalid.length));
+    }
+
+    @Test
+    public void hexRoundTrip() {
+        byte[] bytes = new byte[32];
+        new Random(2).nextBytes(bytes);
+        byte[] hex = utf8(ScpCrypto.bytesToHex(bytes));
+        assertArrayEquals(bytes, ScpBytes.hexToBytes(hex, 0, hex.length));
+        assertTrue(hex.length == 2 * bytes.length);
+        assertFalse(new String(hex, StandardCharsets.US_ASCII).matches(".*[a-f].*"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceHealthTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ScpDeviceHealthTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+
+    // A health with an open breaker, opened at NOW
+    private static ScpDeviceHealth opened() {
+        ScpDeviceHealth health = new ScpDeviceHealth();
+        for (int i = 0; i < ScpDeviceHealth.FAILURE_THRESHOLD; i++) {
+            health.failed(NOW);
+        }
+        return health;
+    }
+
+    @Test
+    public void breakerOpensAfterTheThreshold() {
+        ScpDeviceHealth health = new ScpDeviceHealth();
+        assertEquals(ScpDeviceHealth.State.CLOSED, health.state(NOW));
+        for (int i = 1; i < ScpDeviceHealth.FAILURE_THRESHOLD; i++) {
+            assertFalse(health.failed(NOW));
+            assertTrue(health.tryRequest(NOW));
+        }
+        assertTrue(health.failed(NOW));
+        assertEquals(ScpDeviceHealth.State.OPEN, health.state(NOW));
+        assertEquals(ScpDeviceHealth.OPEN_TIME, health.openTimeLeft(NOW));
+        assertFalse(health.tryRequest(NOW + ScpDeviceHealth.OPEN_TIME - 1));
+    }
+
+    @Test
+    public void halfOpenBreakerLetsASingleRequestThrough() {
+        ScpDeviceHealth health = opened();
+        long halfOpen = NOW + ScpDeviceHealth.OPEN_TIME;
+        assertEquals(ScpDeviceHealth.State.HALF_OPEN, health.state(halfOpen));
+        assertEquals(0, health.openTimeLeft(halfOpen));
+        assertTrue(health.tryRequest(halfOpen));
+        assertFalse(health.tryRequest(halfOpen));
+        health.succeeded(halfOpen + 10);
+        assertEquals(ScpDeviceHealth.State.CLOSED, health.state(halfOpen + 10));
+        assertEquals(0, health.consecutiveFailures);
+        assertTrue(health.tryRequest(halfOpen + 10));
+        assertTrue(health.tryRequest(halfOpen + 10));
+    }
+
+    @Test
+    public void failedTrialDoublesTheOpenTime() {
+        ScpDeviceHealth health = opened();
+        long halfOpen = NOW + ScpDeviceHealth.OPEN_TIME;
+        assertTrue(health.tryRequest(halfOpen));
+        assertTrue(health.failed(halfOpen));
+        assertEquals(2 * ScpDeviceHealth.OPEN_TIME, health.openTimeLeft(halfOpen));
+        // the next trial is let through once the longer open time is over
+        assertTrue(health.tryRequest(halfOpen + 2 * ScpDeviceHealth.OPEN_TIME));
+    }
+
+    @Test
+    public void openTimeIsCapped() {
+        assertEquals(ScpDeviceHealth.MAX_OPEN_TIME, new ScpDeviceHealth(10, 0, NOW).openTimeLeft(NOW));
+        // many failures don't overflow the doubling
+        assertEquals(ScpDeviceHealth.MAX_OPEN_TIME, new ScpDeviceHealth(1000, 0, NOW).openTimeLeft(NOW));
+        assertEquals(ScpDeviceHealth.State.HALF_OPEN,
+                new ScpDeviceHealth(1000, 0, NOW).state(NOW + ScpDeviceHealth.MAX_OPEN_TIME));
+    }
+
+    @Test
+    public void storedStateSurvivesARestart() {
+        ScpDeviceHealth health = opened();
+        ScpDeviceHealth restored = new ScpDeviceHealth(health.consecutiveFailures, health.lastSuccess,
+                health.lastFailure);
+        assertEquals(ScpDeviceHealth.State.OPEN, restored.state(NOW + 1));
+        assertEquals(health.openTimeLeft(NOW + 1), restored.openTimeLeft(NOW + 1));
+    }
+
+    @Test
+    public void changesAreTakenOnce() {
+        ScpDeviceHealth health = new ScpDeviceHealth();
+        assertFalse(health.takeChanged());
+        // the first success is stored
+        health.succeeded(NOW);
+        assertTrue(health.takeChanged());
+        assertFalse(health.takeChanged());
+        // further successes only after the store interval
+        health.succeeded(NOW + 1000);
+        assertFalse(health.takeChanged());
+        health.succeeded(NOW + 1000 + ScpDeviceHealth.SUCCESS_STORE_INTERVAL);
+        assertTrue(health.takeChanged());
+        health.failed(NOW + 2 * ScpDeviceHealth.SUCCESS_STORE_INTERVAL);
+        assertTrue(health.takeChanged());
+        // the success after a failure is stored right away
+        health.succeeded(NOW + 2 * ScpDeviceHealth.SUCCESS_STORE_INTERVAL + 1);
+        assertTrue(health.takeChanged());
+    }
+
+    @Test
+    public void probeIsClaimedOnce() {
+        ScpDeviceHealth health = opened();
+        assertTrue(health.claimProbe());
+        assertFalse(health.claimProbe());
+        health.probeStarted();
+        assertTrue(health.claimProbe());
+    }
+}
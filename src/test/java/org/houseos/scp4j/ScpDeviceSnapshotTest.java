@@ -0,0 +1,147 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceSnapshotTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScpDeviceSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path json;
+    private List<ScpDevice> devices;
+
+    @Before
+    public void setUp() throws IOException {
+        json = folder.getRoot().toPath().resolve("devices.json");
+        Files.write(json, "[]".getBytes(StandardCharsets.UTF_8));
+        // "Aa" and "BB" have the same hash code and share an index slot
+        devices = Arrays.asList(
+                new ScpDevice("Aa", ScpDeviceTypes.SHUTTER_CONTROL, "10.0.0.1", false, "first", 1),
+                new ScpDevice("zz", ScpDeviceTypes.SHUTTER_CONTROL, null, true, null, 0),
+                new ScpDevice("BB", ScpDeviceTypes.SHUTTER_CONTROL, "10.0.0.3", false, "second", 2));
+        devices.get(2).health = new ScpDeviceHealth(5, 100, 200);
+    }
+
+    private static void assertSameDevice(ScpDevice expected, ScpDevice actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getDeviceId(), actual.getDeviceId());
+        assertEquals(expected.ipAddress, actual.ipAddress);
+        assertEquals(expected.knownPassword, actual.knownPassword);
+        assertEquals(expected.currentPasswordNumber, actual.currentPasswordNumber);
+        assertEquals(expected.health == null, actual.health == null);
+    }
+
+    @Test
+    public void lookupFindsEveryDevice() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        for (ScpDevice device : devices) {
+            assertSameDevice(device, ScpDeviceSnapshot.lookup(json, device.getDeviceId()));
+        }
+        assertNull(ScpDeviceSnapshot.lookup(json, "unknown"));
+        // same hash as the stored colliding IDs, but a different ID
+        assertEquals("Aa".hashCode(), "C#".hashCode());
+        assertNull(ScpDeviceSnapshot.lookup(json, "C#"));
+    }
+
+    @Test
+    public void readAllKeepsTheOrderAndHealth() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        List<ScpDevice> read = ScpDeviceSnapshot.readAll(json);
+        assertEquals(devices.size(), read.size());
+        for (int i = 0; i < devices.size(); i++) {
+            assertSameDevice(devices.get(i), read.get(i));
+        }
+        ScpDeviceHealth health = read.get(2).health;
+        assertEquals(5, health.consecutiveFailures);
+        assertEquals(100, health.lastSuccess);
+        assertEquals(200, health.lastFailure);
+    }
+
+    @Test
+    public void snapshotOfAChangedJsonFileIsIgnored() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        Files.write(json, " ".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+        assertNull(ScpDeviceSnapshot.readAll(json));
+    }
+
+    @Test
+    public void rewriteOfTheSameSizeAndTimeIsDetected() throws IOException {
+        Files.write(json, "[1]".getBytes(StandardCharsets.UTF_8));
+        FileTime modified = Files.getLastModifiedTime(json);
+        ScpDeviceSnapshot.write(json, devices);
+        Files.write(json, "[2]".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(json, modified);
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+        assertNull(ScpDeviceSnapshot.readAll(json));
+    }
+
+    @Test
+    public void damagedStringLengthIsIgnored() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        Path snapshot = Paths.get(json + ScpDeviceSnapshot.SUFFIX);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        // the length in front of the first device ID
+        int id = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("Aa");
+        ByteBuffer.wrap(bytes).putInt(id - Integer.BYTES, Integer.MAX_VALUE);
+        Files.write(snapshot, bytes);
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+        assertNull(ScpDeviceSnapshot.readAll(json));
+        // records of other hashes are still found
+        assertSameDevice(devices.get(1), ScpDeviceSnapshot.lookup(json, "zz"));
+    }
+
+    @Test
+    public void lookupIgnoresTheSnapshotWhileTheJournalHasRecords() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        Path journal = Paths.get(json + ScpDeviceStore.JOURNAL_SUFFIX);
+        Files.write(journal, new byte[0]);
+        assertNotNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+        Files.write(journal, "{}\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+    }
+
+    @Test
+    public void damagedSnapshotIsIgnored() throws IOException {
+        ScpDeviceSnapshot.write(json, devices);
+        Path snapshot = Paths.get(json + ScpDeviceSnapshot.SUFFIX);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length - 10));
+        assertNull(ScpDeviceSnapshot.readAll(json));
+        assertNull(ScpDeviceSnapshot.lookup(json, "BB"));
+        Files.write(snapshot, new byte[]{1, 2, 3});
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+    }
+
+    @Test
+    public void nothingIsWrittenWithoutJsonFile() throws IOException {
+        Files.delete(json);
+        ScpDeviceSnapshot.write(json, devices);
+        assertFalse(Files.exists(Paths.get(json + ScpDeviceSnapshot.SUFFIX)));
+        assertNull(ScpDeviceSnapshot.lookup(json, "Aa"));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * secure_control_protocol
+ * ScpDeviceStoreTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScpDeviceStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+    private Path json;
+    private Path journal;
+
+    @Before
+    public void setUp() {
+        json = folder.getRoot().toPath().resolve("devices.json");
+        journal = Paths.get(json + ScpDeviceStore.JOURNAL_SUFFIX);
+    }
+
+    private static ScpDevice device(String deviceId, String ipAddress, int passwordNumber) {
+        return new ScpDevice(deviceId, ScpDeviceTypes.SHUTTER_CONTROL, ipAddress, passwordNumber == 0,
+                "password-" + passwordNumber, passwordNumber);
+    }
+
+    private void appendJournal(String content) throws IOException {
+        Files.write(journal, content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private String journalLine(ScpDevice device) {
+        return gson.toJson(device) + "\n";
+    }
+
+    private static List<String> ids(List<ScpDevice> devices) {
+        List<String> ids = new ArrayList<>();
+        for (ScpDevice device : devices) {
+            ids.add(device.getDeviceId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void missingJsonFileIsAnEmptyStore() throws IOException {
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertTrue(store.devices().isEmpty());
+        }
+    }
+
+    @Test
+    public void closeFoldsTheJournalIntoTheJsonFile() throws IOException {
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            store.put(device("a", "10.0.0.1", 0));
+            store.put(device("b", "10.0.0.2", 0));
+            store.put(device("a", "10.0.0.3", 1));
+            assertTrue(Files.size(journal) > 0);
+        }
+        assertEquals(0, Files.size(journal));
+        List<ScpDevice> stored = ScpDevice.devicesfromJson(new String(Files.readAllBytes(json),
+                StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("a", "b"), ids(stored));
+        assertEquals("10.0.0.3", stored.get(0).ipAddress);
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(1, store.get("a").currentPasswordNumber);
+            assertEquals("password-1", store.get("a").knownPassword);
+        }
+    }
+
+    @Test
+    public void recoversRecordsOfAStoreThatWasNotClosed() throws IOException {
+        ScpDeviceStore crashed = ScpDeviceStore.open(json.toString());
+        crashed.put(device("a", "10.0.0.1", 0));
+        crashed.put(device("b", "10.0.0.2", 0));
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a", "b"), ids(store.devices()));
+        }
+        crashed.close();
+    }
+
+    @Test
+    public void journalRecordsOverrideTheSnapshot() throws IOException {
+        Files.write(json, gson.toJson(Arrays.asList(device("a", "10.0.0.1", 0), device("b", "10.0.0.2", 0)))
+                .getBytes(StandardCharsets.UTF_8));
+        appendJournal(journalLine(device("b", "10.0.0.20", 2)) + journalLine(device("c", "10.0.0.3", 0)));
+        long journalSize = Files.size(journal);
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a", "b", "c"), ids(store.devices()));
+            assertEquals("10.0.0.20", store.get("b").ipAddress);
+            assertEquals(2, store.get("b").currentPasswordNumber);
+            // complete records stay in the journal until the next compaction
+            assertEquals(journalSize, Files.size(journal));
+        }
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsCutOff() throws IOException {
+        String valid = journalLine(device("a", "10.0.0.1", 0));
+        appendJournal(valid + "{\"deviceId\":\"b\",\"ipAdd");
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a"), ids(store.devices()));
+            assertEquals(valid.getBytes(StandardCharsets.UTF_8).length, Files.size(journal));
+            // new records are appended behind the last complete one
+            store.put(device("c", "10.0.0.3", 0));
+        }
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a", "c"), ids(store.devices()));
+        }
+    }
+
+    @Test
+    public void replayStopsAtACorruptRecord() throws IOException {
+        String valid = journalLine(device("a", "10.0.0.1", 0));
+        appendJournal(valid + "garbage\n" + journalLine(device("b", "10.0.0.2", 0)));
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a"), ids(store.devices()));
+            assertEquals(valid.getBytes(StandardCharsets.UTF_8).length, Files.size(journal));
+        }
+        Files.delete(json);
+        appendJournal(valid + "{\"deviceType\":\"no id\"}\n" + journalLine(device("b", "10.0.0.2", 0)));
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertEquals(Arrays.asList("a"), ids(store.devices()));
+        }
+    }
+
+    @Test
+    public void healthIsStoredWithTheDevice() throws IOException {
+        ScpDevice device = device("a", "10.0.0.1", 1);
+        device.health = new ScpDeviceHealth(4, 1000, 2000);
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            store.put(device);
+        }
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            ScpDeviceHealth health = store.get("a").health;
+            assertNotNull(health);
+            assertEquals(4, health.consecutiveFailures);
+            assertEquals(1000, health.lastSuccess);
+            assertEquals(2000, health.lastFailure);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void putAfterCloseFails() throws IOException {
+        ScpDeviceStore store = ScpDeviceStore.open(json.toString());
+        store.close();
+        store.put(device("a", "10.0.0.1", 0));
+    }
+
+    @Test
+    public void editedJsonFileWinsOverTheBinarySnapshot() throws IOException {
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            store.put(device("a", "10.0.0.1", 0));
+        }
+        assertTrue(Files.exists(Paths.get(json + ScpDeviceSnapshot.SUFFIX)));
+        Files.write(json, gson.toJson(Arrays.asList(device("edited", "10.0.0.9", 0)))
+                .getBytes(StandardCharsets.UTF_8));
+        try (ScpDeviceStore store = ScpDeviceStore.open(json.toString())) {
+            assertNull(store.get("a"));
+            assertEquals("10.0.0.9", store.get("edited").ipAddress);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * secure_control_protocol
+ * ScpHttpTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ScpHttpTest {
+
+    private static final String OK_HEADER = "HTTP/1.1 200 OK\r\n";
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(bytes(text));
+    }
+
+    @Test
+    public void headerEndAndStatusCode() {
+        byte[] raw = bytes("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+        assertEquals(raw.length, ScpHttp.headerEnd(raw, raw.length));
+        assertEquals(-1, ScpHttp.headerEnd(raw, raw.length - 1));
+        assertEquals(404, ScpHttp.statusCode(raw, raw.length));
+        assertEquals(-1, ScpHttp.statusCode(bytes("HTTP/1.1 2x0 OK"), 15));
+    }
+
+    @Test
+    public void headerLookupIgnoresCase() {
+        byte[] raw = bytes(OK_HEADER + "CONTENT-LENGTH:  12 \r\n\r\n");
+        assertEquals("12", ScpHttp.header(raw, raw.length, "content-length"));
+        assertNull(ScpHttp.header(raw, raw.length, "transfer-encoding"));
+    }
+
+    @Test
+    public void parseContentLengthBody() {
+        byte[] raw = bytes(OK_HEADER + "Content-Length: 5\r\n\r\nhello");
+        assertTrue(ScpHttp.isComplete(raw, raw.length));
+        assertFalse(ScpHttp.isComplete(raw, raw.length - 1));
+        ScpHttp.Response response = ScpHttp.parse(raw, raw.length);
+        assertEquals(200, response.status);
+        assertEquals("hello", response.bodyAsString());
+    }
+
+    @Test
+    public void parseDechunksInPlace() {
+        byte[] raw = bytes(OK_HEADER + "Transfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+        assertTrue(ScpHttp.isComplete(raw, raw.length));
+        assertFalse(ScpHttp.isComplete(raw, raw.length - 5));
+        assertEquals("hello world", ScpHttp.parse(raw, raw.length).bodyAsString());
+    }
+
+    @Test
+    public void parseRejectsNegativeContentLength() {
+        byte[] raw = bytes(OK_HEADER + "Content-Length: -1\r\n\r\nbody");
+        // complete right away, so the scanner doesn't wait for more bytes
+        assertTrue(ScpHttp.isComplete(raw, raw.length));
+        assertNull(ScpHttp.parse(raw, raw.length));
+    }
+
+    @Test
+    public void parseRejectsOverflowingChunkSize() {
+        byte[] raw = bytes(OK_HEADER + "Transfer-Encoding: chunked\r\n\r\n7fffffff\r\nhello\r\n0\r\n\r\n");
+        assertFalse(ScpHttp.isComplete(raw, raw.length));
+        assertNull(ScpHttp.parse(raw, raw.length));
+    }
+
+    @Test
+    public void readResponseWithContentLength() throws IOException {
+        InputStream in = stream(OK_HEADER + "Content-Length: 2\r\n\r\nok"
+                + OK_HEADER + "Content-Length: 3\r\n\r\nnext");
+        ScpHttp.Response first = ScpHttp.readResponse(in);
+        assertEquals("ok", first.bodyAsString());
+        assertTrue(first.reusable);
+        // the next response on the same connection starts right behind the body
+        ScpHttp.Response second = ScpHttp.readResponse(in);
+        assertEquals("nex", second.bodyAsString());
+        // the body is a copy, reading more doesn't change it
+        assertEquals("ok", first.bodyAsString());
+    }
+
+    @Test
+    public void readResponseChunked() throws IOException {
+        ScpHttp.Response response = ScpHttp.readResponse(stream(OK_HEADER
+                + "Transfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\nTrailer: x\r\n\r\n"));
+        assertEquals("abcde", response.bodyAsString());
+        assertTrue(response.reusable);
+    }
+
+    @Test
+    public void readResponseUntilEndOfStream() throws IOException {
+        ScpHttp.Response response = ScpHttp.readResponse(stream(OK_HEADER + "\r\nuntil the end"));
+        assertEquals("until the end", response.bodyAsString());
+        assertFalse(response.reusable);
+    }
+
+    @Test
+    public void readResponseHonoursConnectionHeader() throws IOException {
+        assertFalse(ScpHttp.readResponse(stream(OK_HEADER + "Connection: close\r\nContent-Length: 0\r\n\r\n"))
+                .reusable);
+        assertFalse(ScpHttp.readResponse(stream("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n")).reusable);
+        assertTrue(ScpHttp.readResponse(stream("HTTP/1.0 200 OK\r\nConnection: keep-alive\r\n"
+                + "Content-Length: 0\r\n\r\n")).reusable);
+    }
+
+    @Test(expected = ScpHttp.ClosedBeforeResponseException.class)
+    public void readResponseOfClosedConnection() throws IOException {
+        ScpHttp.readResponse(stream(""));
+    }
+
+    @Test
+    public void readResponseRejectsMalformedResponses() {
+        String[] responses = {
+            // closed within the header, not before the response
+            "HTTP/1.1 200",
+            OK_HEADER + "Content-Length: -5\r\n\r\n",
+            OK_HEADER + "Content-Length: abc\r\n\r\n",
+            OK_HEADER + "Content-Length: 10\r\n\r\nshort",
+            OK_HEADER + "Transfer-Encoding: chunked\r\n\r\nzz\r\n",
+            OK_HEADER + "Transfer-Encoding: chunked\r\n\r\n7fffffff\r\nabc",
+            OK_HEADER + "Content-Length: " + (ScpHttp.MAX_RESPONSE_SIZE + 1) + "\r\n\r\n"
+        };
+        for (String response : responses) {
+            try {
+                ScpHttp.readResponse(stream(response));
+                fail("accepted " + response);
+            } catch (ScpHttp.ClosedBeforeResponseException ex) {
+                fail("closed before response: " + response);
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void readResponseGrowsTheBufferUpToTheLimit() throws IOException {
+        char[] body = new char[ScpHttp.MAX_RESPONSE_SIZE / 2];
+        Arrays.fill(body, 'x');
+        ScpHttp.Response response = ScpHttp.readResponse(stream(OK_HEADER + "Content-Length: " + body.length
+                + "\r\n\r\n" + new String(body)));
+        assertEquals(body.length, response.bodyLength);
+    }
+}
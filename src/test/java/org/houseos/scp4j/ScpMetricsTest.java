@@ -0,0 +1,92 @@
+/*
+ * secure_control_protocol
+ * ScpMetricsTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScpMetricsTest {
+
+    private static final double MICROS_PER_SECOND = 1e6;
+    private static final double[] MEDIAN = {0.5};
+
+    @Before
+    public void metricsEnabled() {
+        Assume.assumeTrue(ScpMetrics.ENABLED);
+    }
+
+    // The median in microseconds of a histogram with the value and a larger one
+    private static long median(long value) {
+        ScpMetrics.Histogram histogram = new ScpMetrics.Histogram("test", "");
+        histogram.record(value);
+        histogram.record(1L << 50);
+        return Math.round(histogram.quantileSeconds(MEDIAN)[0] * MICROS_PER_SECOND);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, median(value));
+        }
+    }
+
+    @Test
+    public void valuesAreOffByAtMostOneSixteenth() {
+        for (int exponent = 5; exponent <= 40; exponent++) {
+            long power = 1L << exponent;
+            for (long value : new long[]{power, power + 1, power + power / 3, 2 * power - 1}) {
+                long median = median(value);
+                assertTrue(value + " -> " + median, median >= value && median <= value + value / 16);
+            }
+        }
+    }
+
+    @Test
+    public void bucketBoundsGrowWithTheValue() {
+        long previous = 0;
+        for (long value = 0; value < 1 << 16; value++) {
+            long median = median(value);
+            assertTrue(value + " -> " + median, median >= value && median >= previous);
+            previous = median;
+        }
+    }
+
+    @Test
+    public void quantilesAreCappedAtTheMaximum() {
+        ScpMetrics.Histogram single = new ScpMetrics.Histogram("test", "");
+        // the bucket of 100 reaches up to 103
+        single.record(100);
+        assertEquals(100 / MICROS_PER_SECOND, single.quantileSeconds(MEDIAN)[0], 0);
+    }
+
+    @Test
+    public void largeAndNegativeValues() {
+        ScpMetrics.Histogram histogram = new ScpMetrics.Histogram("test", "");
+        histogram.record(1000);
+        histogram.record(1L << 45);
+        histogram.record(-5);
+        assertEquals(3, histogram.count());
+        assertEquals((1L << 45) / MICROS_PER_SECOND, histogram.maxSeconds(), 0);
+        double[] values = histogram.quantileSeconds(new double[]{0, 0.5, 1});
+        // negative values are recorded as 0
+        assertEquals(0, values[0], 0);
+        assertEquals(1000 / MICROS_PER_SECOND, values[1], 1000 / 16 / MICROS_PER_SECOND);
+        // values beyond 2^41 us end up in the last bucket and are reported as its upper bound
+        assertEquals(((1L << 41) - 1) / MICROS_PER_SECOND, values[2], 0);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        ScpMetrics.Histogram histogram = new ScpMetrics.Histogram("test", "");
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.quantileSeconds(MEDIAN)[0], 0);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * secure_control_protocol
+ * ScpResponseParserTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import org.junit.Test;
+
+public class ScpResponseParserTest {
+
+    private static final String PASSWORD = "abcdefghijklmnopqrstuvwxyz012345";
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A response wrapped like a device sends it, signed with the given password
+    private static byte[] wrapped(String payload, String password) {
+        String encoded = Base64.getEncoder().encodeToString(utf8(payload));
+        return utf8("{\"response\": \"" + encoded + "\", \"hmac\": \""
+                + ScpCrypto.getInstance().hmacHex(encoded, password) + "\"}");
+    }
+
+    private static byte[] discover(String deviceId, int passwordNumber, String password) {
+        String hmac = ScpCrypto.getInstance().hmacHex(ScpResponseDiscover.TYPE + deviceId
+                + ScpDeviceTypes.SHUTTER_CONTROL + passwordNumber, password);
+        return utf8("{\"type\":\"discover-response\",\"deviceId\":\"" + deviceId + "\",\"deviceType\":\""
+                + ScpDeviceTypes.SHUTTER_CONTROL + "\",\"currentPasswordNumber\":" + passwordNumber
+                + ",\"unknown\":[1,{\"x\":null}],\"hmac\":\"" + hmac + "\"}");
+    }
+
+    @Test
+    public void discoverResponseWithDefaultPassword() {
+        byte[] data = discover("device-1", 0, ScpCrypto.DEFAULT_PASSWORD);
+        ScpResponseDiscover response = ScpResponseParser.parseDiscoverResponse(data, 0, data.length, null);
+        assertNotNull(response);
+        assertEquals("device-1", response.deviceId);
+        assertEquals(ScpDeviceTypes.SHUTTER_CONTROL, response.deviceType);
+        assertEquals(0, response.currentPasswordNumber);
+    }
+
+    @Test
+    public void discoverResponseIsVerifiedWithThePasswordOfTheKnownDevice() {
+        ScpDeviceRegistry registry = new ScpDeviceRegistry();
+        registry.replaceKnown(Collections.singletonList(new ScpDevice("device-2", ScpDeviceTypes.SHUTTER_CONTROL,
+                "10.0.0.2", false, PASSWORD, 1)));
+        byte[] data = discover("device-2", 1, PASSWORD);
+        assertNotNull(ScpResponseParser.parseDiscoverResponse(data, 0, data.length, registry));
+        assertNull(ScpResponseParser.parseDiscoverResponse(data, 0, data.length, null));
+        byte[] unknownSigned = discover("device-3", 1, PASSWORD);
+        assertNull(ScpResponseParser.parseDiscoverResponse(unknownSigned, 0, unknownSigned.length, registry));
+    }
+
+    @Test
+    public void malformedDiscoverResponses() {
+        for (String json : new String[]{"", "{", "[]", "{\"deviceId\": }", "{\"currentPasswordNumber\": \"x\"}",
+            "{\"deviceId\": \"d\", \"hmac\": \"00\"}"}) {
+            byte[] data = utf8(json);
+            assertNull(json, ScpResponseParser.parseDiscoverResponse(data, 0, data.length, null));
+        }
+    }
+
+    @Test
+    public void nvcnResponse() {
+        byte[] data = utf8("  {\"type\": \"security-fetch-nvcn\", \"deviceId\": \"d\", \"nvcn\": \"0A1B\"}");
+        ScpResponseFetchNvcn response = ScpResponseParser.parseNvcnResponse(data, 0, data.length);
+        assertEquals("d", response.deviceId);
+        assertEquals("0A1B", response.nvcn);
+        byte[] missing = utf8("{\"deviceId\": \"d\", \"nvcn\": \"\"}");
+        assertNull(ScpResponseParser.parseNvcnResponse(missing, 0, missing.length));
+        // numbers are read as their text, like Gson binds them to String fields
+        byte[] number = utf8("{\"deviceId\": \"d\", \"nvcn\": 5}");
+        assertEquals("5", ScpResponseParser.parseNvcnResponse(number, 0, number.length).nvcn);
+        byte[] wrongType = utf8("{\"deviceId\": \"d\", \"nvcn\": [5]}");
+        assertNull(ScpResponseParser.parseNvcnResponse(wrongType, 0, wrongType.length));
+    }
+
+    @Test
+    public void wrappedResponses() {
+        byte[] password = wrapped("{\"type\":\"security-pw-change\",\"deviceId\":\"d\","
+                + "\"currentPasswordNumber\":\"2\",\"result\":\"done\"}", PASSWORD);
+        ScpResponseSetPassword setPassword = ScpResponseParser.parseSetPasswordResponse(password, 0,
+                password.length, PASSWORD);
+        assertEquals("2", setPassword.currentPasswordNumber);
+        assertEquals(ScpStatus.RESULT_DONE, setPassword.result);
+
+        byte[] control = wrapped("{\"type\":\"control\",\"deviceId\":\"d\",\"action\":\"up\",\"result\":\"success\"}",
+                PASSWORD);
+        ScpResponseControl controlResponse = ScpResponseParser.parseControlResponse(control, 0, control.length,
+                PASSWORD);
+        assertEquals("up", controlResponse.action);
+        assertEquals(ScpStatus.RESULT_SUCCESS, controlResponse.result);
+
+        byte[] restart = wrapped("{\"type\":\"security-restart\",\"deviceId\":\"d\",\"result\":\"success\"}",
+                PASSWORD);
+        assertEquals(ScpStatus.RESULT_SUCCESS, ScpResponseParser.parseRestartDeviceResponse(restart, 0,
+                restart.length, PASSWORD).result);
+    }
+
+    @Test
+    public void wrappedResponseWithWrongHmacOrType() {
+        String payload = "{\"type\":\"security-wifi-config\",\"deviceId\":\"d\",\"result\":\"success\"}";
+        byte[] data = wrapped(payload, PASSWORD);
+        assertNull(ScpResponseParser.parseSetWifiConfigResponse(data, 0, data.length, ScpCrypto.DEFAULT_PASSWORD));
+        data = wrapped(payload, PASSWORD);
+        assertNotNull(ScpResponseParser.parseSetWifiConfigResponse(data, 0, data.length, PASSWORD));
+        // authentic, but the answer to another message
+        data = wrapped(payload, PASSWORD);
+        assertNull(ScpResponseParser.parseResetToDefault(data, 0, data.length, PASSWORD));
+    }
+
+    @Test
+    public void wrappedResponseWithInvalidPayload() {
+        byte[] notJson = wrapped("not json", PASSWORD);
+        assertNull(ScpResponseParser.parseControlResponse(notJson, 0, notJson.length, PASSWORD));
+        byte[] noHmac = utf8("{\"response\": \"e30=\"}");
+        assertNull(ScpResponseParser.parseControlResponse(noHmac, 0, noHmac.length, PASSWORD));
+        String encoded = "e30";
+        byte[] badBase64 = utf8("{\"response\": \"" + encoded + "\", \"hmac\": \""
+                + ScpCrypto.getInstance().hmacHex(encoded, PASSWORD) + "\"}");
+        assertNull(ScpResponseParser.parseControlResponse(badBase64, 0, badBase64.length, PASSWORD));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * secure_control_protocol
+ * ScpSimulatorTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.houseos.scp4j.util.IPRangeSet;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Drives Scp and ScpMessageSender end to end against simulated devices on loopback addresses
+public class ScpSimulatorTest {
+
+    private static final List<String> IPS = Arrays.asList("127.77.0.1", "127.77.0.2", "127.77.0.3");
+    private static final String SSID = "test-ssid";
+    private static final String WIFI_PASSWORD = "test-wifi-password";
+    private static final int SLOW_MILLIS = 50;
+    private static final int FAST_SAMPLES = 1000;
+    private static final long HEDGE_DELAY_REFRESH_MILLIS = 1100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScpDeviceSimulator simulator;
+
+    @Before
+    public void startSimulator() {
+        simulator = new ScpDeviceSimulator(IPS, ScpDeviceSimulator.Behavior.NONE);
+        try {
+            simulator.start();
+        } catch (IOException ex) {
+            // loopback aliases or the port are not available here
+            Assume.assumeNoException(ex);
+        }
+    }
+
+    @After
+    public void stopSimulator() throws IOException {
+        simulator.close();
+        Scp.getInstance().shutdownDeviceStore();
+    }
+
+    private static IPRangeSet addresses() {
+        return IPRangeSet.parse(Collections.singletonList(IPS.get(0) + "-" + IPS.get(IPS.size() - 1)), null, null);
+    }
+
+    @Test
+    public void discoverHello() {
+        ScpHttp.Response response = ScpMessageSender.sendDiscoverHello(IPS.get(0));
+        assertNotNull(response);
+        assertEquals(200, response.status);
+        assertNotNull(ScpResponseParser.parseDiscoverResponse(response.data, response.bodyOffset,
+                response.bodyLength, null));
+    }
+
+    @Test
+    public void discoverFindsEveryDevice() {
+        Set<String> found = Collections.synchronizedSet(new TreeSet<>());
+        Scp.getInstance().doDiscover(addresses(), device -> found.add(device.ipAddress));
+        assertEquals(new TreeSet<>(IPS), found);
+    }
+
+    @Test
+    public void slowDeviceInAFastSubnetIsFound() throws IOException {
+        String fastIp = "127.77.2.1";
+        String slowIp = "127.77.2.2";
+        ScpDeviceSimulator fast = new ScpDeviceSimulator(Collections.singletonList(fastIp),
+                ScpDeviceSimulator.Behavior.NONE);
+        // slower than the discovery read floor, but well within the default read timeout
+        ScpDeviceSimulator slow = new ScpDeviceSimulator(Collections.singletonList(slowIp),
+                new ScpDeviceSimulator.Behavior(ScpDiscoveryScanner.DISCOVERY_READ_FLOOR * 2, 0, 0, 0));
+        try {
+            fast.start();
+            slow.start();
+        } catch (IOException ex) {
+            fast.close();
+            slow.close();
+            Assume.assumeNoException(ex);
+        }
+        try {
+            // the first answer of the simulator is slow while its crypto warms up
+            assertNotNull(ScpMessageSender.sendDiscoverHello(fastIp));
+            // the subnet is known to answer within a millisecond, so its timeouts drop to the discovery floors
+            for (int i = 0; i < FAST_SAMPLES; i++) {
+                ScpMessageSender.CONNECT_RTT.sample(fastIp, 1);
+                ScpMessageSender.RESPONSE_RTT.sample(fastIp, 1);
+            }
+            Set<String> found = Collections.synchronizedSet(new TreeSet<>());
+            Scp.getInstance().doDiscover(IPRangeSet.parse(Collections.singletonList(fastIp + "-" + slowIp), null,
+                    null), device -> found.add(device.ipAddress));
+            assertEquals(new TreeSet<>(Arrays.asList(fastIp, slowIp)), found);
+        } finally {
+            fast.close();
+            slow.close();
+        }
+    }
+
+    @Test
+    public void slowNvcnFetchIsNotHedged() throws InterruptedException {
+        Assume.assumeTrue(ScpMetrics.ENABLED && ScpRetryPolicy.HEDGING);
+        String ip = "127.77.1.1";
+        ScpDeviceSimulator slow = new ScpDeviceSimulator(Collections.singletonList(ip),
+                new ScpDeviceSimulator.Behavior(SLOW_MILLIS, 0, 0, 0));
+        try {
+            slow.start();
+        } catch (IOException ex) {
+            Assume.assumeNoException(ex);
+        }
+        try {
+            // answers measured well below the latency of the device, so every request is hedged
+            for (String type : Arrays.asList(ScpDiscoveryScanner.DISCOVER_HELLO, ScpResponseFetchNvcn.TYPE)) {
+                for (int i = 0; i < FAST_SAMPLES; i++) {
+                    ScpMetrics.message(type).ok.record(1);
+                }
+            }
+            // the policies refresh their hedge delay once a second
+            Thread.sleep(HEDGE_DELAY_REFRESH_MILLIS);
+
+            ScpMetrics.MessageMetrics hello = ScpMetrics.message(ScpDiscoveryScanner.DISCOVER_HELLO);
+            long helloHedges = hello.hedgesWon.count() + hello.hedgesLost.count();
+            assertNotNull(ScpMessageSender.sendDiscoverHello(ip));
+            assertEquals(helloHedges + 1, hello.hedgesWon.count() + hello.hedgesLost.count());
+
+            ScpMetrics.MessageMetrics fetch = ScpMetrics.message(ScpResponseFetchNvcn.TYPE);
+            long fetchHedges = fetch.hedgesWon.count() + fetch.hedgesLost.count();
+            ScpDevice device = new ScpDevice(slow.device(ip).deviceId, ScpDeviceTypes.SHUTTER_CONTROL, ip, true,
+                    ScpCrypto.DEFAULT_PASSWORD, 0);
+            for (String action : Arrays.asList("up", "down", "stop")) {
+                assertEquals(ScpStatus.RESULT_SUCCESS, ScpMessageSender.sendControl(device, action));
+                assertEquals(action, slow.device(ip).lastAction());
+            }
+            assertEquals(fetchHedges, fetch.hedgesWon.count() + fetch.hedgesLost.count());
+        } finally {
+            slow.close();
+        }
+    }
+
+    @Test
+    public void provisionThenControl() throws IOException {
+        Scp scp = Scp.getInstance();
+        scp.openDeviceStore(folder.getRoot().toPath().resolve("devices.json").toString());
+        List<ScpDevice> discovered = Collections.synchronizedList(new ArrayList<>());
+        List<ScpProvisioningPipeline.Job> jobs = scp.doDiscoverThenDoProvisioning(addresses(), SSID, WIFI_PASSWORD,
+                2, discovered::add);
+        assertEquals(IPS.size(), discovered.size());
+        assertEquals(IPS.size(), jobs.size());
+        for (ScpProvisioningPipeline.Job job : jobs) {
+            assertEquals(job.device.ipAddress + " failed in " + job.getFailedState(),
+                    ScpProvisioningPipeline.State.PERSISTED, job.getState());
+            ScpDeviceSimulator.Device simulated = simulator.device(job.device.ipAddress);
+            assertEquals(job.device.knownPassword, simulated.password());
+            assertFalse(ScpCrypto.DEFAULT_PASSWORD.equals(simulated.password()));
+            assertEquals(job.device.currentPasswordNumber, simulated.currentPasswordNumber());
+            assertEquals(SSID, simulated.ssid());
+
+            assertEquals(ScpStatus.RESULT_SUCCESS, ScpMessageSender.sendControl(job.device, "up"));
+            assertEquals("up", simulated.lastAction());
+        }
+
+        // the provisioned devices are stored with their new passwords
+        scp.shutdownDeviceStore();
+        try (ScpDeviceStore store = ScpDeviceStore.open(folder.getRoot().toPath().resolve("devices.json")
+                .toString())) {
+            for (ScpProvisioningPipeline.Job job : jobs) {
+                assertEquals(job.device.knownPassword, store.get(job.device.getDeviceId()).knownPassword);
+            }
+        }
+    }
+}
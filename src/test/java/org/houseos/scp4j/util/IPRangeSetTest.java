@@ -0,0 +1,130 @@
+/*
+ * secure_control_protocol
+ * IPRangeSetTest Class
+ * SPDX-License-Identifier: GPL-3.0-only
+ * Copyright (C) 2020 Marcel Jaehn
+ */
+package org.houseos.scp4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+public class IPRangeSetTest {
+
+    private static IPRangeSet parse(String includes, String excludes) {
+        return IPRangeSet.parse(Arrays.asList(includes.split(",")), null,
+                excludes == null ? null : Arrays.asList(excludes.split(",")));
+    }
+
+    private static List<String> addresses(IPRangeSet set) {
+        List<String> addresses = new ArrayList<>();
+        set.forEach(addresses::add);
+        return addresses;
+    }
+
+    @Test
+    public void cidrBlockWithoutNetworkAndBroadcastAddress() {
+        IPRangeSet set = parse("192.168.1.77/24", null);
+        assertEquals("192.168.1.1-192.168.1.254", set.toString());
+        assertEquals(254, set.size());
+        // /31 and /32 have no network and broadcast address
+        assertEquals("10.0.0.0-10.0.0.1", parse("10.0.0.1/31", null).toString());
+        assertEquals("10.0.0.1", parse("10.0.0.1/32", null).toString());
+    }
+
+    @Test
+    public void prefixLengthExpandsSingleAddresses() {
+        IPRangeSet set = IPRangeSet.parse(Arrays.asList("10.0.0.5", "10.0.1.7-10.0.1.8"), 30, null);
+        assertEquals("10.0.0.5-10.0.0.6,10.0.1.7-10.0.1.8", set.toString());
+    }
+
+    @Test
+    public void mergeJoinsOverlappingAndAdjacentRanges() {
+        IPRangeSet set = parse("10.0.0.20-10.0.0.30,10.0.0.1-10.0.0.10,10.0.0.11,10.0.0.25-10.0.0.40,10.0.0.50", null);
+        assertEquals("10.0.0.1-10.0.0.11,10.0.0.20-10.0.0.40,10.0.0.50", set.toString());
+        assertEquals(11 + 21 + 1, set.size());
+        assertEquals("10.0.0.1-10.0.0.10", parse("10.0.0.1-10.0.0.10,10.0.0.3-10.0.0.4", null).toString());
+    }
+
+    @Test
+    public void subtractCutsExcludedRanges() {
+        IPRangeSet set = parse("10.0.0.1-10.0.0.100,10.0.1.1-10.0.1.10",
+                "10.0.0.1,10.0.0.50-10.0.0.60,10.0.0.55-10.0.0.70,10.0.0.100-10.0.1.2,10.0.1.10");
+        assertEquals("10.0.0.2-10.0.0.49,10.0.0.71-10.0.0.99,10.0.1.3-10.0.1.9", set.toString());
+        // excludes keep network and broadcast address, so they cover whole blocks
+        assertEquals(0, parse("10.0.0.0/24", "10.0.0.0/24").size());
+        assertEquals("", parse("10.0.0.1-10.0.0.5", "10.0.0.0-10.0.0.9").toString());
+    }
+
+    @Test
+    public void excludingAddresses() {
+        IPRangeSet set = parse("10.0.0.1-10.0.0.5", null).excluding(Arrays.asList("10.0.0.3", "10.0.0.1",
+                "10.0.0.3"));
+        assertEquals(Arrays.asList("10.0.0.2", "10.0.0.4", "10.0.0.5"), addresses(set));
+        assertEquals("10.0.0.1-10.0.0.5", parse("10.0.0.1-10.0.0.5", null)
+                .excluding(Collections.<String>emptyList()).toString());
+    }
+
+    @Test
+    public void splitKeepsOrderAndSizes() {
+        IPRangeSet set = parse("10.0.0.1-10.0.0.5,10.0.0.10-10.0.0.12,10.0.0.20", null);
+        List<IPRangeSet> parts = set.split(4);
+        assertEquals(3, parts.size());
+        assertEquals("10.0.0.1-10.0.0.4", parts.get(0).toString());
+        assertEquals("10.0.0.5,10.0.0.10-10.0.0.12", parts.get(1).toString());
+        assertEquals("10.0.0.20", parts.get(2).toString());
+        List<String> joined = new ArrayList<>();
+        for (IPRangeSet part : parts) {
+            joined.addAll(addresses(part));
+        }
+        assertEquals(addresses(set), joined);
+        assertEquals(1, set.split(set.size()).size());
+        assertEquals(set.size(), set.split(1).size());
+    }
+
+    @Test
+    public void splitOfLargeRangeDoesNotOverflow() {
+        IPRangeSet all = parse("0.0.0.0-255.255.255.255", null);
+        assertEquals(1L << 32, all.size());
+        List<IPRangeSet> parts = all.split(1L << 30);
+        assertEquals(4, parts.size());
+        assertEquals("192.0.0.0-255.255.255.255", parts.get(3).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitNeedsPositiveSize() {
+        parse("10.0.0.1", null).split(0);
+    }
+
+    @Test
+    public void iteratorCrossesOctets() {
+        Iterator<String> iterator = parse("10.0.0.254-10.0.1.1", null).iterator();
+        assertEquals(Arrays.asList("10.0.0.254", "10.0.0.255", "10.0.1.0", "10.0.1.1"),
+                addresses(parse("10.0.0.254-10.0.1.1", null)));
+        for (int i = 0; i < 4; i++) {
+            iterator.next();
+        }
+        assertFalse(iterator.hasNext());
+        assertFalse(parse("10.0.0.1", "10.0.0.1").iterator().hasNext());
+    }
+
+    @Test
+    public void invalidEntries() {
+        for (String invalid : new String[]{"10.0.0", "10.0.0.256", "10.0.0.x", "10.0.0.0/33", "10.0.0.0/x",
+            "10.0.0.9-10.0.0.1", "10.0.0.1.1"}) {
+            try {
+                parse(invalid, null);
+                throw new AssertionError("accepted " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}